@@ -0,0 +1,87 @@
+// AdmissionController Class: Decides before the first ack whether the server has room for an upload: a free transfer
+// slot, room under the in-flight byte limit, and disk space for the announced length on top of what running uploads
+// have reserved. Uploads that do not fit are told to retry later instead of failing when the disk fills up. The space
+// is that of all volumes together
+class AdmissionController {
+    private static final AdmissionController instance = new AdmissionController(FTConfig.maxTransfers,
+            FTConfig.maxInFlightBytes, FTConfig.minFreeSpace);
+
+    private int maxTransfers;
+    private long maxInFlightBytes;
+    private long minFreeSpace;
+    private int activeTransfers;
+    private long inFlightBytes;
+    private long rejectedTransfers;
+
+    AdmissionController(int maxTransfers, long maxInFlightBytes, long minFreeSpace) {
+        this.maxTransfers = maxTransfers;
+        this.maxInFlightBytes = maxInFlightBytes;
+        this.minFreeSpace = minFreeSpace;
+    }
+
+    static AdmissionController getInstance() {
+        return instance;
+    }
+
+    // Reserve a slot and the bytes, false when the upload does not fit now
+    synchronized boolean admit(long lengthOfData) {
+        if (activeTransfers >= maxTransfers || !fits(lengthOfData)) {
+            rejectedTransfers++;
+            return false;
+        }
+        activeTransfers++;
+        inFlightBytes += lengthOfData;
+        return true;
+    }
+
+    synchronized void release(long lengthOfData) {
+        activeTransfers--;
+        inFlightBytes -= lengthOfData;
+    }
+
+    // Reserve bytes without a slot, for data that comes in over a slot taken already: the frames of a session, or
+    // a striped file the ranges of which each hold a slot of their own
+    synchronized boolean reserve(long lengthOfData) {
+        if (!fits(lengthOfData)) {
+            rejectedTransfers++;
+            return false;
+        }
+        inFlightBytes += lengthOfData;
+        return true;
+    }
+
+    synchronized void unreserve(long lengthOfData) {
+        inFlightBytes -= lengthOfData;
+    }
+
+    private boolean fits(long lengthOfData) {
+        // An upload larger than the limit still runs, but only on its own
+        return (inFlightBytes == 0 || inFlightBytes + lengthOfData <= maxInFlightBytes)
+                // The reservations of running uploads are subtracted in full, the space they already wrote is
+                // counted twice, which errs on the safe side
+                && Storage.getInstance().getUsableSpace() - inFlightBytes - lengthOfData >= minFreeSpace;
+    }
+
+    // Whether the upload fits on the disk with nothing else in flight. Running uploads only take more space as they
+    // complete, so an upload that does not fit now never will, unless files are deleted meanwhile
+    boolean couldFit(long lengthOfData) {
+        return Storage.getInstance().getUsableSpace() - lengthOfData >= minFreeSpace;
+    }
+
+    // The delay suggested to rejected clients, longer while more of the slots are taken
+    synchronized long getRetryAfter() {
+        return FTConfig.retryAfter * (1 + (long) activeTransfers * 3 / Math.max(1, maxTransfers));
+    }
+
+    synchronized int getActiveTransfers() {
+        return activeTransfers;
+    }
+
+    synchronized long getInFlightBytes() {
+        return inFlightBytes;
+    }
+
+    synchronized long getRejectedTransfers() {
+        return rejectedTransfers;
+    }
+}
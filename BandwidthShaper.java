@@ -0,0 +1,87 @@
+import java.net.*;
+import java.util.*;
+
+// BandwidthShaper Class: Shares the link between clients with a hierarchy of token buckets: one for the whole server,
+// one per client address and one per connection. Every body read takes its bytes from all three and waits for the
+// slowest, so one client's bulk upload cannot take more than its share. The rates can be changed while transfers run
+class BandwidthShaper {
+    private static final BandwidthShaper instance = new BandwidthShaper(FTConfig.rateLimit, FTConfig.clientRateLimit,
+            FTConfig.transferRateLimit);
+
+    private TokenBucket global;
+    private long addressRate;
+    private long transferRate;
+    private HashMap<InetAddress, AddressBucket> addressBuckets = new HashMap<>();
+    private Set<Throttle> throttles = new HashSet<>();
+
+    BandwidthShaper(long globalRate, long addressRate, long transferRate) {
+        this.global = new TokenBucket(globalRate);
+        this.addressRate = addressRate;
+        this.transferRate = transferRate;
+    }
+
+    static BandwidthShaper getInstance() {
+        return instance;
+    }
+
+    // Create the throttle of a new connection from the given address
+    synchronized Throttle open(InetAddress address) {
+        AddressBucket addressBucket = addressBuckets.get(address);
+        if (addressBucket == null) {
+            addressBucket = new AddressBucket(new TokenBucket(addressRate));
+            addressBuckets.put(address, addressBucket);
+        }
+        addressBucket.connections++;
+        Throttle throttle = new Throttle(this, address, global, addressBucket.bucket, new TokenBucket(transferRate));
+        throttles.add(throttle);
+        return throttle;
+    }
+
+    // Forget a closed connection, and its address once no connection from it is left
+    synchronized void close(Throttle throttle) {
+        if (!throttles.remove(throttle)) return;
+        AddressBucket addressBucket = addressBuckets.get(throttle.getAddress());
+        if (--addressBucket.connections == 0) addressBuckets.remove(throttle.getAddress());
+    }
+
+    // The rates in bytes per second, 0 for unlimited
+    synchronized void setGlobalRate(long rate) {
+        global.setRate(rate);
+    }
+
+    synchronized void setAddressRate(long rate) {
+        addressRate = rate;
+        for (AddressBucket addressBucket : addressBuckets.values()) {
+            addressBucket.bucket.setRate(rate);
+        }
+    }
+
+    synchronized void setTransferRate(long rate) {
+        transferRate = rate;
+        for (Throttle throttle : throttles) {
+            throttle.getTransferBucket().setRate(rate);
+        }
+    }
+
+    long getGlobalRate() {
+        return global.getRate();
+    }
+
+    synchronized long getAddressRate() {
+        return addressRate;
+    }
+
+    synchronized long getTransferRate() {
+        return transferRate;
+    }
+
+    // The bucket of a client address, shared by its connections
+    private static class AddressBucket {
+        TokenBucket bucket;
+        int connections;
+
+        AddressBucket(TokenBucket bucket) {
+            this.bucket = bucket;
+        }
+    }
+}
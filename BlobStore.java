@@ -0,0 +1,113 @@
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.concurrent.*;
+import java.io.*;
+
+// BlobStore Class: Content-addressed store, uploaded files become hard links to blobs named by their SHA-256
+class BlobStore {
+    static final String DIRECTORY_NAME = ".blobs";
+
+    // Index records are the 32 byte digest followed by the 8 byte length of the blob
+    private static final int RECORD_LENGTH = 40;
+    private static BlobStore instance;
+
+    private File directory;
+    private FileChannel index;
+    private ConcurrentHashMap<String, Long> blobs;
+
+    private BlobStore() throws IOException {
+        // On the first volume, files placed on other volumes get copies of their blobs instead of links
+        directory = new File(Storage.getInstance().getVolumes()[0].getRoot(), DIRECTORY_NAME);
+        directory.mkdirs();
+        File indexFile = new File(directory, "index");
+        blobs = new ConcurrentHashMap<>();
+        if (indexFile.exists()) {
+            // One bulk read of the whole index, a record torn by a crash is ignored
+            ByteBuffer records = ByteBuffer.wrap(Files.readAllBytes(indexFile.toPath()));
+            byte digest[] = new byte[32];
+            while (records.remaining() >= RECORD_LENGTH) {
+                records.get(digest);
+                blobs.put(FTProtocol.toHex(digest), records.getLong());
+            }
+        }
+        index = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    // The store is loaded once, FTServerF does it at startup
+    static synchronized BlobStore getInstance() throws IOException {
+        if (instance == null) instance = new BlobStore();
+        return instance;
+    }
+
+    public int size() {
+        return blobs.size();
+    }
+
+    // Save the file from the stored blob with this digest, false if there is none. Like an upload the link is made
+    // under a temporary name and renamed over the target, readers see the old file or the whole new one
+    public boolean linkIfPresent(byte digest[], String fileName) throws IOException {
+        String key = FTProtocol.toHex(digest);
+        if (!blobs.containsKey(key)) return false;
+        File blob = new File(directory, key);
+        if (!blob.exists()) {
+            blobs.remove(key);
+            return false;
+        }
+        File target = RequestProcessor.targetFile(fileName);
+        File temporary = Durability.temporaryFile(target);
+        try {
+            link(blob, temporary);
+            Durability.rename(temporary, target);
+        } finally {
+            // Only left over when the link or the rename failed
+            temporary.delete();
+        }
+        if (!Durability.NONE.equals(FTConfig.durability)) Durability.syncDirectory(target.getParentFile());
+        return true;
+    }
+
+    // Verify a received file against the digest the client offered and make it a blob
+    public void ingest(File file, byte expectedDigest[]) throws IOException {
+        byte digest[] = FTProtocol.sha256(file);
+        if (!MessageDigest.isEqual(digest, expectedDigest))
+            throw new IOException("Digest of " + file.getName() + " does not match, not added to the blob store");
+        String key = FTProtocol.toHex(digest);
+        File blob = new File(directory, key);
+        synchronized (this) {
+            if (blobs.containsKey(key) && blob.exists()) {
+                // Another client stored the same content meanwhile, keep a single copy
+                File linked = Durability.temporaryFile(file);
+                try {
+                    link(blob, linked);
+                    Durability.rename(linked, file);
+                } finally {
+                    linked.delete();
+                }
+                return;
+            }
+            blob.delete();
+            link(file, blob);
+            ByteBuffer record = ByteBuffer.allocate(RECORD_LENGTH).put(digest).putLong(file.length());
+            record.flip();
+            while (record.hasRemaining()) {
+                index.write(record);
+            }
+            index.force(false);
+            blobs.put(key, file.length());
+        }
+    }
+
+    // Hard link where the file system allows it, a copy otherwise
+    private static void link(File existing, File link) throws IOException {
+        try {
+            Files.createLink(link.toPath(), existing.toPath());
+        } catch (UnsupportedOperationException | IOException e) {
+            Files.copy(existing.toPath(), link.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+import java.nio.*;
+import java.util.concurrent.*;
+import java.io.*;
+
+// BufferPool Class: Direct buffers shared by every connection, allocated on first use up to a fixed number. A reader
+// that finds them all in flight waits for the write-behind stage to return one, which bounds the memory held for
+// data not yet on disk and pushes back on the clients through TCP flow control
+class BufferPool {
+    private static final BufferPool instance = new BufferPool(FTConfig.receiveBufferSize, FTConfig.receiveBuffers);
+
+    private ArrayBlockingQueue<PooledBuffer> freeBuffers;
+    private int bufferSize;
+    private int maxBuffers;
+    private int allocatedBuffers;
+
+    BufferPool(int bufferSize, int maxBuffers) {
+        this.bufferSize = bufferSize;
+        this.maxBuffers = Math.max(1, maxBuffers);
+        this.freeBuffers = new ArrayBlockingQueue<>(this.maxBuffers);
+    }
+
+    static BufferPool getInstance() {
+        return instance;
+    }
+
+    // Take a free buffer, allocating one while the pool has not reached its size
+    PooledBuffer acquire() throws InterruptedIOException {
+        PooledBuffer pooledBuffer = freeBuffers.poll();
+        if (pooledBuffer != null) return pooledBuffer;
+        synchronized (this) {
+            if (allocatedBuffers < maxBuffers) {
+                allocatedBuffers++;
+                return new PooledBuffer(ByteBuffer.allocateDirect(bufferSize));
+            }
+        }
+        try {
+            return freeBuffers.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    void release(PooledBuffer pooledBuffer) {
+        freeBuffers.offer(pooledBuffer);
+    }
+}
@@ -0,0 +1,13 @@
+import java.io.*;
+
+/**
+ * The ChecksumMismatchException class reports that the server's checksum of a
+ * body differs from the client's, the scheduler sends the upload again.
+ */
+class ChecksumMismatchException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    ChecksumMismatchException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,79 @@
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.zip.*;
+import java.io.*;
+
+// CompressedBodyReader Class: Decodes the deflated and stored chunks of a compressed body. A chunk may straddle
+// two reads, e.g. two journal segments, so the decoded bytes not yet written are kept for the next read
+class CompressedBodyReader {
+    private DataInputStream dis;
+    private Throttle throttle;
+    private Inflater inflater = new Inflater();
+    private byte encoded[] = new byte[0];
+    private byte raw[] = new byte[0];
+    private int rawPosition;
+    private int rawLimit;
+
+    CompressedBodyReader(InputStream is, Throttle throttle) {
+        this.dis = new DataInputStream(is);
+        this.throttle = throttle;
+    }
+
+    // Decode the next lengthOfData raw bytes into the channel at the given position, adding them to the checksum if any
+    void read(FileChannel fileChannel, long position, long lengthOfData, StreamChecksum checksum) throws IOException {
+        long m = 0;
+        while (m < lengthOfData) {
+            if (rawPosition == rawLimit) nextChunk();
+            int n = (int) Math.min(rawLimit - rawPosition, lengthOfData - m);
+            ByteBuffer buffer = ByteBuffer.wrap(raw, rawPosition, n);
+            while (buffer.hasRemaining()) {
+                fileChannel.write(buffer, position + m + buffer.position() - rawPosition);
+            }
+            if (checksum != null) checksum.update(raw, rawPosition, n);
+            rawPosition += n;
+            m += n;
+        }
+    }
+
+    // Read and decode one chunk
+    private void nextChunk() throws IOException {
+        byte kind = dis.readByte();
+        int rawLength = dis.readInt();
+        int encodedLength = dis.readInt();
+        if (rawLength <= 0 || rawLength > FTProtocol.COMPRESSION_CHUNK_SIZE || encodedLength < 0
+                || encodedLength > rawLength)
+            throw new IOException("Malformed chunk of " + rawLength + "/" + encodedLength + " bytes");
+        if (raw.length < rawLength) raw = new byte[FTProtocol.COMPRESSION_CHUNK_SIZE];
+        if (kind == FTProtocol.CHUNK_STORED) {
+            if (encodedLength != rawLength) throw new IOException("Stored chunk with an encoded length");
+            dis.readFully(raw, 0, rawLength);
+        } else if (kind == FTProtocol.CHUNK_DEFLATED) {
+            if (encoded.length < encodedLength) encoded = new byte[FTProtocol.COMPRESSION_CHUNK_SIZE];
+            dis.readFully(encoded, 0, encodedLength);
+            inflater.reset();
+            inflater.setInput(encoded, 0, encodedLength);
+            int n = 0;
+            try {
+                while (n < rawLength) {
+                    int inflated = inflater.inflate(raw, n, rawLength - n);
+                    if (inflated == 0 && (inflater.finished() || inflater.needsInput()))
+                        throw new IOException("Deflated chunk ended after " + n + " of " + rawLength + " bytes");
+                    n += inflated;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt deflated chunk", e);
+            }
+        } else {
+            throw new IOException("Unknown chunk kind " + kind);
+        }
+        // The limits apply to the bytes on the wire, not the decoded ones
+        throttle.acquire(FTProtocol.CHUNK_HEADER_LENGTH + encodedLength);
+        TransferMetrics.server().bytesReceived(FTProtocol.CHUNK_HEADER_LENGTH + encodedLength);
+        rawPosition = 0;
+        rawLimit = rawLength;
+    }
+
+    void close() {
+        inflater.end();
+    }
+}
@@ -0,0 +1,148 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/**
+ * The CompressionPipeline class sends a file body as a sequence of chunks
+ * that are each deflated or stored. A separate compression stage reads and
+ * deflates the next chunks while the upload thread writes the current one to
+ * the socket. Chunks that do not shrink are stored, and after such a chunk
+ * the stage stops trying for a growing number of chunks, so archives and
+ * media cost almost no compression CPU.
+ */
+class CompressionPipeline {
+    private static final int MAX_BYPASSED_CHUNKS = 64;
+    private static final Object END_OF_FILE = new Object();
+
+    private File file;
+    private long offset;
+    private FileUploadThread upload;
+    private long bytesOnWire;
+
+    CompressionPipeline(File file, long offset, FileUploadThread upload) {
+        this.file = file;
+        this.offset = offset;
+        this.upload = upload;
+    }
+
+    /**
+     * Gets the number of bytes written to the socket, chunk headers included.
+     *
+     * @return The encoded length of the body.
+     */
+    public long getBytesOnWire() {
+        return bytesOnWire;
+    }
+
+    /**
+     * Sends the body from the offset to the end of the file.
+     *
+     * @param os The output stream of the connection.
+     */
+    public void send(OutputStream os) throws IOException {
+        ArrayBlockingQueue<Object> chunks = new ArrayBlockingQueue<>(FTConfig.compressionQueueLength);
+        Thread compressor = new Thread(() -> compress(chunks), "compressor-" + file.getName());
+        compressor.setDaemon(true);
+        compressor.start();
+        try {
+            long position = offset;
+            while (true) {
+                Object chunk = chunks.take();
+                if (chunk == END_OF_FILE)
+                    break;
+                if (chunk instanceof IOException)
+                    throw (IOException) chunk;
+                byte encoded[] = (byte[]) chunk;
+                os.write(encoded);
+                FileUploadThread.uploadLimit.acquire(encoded.length);
+                TransferMetrics.client().bytesSent(encoded.length);
+                bytesOnWire += encoded.length;
+                position += ByteBuffer.wrap(encoded, 1, 4).getInt();
+                if (upload != null)
+                    upload.setBytesUploaded(position);
+            }
+            os.flush();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } finally {
+            compressor.interrupt();
+        }
+    }
+
+    // The compression stage, runs ahead of the socket writes by up to the queue length
+    private void compress(ArrayBlockingQueue<Object> chunks) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            byte raw[] = new byte[FTProtocol.COMPRESSION_CHUNK_SIZE];
+            long position = offset;
+            long lengthOfFile = channel.size();
+            int bypassedChunks = 0;
+            int bypassLength = 1;
+            while (position < lengthOfFile) {
+                ByteBuffer buffer = ByteBuffer.wrap(raw, 0, (int) Math.min(raw.length, lengthOfFile - position));
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) == -1)
+                        throw new EOFException(file.getName() + " shrank during the upload");
+                }
+                int rawLength = buffer.position();
+                byte encoded[] = null;
+                if (bypassedChunks > 0) {
+                    bypassedChunks--;
+                } else {
+                    encoded = deflate(deflater, raw, rawLength);
+                    if (encoded == null) {
+                        // Incompressible, skip the next chunks too and back off further while it stays that way
+                        bypassedChunks = bypassLength;
+                        bypassLength = Math.min(bypassLength * 2, MAX_BYPASSED_CHUNKS);
+                    } else {
+                        bypassLength = 1;
+                    }
+                }
+                if (encoded == null)
+                    encoded = chunk(FTProtocol.CHUNK_STORED, raw, rawLength, rawLength);
+                chunks.put(encoded);
+                position += rawLength;
+            }
+            chunks.put(END_OF_FILE);
+        } catch (InterruptedException e) {
+            // The upload gave up, nothing left to do
+        } catch (IOException | RuntimeException e) {
+            try {
+                // Waits behind the chunks still queued, the upload thread takes them before it sees the failure
+                chunks.put(e instanceof IOException ? e : new IOException("Cannot compress " + file.getName(), e));
+            } catch (InterruptedException stopped) {
+                // The upload gave up meanwhile
+            }
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // Deflated chunk, or null when deflating does not save at least an eighth of the chunk
+    private static byte[] deflate(Deflater deflater, byte raw[], int rawLength) {
+        byte out[] = new byte[FTProtocol.CHUNK_HEADER_LENGTH + rawLength - rawLength / 8];
+        deflater.reset();
+        deflater.setInput(raw, 0, rawLength);
+        deflater.finish();
+        int encodedLength = 0;
+        int room = out.length - FTProtocol.CHUNK_HEADER_LENGTH;
+        while (!deflater.finished() && encodedLength < room) {
+            encodedLength += deflater.deflate(out, FTProtocol.CHUNK_HEADER_LENGTH + encodedLength,
+                    room - encodedLength);
+        }
+        if (!deflater.finished())
+            return null;
+        ByteBuffer.wrap(out).put(FTProtocol.CHUNK_DEFLATED).putInt(rawLength).putInt(encodedLength);
+        return Arrays.copyOf(out, FTProtocol.CHUNK_HEADER_LENGTH + encodedLength);
+    }
+
+    private static byte[] chunk(byte kind, byte payload[], int rawLength, int encodedLength) {
+        byte chunk[] = new byte[FTProtocol.CHUNK_HEADER_LENGTH + encodedLength];
+        ByteBuffer.wrap(chunk).put(kind).putInt(rawLength).putInt(encodedLength).put(payload, 0, encodedLength);
+        return chunk;
+    }
+}
@@ -0,0 +1,219 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The DelayProxy class emulates a slow, long network path on one machine, so
+ * transfers can be tried against a round trip time and a bottleneck rate
+ * without tc/netem or root. It forwards every connection it accepts to the
+ * server and holds the bytes of each direction for half the round trip
+ * time, after passing them through a {@link TokenBucket} at the bottleneck
+ * rate.
+ *
+ * The proxy terminates TCP on both sides, so the endpoints' socket buffers
+ * only govern the loopback hops to and from it: the header ack sees the
+ * emulated round trip and the goodput converges to the bottleneck rate, but
+ * the bytes in flight on the emulated path are bounded by the proxy's own
+ * queue, not by the endpoints' windows.
+ *
+ * Usage: java DelayProxy [--listen 5501] [--target localhost:5500]
+ *        [--rtt 50] [--rate 0]
+ *
+ * --rtt is the round trip time added in milliseconds and --rate the
+ * bottleneck in bytes per second for each direction, with a K, M or G
+ * suffix, 0 for unlimited.
+ */
+class DelayProxy extends Thread implements Closeable {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    // Bounds the bytes held per direction when the sender outruns the delay, 64 MB of full chunks
+    private static final int QUEUED_CHUNKS = 1024;
+
+    private ServerSocket serverSocket;
+    private String targetHost;
+    private int targetPort;
+    private long delayNanos;
+    private long rate;
+    private Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Opens the proxy's listening socket, {@link #start()} accepts
+     * connections.
+     *
+     * @param listenPort The port the proxy listens on.
+     * @param targetHost The server's host.
+     * @param targetPort The server's port.
+     * @param rttMillis  The round trip time added, half in each direction.
+     * @param rate       The bottleneck rate of each direction in bytes per
+     *                   second, 0 for unlimited.
+     */
+    DelayProxy(int listenPort, String targetHost, int targetPort, long rttMillis, long rate) throws IOException {
+        super("delay-proxy");
+        setDaemon(true);
+        this.serverSocket = new ServerSocket(listenPort);
+        this.targetHost = targetHost;
+        this.targetPort = targetPort;
+        this.delayNanos = TimeUnit.MILLISECONDS.toNanos(rttMillis) / 2;
+        this.rate = rate;
+    }
+
+    public static void main(String args[]) throws Exception {
+        int listenPort = 5501;
+        String target = "localhost:5500";
+        long rttMillis = 50;
+        long rate = 0;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String option = args[i];
+                if (option.equals("--help"))
+                    throw new IllegalArgumentException("Delaying TCP proxy for the file transfer server");
+                if (i + 1 >= args.length)
+                    throw new IllegalArgumentException("Missing value for " + option);
+                String value = args[++i];
+                switch (option) {
+                case "--listen":
+                    listenPort = Integer.parseInt(value);
+                    break;
+                case "--target":
+                    target = value;
+                    break;
+                case "--rtt":
+                    rttMillis = Long.parseLong(value);
+                    break;
+                case "--rate":
+                    rate = SizeDistribution.parseSize(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + option);
+                }
+            }
+            if (target.lastIndexOf(':') < 0)
+                throw new IllegalArgumentException("Target must be host:port, not " + target);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(
+                    "Usage: java DelayProxy [--listen port] [--target host:port] [--rtt ms] [--rate bytes/s]");
+            System.exit(2);
+        }
+        int colon = target.lastIndexOf(':');
+        DelayProxy proxy = new DelayProxy(listenPort, target.substring(0, colon),
+                Integer.parseInt(target.substring(colon + 1)), rttMillis, rate);
+        System.out.println("Forwarding port " + listenPort + " to " + target + " with " + rttMillis + " ms round trip"
+                + (rate > 0 ? " at " + rate + " bytes/s" : ""));
+        proxy.start();
+        proxy.join();
+    }
+
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            Socket client;
+            try {
+                client = serverSocket.accept();
+            } catch (IOException e) {
+                // Closed by close()
+                break;
+            }
+            try {
+                Socket server = new Socket(targetHost, targetPort);
+                client.setTcpNoDelay(true);
+                server.setTcpNoDelay(true);
+                sockets.add(client);
+                sockets.add(server);
+                AtomicInteger openDirections = new AtomicInteger(2);
+                forward(client, server, "up", openDirections);
+                forward(server, client, "down", openDirections);
+            } catch (IOException e) {
+                System.out.println("Cannot reach " + targetHost + ":" + targetPort + ": " + e);
+                closeQuietly(client);
+            }
+        }
+    }
+
+    /**
+     * Stops accepting and closes every forwarded connection.
+     */
+    public void close() throws IOException {
+        serverSocket.close();
+        for (Socket socket : sockets) {
+            closeQuietly(socket);
+        }
+    }
+
+    // Move the bytes of one direction: a reader takes the tokens of each chunk at the bottleneck rate and stamps it
+    // with the time it is due on the other side, a writer sends the chunks when they are due. The delay is the same
+    // for every chunk, so the queue stays in the order of the due times. The last direction to finish closes both
+    private void forward(Socket from, Socket to, String direction, AtomicInteger openDirections) {
+        LinkedBlockingQueue<Chunk> queue = new LinkedBlockingQueue<>(QUEUED_CHUNKS);
+        TokenBucket bottleneck = new TokenBucket(rate);
+        Thread reader = new Thread(() -> {
+            byte buffer[] = new byte[CHUNK_SIZE];
+            try {
+                InputStream is = from.getInputStream();
+                while (true) {
+                    int bytesReadCount = is.read(buffer);
+                    if (bytesReadCount == -1)
+                        break;
+                    bottleneck.acquire(bytesReadCount);
+                    queue.put(new Chunk(Arrays.copyOf(buffer, bytesReadCount), System.nanoTime() + delayNanos));
+                }
+                queue.put(new Chunk(null, System.nanoTime() + delayNanos));
+            } catch (IOException | InterruptedException e) {
+                closeQuietly(from);
+                closeQuietly(to);
+                // Wake the writer up, unless it is busy with a full queue and runs into the closed socket anyway
+                queue.offer(new Chunk(null, 0));
+            }
+        }, "delay-proxy-" + direction + "-reader");
+        Thread writer = new Thread(() -> {
+            try {
+                OutputStream os = to.getOutputStream();
+                while (true) {
+                    Chunk chunk = queue.take();
+                    long wait = chunk.due - System.nanoTime();
+                    if (wait > 0)
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    if (chunk.data == null) {
+                        // Pass the half close on, the other direction may still be busy
+                        if (!to.isClosed())
+                            to.shutdownOutput();
+                        break;
+                    }
+                    os.write(chunk.data);
+                }
+            } catch (IOException | InterruptedException e) {
+                closeQuietly(from);
+                closeQuietly(to);
+            }
+            if (openDirections.decrementAndGet() == 0) {
+                closeQuietly(from);
+                closeQuietly(to);
+                sockets.remove(from);
+                sockets.remove(to);
+            }
+        }, "delay-proxy-" + direction + "-writer");
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+        reader.start();
+        writer.start();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    // The bytes of one read, null for the end of the stream
+    private static class Chunk {
+        private byte data[];
+        private long due;
+
+        Chunk(byte data[], long due) {
+            this.data = data;
+            this.due = due;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+import java.io.*;
+import java.util.*;
+import java.net.*;
+
+/**
+ * The DirectorySync class finds the files of a directory tree the server
+ * does not hold yet. It hashes the tree in parallel into a
+ * {@link SyncManifest}, sends it with an {@link FTHeader#OP_SYNC} header and
+ * reads back the indexes of the entries that are missing on the server or
+ * differ from the server's copy. Those files are then uploaded as usual,
+ * named by their path below the directory, so the server rebuilds the tree
+ * under uploads.
+ */
+class DirectorySync {
+    private File root;
+    private String host;
+    private int portNumber;
+
+    DirectorySync(File root, String host, int portNumber) {
+        this.root = root;
+        this.host = host;
+        this.portNumber = portNumber;
+    }
+
+    /**
+     * Exchanges the manifest with the server. A server without sync support
+     * gets every file.
+     *
+     * @return The entries to upload.
+     */
+    ArrayList<ManifestEntry> findChangedFiles() throws IOException {
+        SyncManifest manifest = SyncManifest.build(root);
+        ArrayList<ManifestEntry> entries = manifest.getEntries();
+        if (FTConfig.protocolVersion < FTHeader.VERSION)
+            return entries;
+        byte encoded[] = manifest.toByteArray();
+        try (Socket socket = new Socket(host, portNumber)) {
+            OutputStream os = socket.getOutputStream();
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            // The server answers the manifest, not the header
+            new FTHeader(FTHeader.OP_SYNC, 0, encoded.length, root.getName()).write(os);
+            os.write(encoded);
+            os.flush();
+            byte status = FTProtocol.readStatus(dis);
+            if (status == FTProtocol.STATUS_UNSUPPORTED)
+                return entries;
+            RetryAfterException.check(status, dis, root.getName());
+            if (status != FTProtocol.STATUS_OK)
+                throw new IOException("Server refused to sync " + root.getName() + " with status " + status);
+            int count = dis.readInt();
+            ArrayList<ManifestEntry> changedFiles = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int index = dis.readInt();
+                if (index < 0 || index >= entries.size())
+                    throw new IOException("Server asked for unknown manifest entry " + index);
+                changedFiles.add(entries.get(index));
+            }
+            System.out.println("Sync of " + root.getName() + ": " + changedFiles.size() + " of " + entries.size()
+                    + " files changed, manifest " + encoded.length + " bytes");
+            return changedFiles;
+        }
+    }
+
+    /**
+     * Returns the local file of a manifest entry.
+     */
+    static File resolve(File root, ManifestEntry entry) {
+        return new File(root, entry.getPath().replace('/', File.separatorChar));
+    }
+
+    /**
+     * Returns the name the server saves a manifest entry under, the synced
+     * directory's name followed by the relative path.
+     */
+    static String remoteName(File root, ManifestEntry entry) {
+        return root.getName() + "/" + entry.getPath();
+    }
+}
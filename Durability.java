@@ -0,0 +1,56 @@
+import java.nio.channels.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.io.*;
+
+// Durability Class: Finalizes received files. Every upload is written under a temporary name next to its target and
+// renamed over it when complete, so readers see the old file or the whole new one. How durable that is before the
+// final ack depends on the mode: "none" leaves the data to the page cache, "file" syncs the data and the directory of
+// every file, and "group" hands the file to the GroupCommitter, which syncs the files that complete together in one
+// batch and their directories once per batch
+class Durability {
+    static final String NONE = "none";
+    static final String PER_FILE = "file";
+    static final String GROUP = "group";
+
+    // The temporary name of an upload of the target, unique per upload
+    static File temporaryFile(File target) {
+        return new File(target.getParentFile(), "." + target.getName() + "." + UUID.randomUUID() + ".part");
+    }
+
+    // Whether a file name has the form of a temporary name, no upload may take one
+    static boolean isTemporaryName(String name) {
+        return name.startsWith(".") && name.endsWith(".part");
+    }
+
+    // Replace the target with the completed data, returns once it is as durable as the mode asks. The channel is
+    // closed before the rename, some platforms cannot rename open files
+    static void commit(FileChannel data, File temporary, File target) throws IOException {
+        if (GROUP.equals(FTConfig.durability)) {
+            Storage.getInstance().volumeOf(target).getGroupCommitter().commit(data, temporary, target);
+            return;
+        }
+        boolean sync = PER_FILE.equals(FTConfig.durability);
+        if (sync) data.force(true);
+        data.close();
+        rename(temporary, target);
+        if (sync) syncDirectory(target.getParentFile());
+    }
+
+    static void rename(File temporary, File target) throws IOException {
+        Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        HotFileCache.getInstance().invalidate(target);
+    }
+
+    // Make a rename in the directory durable, not possible on every platform
+    static void syncDirectory(File directory) {
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Windows cannot open directories, its renames are journaled by NTFS
+        }
+    }
+}
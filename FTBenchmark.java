@@ -0,0 +1,637 @@
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The FTBenchmark class runs end-to-end benchmarks of the transfer code
+ * against an in-process server listening on port 5500. Received files are
+ * written to the uploads directory of the working directory.
+ *
+ * Usage: java FTBenchmark executors [uploads] [idleConnections]
+ *        java FTBenchmark stripes [fileSizeMB]
+ *        java FTBenchmark compression [fileSizeMB] [linkMbps]
+ *        java FTBenchmark checksum [fileSizeMB] [runs]
+ *        java FTBenchmark allocation [fileSizeMB] [uploads]
+ *        java FTBenchmark shaping [seconds]
+ *        java FTBenchmark downloads [clients] [fileSizeKB] [downloadsPerClient]
+ *        java FTBenchmark durability [clients] [filesPerClient] [fileSizeKB]
+ *        java FTBenchmark tuning [fileSizeMB] [rttMillis] [rateMBps]
+ */
+class FTBenchmark {
+    public static void main(String args[]) throws Exception {
+        String scenario = args.length > 0 ? args[0] : "executors";
+        new File("uploads").mkdirs();
+        if (scenario.equals("executors")) {
+            executors(intArg(args, 1, 2000), intArg(args, 2, 2000));
+        } else if (scenario.equals("stripes")) {
+            stripes(intArg(args, 1, 512));
+        } else if (scenario.equals("compression")) {
+            compression(intArg(args, 1, 64), intArg(args, 2, 1000));
+        } else if (scenario.equals("checksum")) {
+            checksum(intArg(args, 1, 1024), intArg(args, 2, 3));
+        } else if (scenario.equals("allocation")) {
+            allocation(intArg(args, 1, 64), intArg(args, 2, 20));
+        } else if (scenario.equals("shaping")) {
+            shaping(intArg(args, 1, 3));
+        } else if (scenario.equals("durability")) {
+            durability(intArg(args, 1, 32), intArg(args, 2, 50), intArg(args, 3, 16));
+        } else if (scenario.equals("tuning")) {
+            tuning(intArg(args, 1, 64), intArg(args, 2, 40), intArg(args, 3, 50));
+        } else if (scenario.equals("downloads")) {
+            downloads(intArg(args, 1, 200), intArg(args, 2, 256), intArg(args, 3, 20));
+        } else {
+            System.out.println("Unknown scenario: " + scenario);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Compares the platform and virtual thread execution modes: upload
+     * connections per second for small files, and the memory and platform
+     * threads held by idle connections that are stuck in the header read.
+     */
+    static void executors(int uploads, int idleConnections) throws Exception {
+        File payload = createPayload(1024);
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-10s %14s %18s %18s %16s%n", "mode", "connections/s", "heap/conn (bytes)",
+                "rss/conn (bytes)", "platform threads"));
+        for (String mode : new String[] { TransferExecutors.PLATFORM, TransferExecutors.VIRTUAL }) {
+            FTServerF server = startServer(mode);
+
+            ExecutorService clients = TransferExecutors.newExecutor(mode);
+            CountDownLatch done = new CountDownLatch(uploads);
+            long start = System.nanoTime();
+            for (int i = 0; i < uploads; i++) {
+                FileUploadThread fut = new FileUploadThread(e -> {
+                }, String.valueOf(i), payload, "localhost", 5500);
+                clients.execute(() -> {
+                    fut.run();
+                    done.countDown();
+                });
+            }
+            done.await();
+            double connectionsPerSecond = uploads / ((System.nanoTime() - start) / 1e9);
+            clients.shutdown();
+
+            // Idle connections: send part of the header and keep the socket open
+            long heapBefore = usedHeap();
+            long rssBefore = residentSetSize();
+            ArrayList<Socket> sockets = new ArrayList<>();
+            for (int i = 0; i < idleConnections; i++) {
+                Socket socket = new Socket("localhost", 5500);
+                socket.getOutputStream().write(new byte[16]);
+                sockets.add(socket);
+            }
+            Thread.sleep(1000);
+            long heapPerConnection = (usedHeap() - heapBefore) / idleConnections;
+            long rssPerConnection = (residentSetSize() - rssBefore) / idleConnections;
+            int platformThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+
+            report.append(String.format("%-10s %14.0f %18d %18d %16d%n", mode, connectionsPerSecond, heapPerConnection,
+                    rssPerConnection, platformThreads));
+            server.shutdown();
+            Thread.sleep(500);
+        }
+        if (!TransferExecutors.isVirtualThreadSupported()) {
+            report.append("Note: this JVM has no virtual threads, the virtual row ran on platform threads.\n");
+        }
+        System.out.print(report);
+    }
+
+    /**
+     * Measures end-to-end throughput of one large upload striped over 1, 2, 4
+     * and 8 connections.
+     */
+    static void stripes(int fileSizeMB) throws Exception {
+        File payload = createPayload(fileSizeMB * 1024 * 1024);
+        FTServerF server = startServer(FTConfig.executorMode);
+        FTConfig.stripeThreshold = 0;
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-8s %12s %10s%n", "stripes", "seconds", "MB/s"));
+        for (int stripeCount : new int[] { 1, 2, 4, 8 }) {
+            FTConfig.stripeCount = stripeCount;
+            long start = System.nanoTime();
+            new FileUploadThread(e -> {
+            }, "stripes", payload, "localhost", 5500).run();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            report.append(String.format("%-8d %12.3f %10.1f%n", stripeCount, seconds, fileSizeMB / seconds));
+        }
+        server.shutdown();
+        System.out.print(report);
+    }
+
+    /**
+     * Compares plain and compressed uploads of text, log, random and mixed
+     * corpora: compression ratio, throughput of the compression stage alone,
+     * loopback throughput, and the throughput to expect on a link of the
+     * given speed, which is the slower of the pipeline and the link carrying
+     * the compressed bytes.
+     */
+    static void compression(int fileSizeMB, int linkMbps) throws Exception {
+        int size = fileSizeMB * 1024 * 1024;
+        double linkMBps = linkMbps / 8.0;
+        FTServerF server = startServer(FTConfig.executorMode);
+        FTConfig.compressionThreshold = 0;
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-8s %7s %12s %14s %14s %16s %16s%n", "corpus", "ratio", "stage MB/s",
+                "plain MB/s", "deflate MB/s", "plain @link MB/s", "deflate @link"));
+        for (String corpus : new String[] { "text", "log", "random", "mixed" }) {
+            File payload = createCorpus(corpus, size);
+
+            CountingOutputStream wire = new CountingOutputStream();
+            long start = System.nanoTime();
+            new CompressionPipeline(payload, 0, null).send(wire);
+            double stageMBps = fileSizeMB / ((System.nanoTime() - start) / 1e9);
+            double ratio = (double) wire.count / size;
+
+            double plainMBps = timeUpload(payload, false, fileSizeMB);
+            double deflateMBps = timeUpload(payload, true, fileSizeMB);
+            report.append(String.format("%-8s %7.3f %12.1f %14.1f %14.1f %16.1f %16.1f%n", corpus, ratio, stageMBps,
+                    plainMBps, deflateMBps, Math.min(plainMBps, linkMBps), Math.min(deflateMBps, linkMBps / ratio)));
+            payload.delete();
+        }
+        report.append("Link speed: " + linkMbps + " Mbit/s\n");
+        server.shutdown();
+        System.out.print(report);
+    }
+
+    /**
+     * Measures the overhead of the end-to-end checksum: the raw speed of each
+     * algorithm over a cached file, and loopback upload throughput without a
+     * checksum, with CRC32C and with SHA-256, for the zero-copy and the
+     * buffered data paths. Each upload figure is the best of the runs.
+     */
+    static void checksum(int fileSizeMB, int runs) throws Exception {
+        File payload = createPayload(fileSizeMB * 1024 * 1024);
+        FTServerF server = startServer(FTConfig.executorMode);
+        FTConfig.resume = false;
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-8s %12s %16s %16s %10s%n", "checksum", "hash MB/s", "zero-copy MB/s",
+                "buffered MB/s", "overhead"));
+        double baseline = 0;
+        for (String name : new String[] { "none", "crc32c", "sha256" }) {
+            FTConfig.checksum = StreamChecksum.algorithm(name);
+            double hashMBps = 0;
+            if (FTConfig.checksum != FTProtocol.CHECKSUM_NONE) {
+                long start = System.nanoTime();
+                StreamChecksum.computeAsync(payload, 0, FTConfig.checksum).join();
+                hashMBps = fileSizeMB / ((System.nanoTime() - start) / 1e9);
+            }
+            double zeroCopyMBps = 0;
+            double bufferedMBps = 0;
+            for (int run = 0; run < runs; run++) {
+                FTConfig.zeroCopy = true;
+                zeroCopyMBps = Math.max(zeroCopyMBps, timeUpload(payload, false, fileSizeMB));
+                FTConfig.zeroCopy = false;
+                bufferedMBps = Math.max(bufferedMBps, timeUpload(payload, false, fileSizeMB));
+            }
+            if (baseline == 0)
+                baseline = zeroCopyMBps;
+            report.append(String.format("%-8s %12.0f %16.1f %16.1f %9.1f%%%n", name, hashMBps, zeroCopyMBps,
+                    bufferedMBps, 100 * (baseline - zeroCopyMBps) / baseline));
+        }
+        report.append("Overhead is relative to the zero-copy upload without a checksum.\n");
+        server.shutdown();
+        System.out.print(report);
+    }
+
+    /**
+     * Measures the heap allocated by the server's buffered receive path per
+     * MB received, with and without the write-behind stage, and the
+     * collections it caused. The uploads come from a minimal client that
+     * sends the body from one reused direct buffer, so nearly every
+     * allocation counted is the server's. A warm-up round runs first.
+     */
+    static void allocation(int fileSizeMB, int uploads) throws Exception {
+        FTServerF server = startServer(FTConfig.executorMode);
+        FTConfig.zeroCopy = false;
+        FTConfig.checksum = FTProtocol.CHECKSUM_NONE;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-14s %14s %16s %12s %10s%n", "receive path", "MB/s", "allocated/MB", "GC count",
+                "GC ms"));
+        for (boolean writeBehind : new boolean[] { false, true }) {
+            FTConfig.writeBehind = writeBehind;
+            for (int i = 0; i < 3; i++) {
+                rawUpload(fileSizeMB);
+            }
+            long allocatedBefore = allocatedBytes(threads);
+            long[] gcBefore = gcCountAndTime();
+            long start = System.nanoTime();
+            for (int i = 0; i < uploads; i++) {
+                rawUpload(fileSizeMB);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            long allocatedPerMB = (allocatedBytes(threads) - allocatedBefore) / ((long) fileSizeMB * uploads);
+            long[] gcAfter = gcCountAndTime();
+            report.append(String.format("%-14s %14.1f %16d %12d %10d%n", writeBehind ? "write-behind" : "inline",
+                    (double) fileSizeMB * uploads / seconds, allocatedPerMB, gcAfter[0] - gcBefore[0],
+                    gcAfter[1] - gcBefore[1]));
+        }
+        report.append("allocated/MB is in bytes, summed over every thread of the process.\n");
+        server.shutdown();
+        System.out.print(report);
+    }
+
+    /**
+     * Measures how closely the rate limits are kept. The first part drives a
+     * single {@link TokenBucket} from 1 MB/s to 10 Gbit/s with burst sized
+     * chunks and no I/O, the second uploads through the server with its
+     * global limit set, from 1 to 100 MB/s. Each run lasts about the given
+     * number of seconds.
+     */
+    static void shaping(int seconds) throws Exception {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-8s %14s %14s %8s%n", "path", "limit MB/s", "actual MB/s", "error"));
+        long[] bucketRates = { 1L << 20, 10L << 20, 100L << 20, 1L << 30, 1_250_000_000L };
+        for (long rate : bucketRates) {
+            TokenBucket bucket = new TokenBucket(rate);
+            long chunk = bucket.getBurst();
+            long total = rate * seconds;
+            long start = System.nanoTime();
+            for (long sent = 0; sent < total; sent += chunk) {
+                bucket.acquire(Math.min(chunk, total - sent));
+            }
+            appendShaping(report, "bucket", rate, total / ((System.nanoTime() - start) / 1e9));
+        }
+        FTServerF server = startServer(FTConfig.executorMode);
+        FTConfig.zeroCopy = true;
+        // The first connection pays for class loading and compilation, keep it out of the figures
+        rawUpload(64);
+        for (long rate : new long[] { 1L << 20, 10L << 20, 100L << 20 }) {
+            BandwidthShaper.getInstance().setGlobalRate(rate);
+            int fileSizeMB = (int) Math.max(1, rate * seconds >> 20);
+            long start = System.nanoTime();
+            rawUpload(fileSizeMB);
+            appendShaping(report, "server", rate, (fileSizeMB << 20) / ((System.nanoTime() - start) / 1e9));
+        }
+        BandwidthShaper.getInstance().setGlobalRate(0);
+        report.append("error is the actual rate relative to the limit.\n");
+        server.shutdown();
+        System.out.print(report);
+    }
+
+    /**
+     * Measures fan-out downloads: the given number of clients fetch the same
+     * file at once, each several times, with the server's hot-file cache off
+     * and on. Reports downloads per second, throughput and the cache hits.
+     */
+    static void downloads(int clients, int fileSizeKB, int downloadsPerClient) throws Exception {
+        File release = Storage.getInstance().place("release.bin");
+        Files.copy(createPayload(fileSizeKB * 1024).toPath(), release.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        FTServerF server = startServer(FTConfig.executorMode);
+        new File("downloads").mkdirs();
+        // Warm up the client and server code paths so the first round is not penalized
+        for (int i = 0; i < 200; i++) {
+            new FileDownloadThread(null, "", "release.bin", new File("downloads", "release.bin"), "localhost", 5500)
+                    .download();
+        }
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-10s %14s %10s %10s%n", "cache", "downloads/s", "MB/s", "hits"));
+        for (boolean cached : new boolean[] { false, true }) {
+            HotFileCache cache = HotFileCache.getInstance();
+            cache.setCapacity(cached ? FTConfig.hotFileCacheSize : 0);
+            long hitsBefore = cache.getHits();
+            ExecutorService executor = Executors.newFixedThreadPool(clients);
+            ArrayList<Future<?>> results = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int client = 0; client < clients; client++) {
+                File target = new File("downloads", "release-" + client + ".bin");
+                results.add(executor.submit(() -> {
+                    for (int i = 0; i < downloadsPerClient; i++) {
+                        new FileDownloadThread(null, "", "release.bin", target, "localhost", 5500).download();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            executor.shutdown();
+            int downloads = clients * downloadsPerClient;
+            report.append(String.format("%-10s %14.0f %10.1f %10d%n", cached ? "on" : "off", downloads / seconds,
+                    downloads * (fileSizeKB / 1024.0) / seconds, cache.getHits() - hitsBefore));
+        }
+        report.append("Every download is a length probe and a fetch, two connections.\n");
+        server.shutdown();
+        System.out.print(report);
+    }
+
+    /**
+     * Measures the cost of each durability mode: the given number of clients
+     * upload small files at once, and every upload counts once the server
+     * acknowledged it. For group commit the average batch size is reported
+     * too.
+     */
+    static void durability(int clients, int filesPerClient, int fileSizeKB) throws Exception {
+        FTServerF server = startServer(FTConfig.executorMode);
+        FTConfig.checksum = FTProtocol.CHECKSUM_NONE;
+        byte body[] = new byte[fileSizeKB * 1024];
+        new Random(1).nextBytes(body);
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-8s %12s %10s %12s%n", "mode", "files/s", "MB/s", "files/sync"));
+        // Warm up the upload path so the first mode is not penalized
+        for (int i = 0; i < 500; i++) {
+            smallUpload("durability-warmup.bin", body);
+        }
+        for (String mode : new String[] { Durability.NONE, Durability.PER_FILE, Durability.GROUP }) {
+            FTConfig.durability = mode;
+            long[] before = groupCommits();
+            ExecutorService executor = Executors.newFixedThreadPool(clients);
+            ArrayList<Future<?>> results = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int client = 0; client < clients; client++) {
+                int clientId = client;
+                results.add(executor.submit(() -> {
+                    for (int i = 0; i < filesPerClient; i++) {
+                        smallUpload("durability-" + clientId + "-" + i + ".bin", body);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            executor.shutdown();
+            long[] after = groupCommits();
+            long syncs = after[0] - before[0];
+            int files = clients * filesPerClient;
+            String filesPerSync = mode.equals(Durability.GROUP) ? String.format("%.1f", (double) (after[1] - before[1])
+                    / Math.max(1, syncs)) : mode.equals(Durability.PER_FILE) ? "1.0" : "-";
+            report.append(String.format("%-8s %12.0f %10.1f %12s%n", mode, files / seconds,
+                    files * (fileSizeKB / 1024.0) / seconds, filesPerSync));
+        }
+        FTConfig.durability = Durability.NONE;
+        report.append(String.format("fsync of one file takes %.0f us (median) on this disk.%n", fsyncMicros(body)));
+        report.append("An upload counts when its final ack arrives; \"none\" leaves the data in the page cache.\n");
+        server.shutdown();
+        System.out.print(report);
+    }
+
+    /**
+     * Compares uploads with fixed 4 KB chunks on both sides, the buffered
+     * client and the server's plain receive loop, against the same uploads
+     * with auto-tuning, which starts from 4 KB. The paths are loopback and a
+     * {@link DelayProxy} adding the given round trip time, once unlimited
+     * and once at the given bottleneck rate. Each figure is the best of two
+     * runs; the last column is where the tuning of the client ended.
+     */
+    static void tuning(int fileSizeMB, int rttMillis, int rateMBps) throws Exception {
+        File payload = createPayload(fileSizeMB * 1024 * 1024);
+        FTServerF server = startServer(FTConfig.executorMode);
+        FTConfig.zeroCopy = false;
+        FTConfig.writeBehind = false;
+        FTConfig.resume = false;
+        FTConfig.readAheadChunkSize = TransferTuner.MIN_CHUNK_SIZE;
+        FTConfig.receiveChunkSize = TransferTuner.MIN_CHUNK_SIZE;
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-22s %12s %12s %8s  %s%n", "path", "4 KB MB/s", "tuned MB/s", "gain",
+                "client tuning"));
+        String paths[] = { "loopback", rttMillis + " ms", rttMillis + " ms, " + rateMBps + " MB/s" };
+        long rates[] = { 0, 0, rateMBps * 1024L * 1024 };
+        for (int i = 0; i < paths.length; i++) {
+            DelayProxy proxy = i == 0 ? null : new DelayProxy(5501, "localhost", 5500, rttMillis, rates[i]);
+            if (proxy != null)
+                proxy.start();
+            int port = proxy == null ? 5500 : 5501;
+            double fixedMBps = 0;
+            double tunedMBps = 0;
+            String tuning = "";
+            for (int run = 0; run < 2; run++) {
+                FTConfig.autoTune = false;
+                fixedMBps = Math.max(fixedMBps, timeTunedUpload(payload, port, fileSizeMB).getKey());
+                FTConfig.autoTune = true;
+                Map.Entry<Double, String> tuned = timeTunedUpload(payload, port, fileSizeMB);
+                if (tuned.getKey() > tunedMBps) {
+                    tunedMBps = tuned.getKey();
+                    tuning = tuned.getValue();
+                }
+            }
+            FTConfig.autoTune = false;
+            if (proxy != null)
+                proxy.close();
+            report.append(String.format("%-22s %12.1f %12.1f %7.0f%%  %s%n", paths[i], fixedMBps, tunedMBps,
+                    100 * (tunedMBps - fixedMBps) / fixedMBps, tuning));
+        }
+        report.append("The proxy ends TCP on both sides, socket buffers only matter beyond the kernel's autotuning.\n");
+        server.shutdown();
+        System.out.print(report);
+    }
+
+    // One upload through the given port, its throughput and where the client's tuning ended
+    static Map.Entry<Double, String> timeTunedUpload(File payload, int port, int fileSizeMB) throws Exception {
+        FileUploadThread upload = new FileUploadThread(e -> {
+        }, "tuning", payload, "localhost", port);
+        long start = System.nanoTime();
+        upload.upload();
+        double mbps = fileSizeMB / ((System.nanoTime() - start) / 1e9);
+        return new AbstractMap.SimpleEntry<>(mbps, upload.getTuner().toString());
+    }
+
+    // The group commit batches and files of every volume together
+    static long[] groupCommits() {
+        long[] total = new long[2];
+        for (Volume volume : Storage.getInstance().getVolumes()) {
+            long[] batchesAndCommits = volume.getGroupCommitter().getBatchesAndCommits();
+            total[0] += batchesAndCommits[0];
+            total[1] += batchesAndCommits[1];
+        }
+        return total;
+    }
+
+    // The median time to sync a freshly written file of the given content, group commit pays off as it grows
+    static double fsyncMicros(byte body[]) throws IOException {
+        long times[] = new long[101];
+        File file = new File("uploads", "fsync.bin");
+        for (int i = 0; i < times.length; i++) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                channel.write(ByteBuffer.wrap(body));
+                long start = System.nanoTime();
+                channel.force(true);
+                times[i] = System.nanoTime() - start;
+            }
+        }
+        file.delete();
+        Arrays.sort(times);
+        return times[times.length / 2] / 1000.0;
+    }
+
+    // One upload of the given bytes, without header ack or checksum
+    static void smallUpload(String name, byte body[]) throws IOException {
+        try (Socket socket = new Socket("localhost", 5500)) {
+            socket.setTcpNoDelay(true);
+            OutputStream os = socket.getOutputStream();
+            os.write(new FTHeader(FTHeader.OP_UPLOAD, 0, body.length, name).toByteArray());
+            os.write(body);
+            os.flush();
+            byte status = FTProtocol.readStatus(socket.getInputStream());
+            if (status != FTProtocol.STATUS_OK)
+                throw new IOException("Upload failed with status " + status);
+        }
+    }
+
+    private static void appendShaping(StringBuilder report, String path, long rate, double actual) {
+        report.append(String.format("%-8s %14.1f %14.1f %7.2f%%%n", path, rate / 1048576.0, actual / 1048576.0,
+                100 * (actual - rate) / rate));
+    }
+
+    // One upload of zeros from a reused direct buffer, without header ack or checksum
+    private static ByteBuffer rawBody;
+
+    static void rawUpload(int fileSizeMB) throws IOException {
+        if (rawBody == null)
+            rawBody = ByteBuffer.allocateDirect(1024 * 1024);
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", 5500))) {
+            Socket socket = channel.socket();
+            new FTHeader(FTHeader.OP_UPLOAD, 0, fileSizeMB * 1024L * 1024, "allocation.bin")
+                    .write(socket.getOutputStream());
+            for (int i = 0; i < fileSizeMB; i++) {
+                rawBody.clear();
+                while (rawBody.hasRemaining()) {
+                    channel.write(rawBody);
+                }
+            }
+            byte status = FTProtocol.readStatus(socket.getInputStream());
+            if (status != FTProtocol.STATUS_OK)
+                throw new IOException("Upload failed with status " + status);
+        }
+    }
+
+    static long allocatedBytes(com.sun.management.ThreadMXBean threads) {
+        long total = 0;
+        for (long allocated : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (allocated > 0)
+                total += allocated;
+        }
+        return total;
+    }
+
+    static long[] gcCountAndTime() {
+        long[] countAndTime = new long[2];
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            countAndTime[0] += gc.getCollectionCount();
+            countAndTime[1] += gc.getCollectionTime();
+        }
+        return countAndTime;
+    }
+
+    static double timeUpload(File payload, boolean compression, int fileSizeMB) {
+        FTConfig.compression = compression;
+        long start = System.nanoTime();
+        new FileUploadThread(e -> {
+        }, "compression", payload, "localhost", 5500).run();
+        return fileSizeMB / ((System.nanoTime() - start) / 1e9);
+    }
+
+    // Synthetic corpora: CSV like text, repetitive log lines, random bytes, and a third of each
+    static File createCorpus(String corpus, int size) throws IOException {
+        if (corpus.equals("random")) return createPayload(size);
+        File file = File.createTempFile("ftbench-" + corpus, ".bin");
+        file.deleteOnExit();
+        Random random = new Random(42);
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(file))) {
+            long written = 0;
+            byte noise[] = new byte[4096];
+            String levels[] = { "INFO", "DEBUG", "WARN", "ERROR" };
+            for (long row = 0; written < size; row++) {
+                String kind = corpus.equals("mixed") ? new String[] { "text", "log", "random" }[(int) (written * 3 / size)]
+                        : corpus;
+                byte line[];
+                if (kind.equals("text")) {
+                    line = (row + "," + random.nextInt(100000) + ",customer-" + random.nextInt(5000) + ","
+                            + String.format("%.2f", random.nextDouble() * 1000) + ",EUR\n").getBytes();
+                } else if (kind.equals("log")) {
+                    line = ("2024-01-01T00:00:" + (row % 60) + " " + levels[random.nextInt(4)]
+                            + " [worker-" + random.nextInt(16) + "] Request " + row + " completed in "
+                            + random.nextInt(500) + " ms\n").getBytes();
+                } else {
+                    random.nextBytes(noise);
+                    line = noise;
+                }
+                int n = (int) Math.min(line.length, size - written);
+                os.write(line, 0, n);
+                written += n;
+            }
+        }
+        return file;
+    }
+
+    // Output stream that only counts the bytes written to it
+    static class CountingOutputStream extends OutputStream {
+        long count;
+
+        public void write(int b) {
+            count++;
+        }
+
+        public void write(byte b[], int off, int len) {
+            count += len;
+        }
+    }
+
+    static FTServerF startServer(String executorMode) throws Exception {
+        FTServerF server = new FTServerF(message -> {
+        }, executorMode);
+        server.start();
+        awaitPort(5500);
+        return server;
+    }
+
+    static void awaitPort(int port) throws Exception {
+        for (int i = 0; i < 100; i++) {
+            try (Socket probe = new Socket()) {
+                probe.connect(new InetSocketAddress("localhost", port), 100);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IOException("Server did not start listening on port " + port);
+    }
+
+    static File createPayload(int size) throws IOException {
+        File file = File.createTempFile("ftbench", ".bin");
+        file.deleteOnExit();
+        byte bytes[] = new byte[size];
+        new Random(42).nextBytes(bytes);
+        Files.write(file.toPath(), bytes);
+        return file;
+    }
+
+    static long usedHeap() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // Resident set size of the process in bytes, 0 where /proc is not available
+    static long residentSetSize() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException e) {
+            // Not on Linux
+        }
+        return 0;
+    }
+
+    static int intArg(String args[], int index, int defaultValue) {
+        return args.length > index ? Integer.parseInt(args[index]) : defaultValue;
+    }
+}
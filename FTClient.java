@@ -1,93 +1,11 @@
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.awt.*;
 import java.awt.event.*;
 import javax.swing.*;
 import javax.swing.table.*;
-import java.net.*;
-
-/**
- * The FileUploadEvent class represents an event related to file uploads. It
- * includes information about the uploader, file, and bytes uploaded.
- */
-class FileUploadEvent {
-    private String uploaderId;
-    private File file;
-    private long numberOfBytesUploaded;
-
-    public FileUploadEvent() {
-        this.uploaderId = null;
-        this.file = null;
-        this.numberOfBytesUploaded = 0;
-    }
-
-    /**
-     * Sets the uploader's ID for the event.
-     *
-     * @param uploaderId The unique uploader ID.
-     */
-    public void setUploaderId(String uploaderId) {
-        this.uploaderId = uploaderId;
-    }
-
-    /**
-     * Gets the uploader's ID for the event.
-     *
-     * @return The uploader's ID.
-     */
-    public String getUploaderId() {
-        return this.uploaderId;
-    }
-
-    /**
-     * Sets the file associated with the event.
-     *
-     * @param file The uploaded file.
-     */
-    public void setFile(File file) {
-        this.file = file;
-    }
-
-    /**
-     * Gets the file associated with the event.
-     *
-     * @return The uploaded file.
-     */
-    public File getFile() {
-        return this.file;
-    }
-
-    /**
-     * Sets the number of bytes uploaded for the event.
-     *
-     * @param numberOfBytesUploaded The number of bytes uploaded.
-     */
-    public void setNumberOfBytesUploaded(long numberOfBytesUploaded) {
-        this.numberOfBytesUploaded = numberOfBytesUploaded;
-    }
-
-    /**
-     * Gets the number of bytes uploaded for the event.
-     *
-     * @return The number of bytes uploaded.
-     */
-    public long getNumberOfBytesUploaded() {
-        return this.numberOfBytesUploaded;
-    }
-}
-
-/**
- * The FileUploadListener interface defines methods to handle file upload
- * status changes.
- */
-interface FileUploadListener {
-    /**
-     * Handles a file upload status change event.
-     *
-     * @param fileUploadEvent The file upload event.
-     */
-    public void fileUploadStatusChanged(FileUploadEvent fileUploadEvent);
-}
+import java.nio.file.*;
 
 /**
  * The FileModel class extends AbstractTableModel and represents the model for
@@ -140,6 +58,197 @@ class FileModel extends AbstractTableModel {
         this.files.add(file);
         fireTableDataChanged();
     }
+
+    /**
+     * Appends several files with a single table event.
+     *
+     * @param files The files to add.
+     */
+    public void addAll(java.util.List<File> files) {
+        if (files.isEmpty())
+            return;
+        int firstRow = this.files.size();
+        this.files.addAll(files);
+        fireTableRowsInserted(firstRow, this.files.size() - 1);
+    }
+}
+
+/**
+ * The UploadTableModel class extends AbstractTableModel and represents the
+ * model of the upload view, one row per upload with its state and progress.
+ * Rows are plain objects drawn by the table's renderers, so only the visible
+ * rows are realized as components. State changes and the progress counters
+ * polled by {@link #refresh()} only mark rows dirty, and the table is told
+ * about all of them in one event per refresh.
+ */
+class UploadTableModel extends AbstractTableModel {
+    private static final long serialVersionUID = 1L;
+
+    private ArrayList<UploadRow> rows;
+    private HashMap<String, UploadRow> rowsById;
+    private LinkedHashSet<UploadRow> activeRows;
+    private int firstDirtyRow;
+    private int lastDirtyRow;
+
+    UploadTableModel() {
+        this.rows = new ArrayList<>();
+        this.rowsById = new HashMap<>();
+        this.activeRows = new LinkedHashSet<>();
+        this.firstDirtyRow = Integer.MAX_VALUE;
+        this.lastDirtyRow = -1;
+    }
+
+    public int getRowCount() {
+        return this.rows.size();
+    }
+
+    public int getColumnCount() {
+        return 4;
+    }
+
+    public String getColumnName(int c) {
+        if (c == 0)
+            return "S.No";
+        else if (c == 1)
+            return "File";
+        else if (c == 2)
+            return "Status";
+        else
+            return "Progress";
+    }
+
+    public Class<?> getColumnClass(int c) {
+        if (c == 0 || c == 3)
+            return Integer.class;
+        else
+            return String.class;
+    }
+
+    public boolean isCellEditable(int r, int c) {
+        return false;
+    }
+
+    public Object getValueAt(int r, int c) {
+        UploadRow row = this.rows.get(r);
+        if (c == 0)
+            return (r + 1);
+        else if (c == 1)
+            return row.upload.getFile().getAbsolutePath();
+        else if (c == 2)
+            return row.status.getLabel();
+        else
+            return row.getPercentage();
+    }
+
+    /**
+     * Appends a batch of uploads with a single table event.
+     *
+     * @param uploads The uploads to show.
+     * @param status  The state they start in.
+     */
+    public void addAll(java.util.List<? extends TrackedTransfer> uploads, FileUploadStatus status) {
+        if (uploads.isEmpty())
+            return;
+        int firstRow = this.rows.size();
+        for (TrackedTransfer upload : uploads) {
+            UploadRow row = new UploadRow(upload, this.rows.size(), status);
+            this.rows.add(row);
+            this.rowsById.put(upload.getId(), row);
+            if (status.isActive())
+                this.activeRows.add(row);
+        }
+        fireTableRowsInserted(firstRow, this.rows.size() - 1);
+    }
+
+    /**
+     * Records a new state of an upload. Only uploads in the uploading state
+     * have their counters polled.
+     *
+     * @param uploaderId The id of the upload.
+     * @param status     The new state.
+     */
+    public void setStatus(String uploaderId, FileUploadStatus status) {
+        UploadRow row = this.rowsById.get(uploaderId);
+        if (row == null)
+            return;
+        row.status = status;
+        row.bytesShown = row.upload.getBytesTransferred();
+        if (status.isActive())
+            this.activeRows.add(row);
+        else
+            this.activeRows.remove(row);
+        markDirty(row.index);
+    }
+
+    /**
+     * Reads the counters of the active uploads and tells the table about
+     * every row that changed since the previous refresh.
+     */
+    public void refresh() {
+        for (UploadRow row : this.activeRows) {
+            long bytesUploaded = row.upload.getBytesTransferred();
+            if (bytesUploaded != row.bytesShown) {
+                row.bytesShown = bytesUploaded;
+                markDirty(row.index);
+            }
+        }
+        if (this.lastDirtyRow >= 0) {
+            fireTableRowsUpdated(this.firstDirtyRow, this.lastDirtyRow);
+            this.firstDirtyRow = Integer.MAX_VALUE;
+            this.lastDirtyRow = -1;
+        }
+    }
+
+    private void markDirty(int index) {
+        this.firstDirtyRow = Math.min(this.firstDirtyRow, index);
+        this.lastDirtyRow = Math.max(this.lastDirtyRow, index);
+    }
+
+    // One upload as shown in the table
+    private static class UploadRow {
+        TrackedTransfer upload;
+        int index;
+        long length;
+        FileUploadStatus status;
+        long bytesShown;
+
+        UploadRow(TrackedTransfer upload, int index, FileUploadStatus status) {
+            this.upload = upload;
+            this.index = index;
+            this.length = -1;
+            this.status = status;
+        }
+
+        // The length is read when the row is first drawn, adding a large batch does not stat every file. A download
+        // learns its length from the server, until then it shows no progress
+        int getPercentage() {
+            if (length == -1)
+                length = upload.getLength();
+            if (status.isDone() || (length > 0 && bytesShown >= length))
+                return 100;
+            return length <= 0 ? 0 : (int) (bytesShown * 100 / length);
+        }
+    }
+}
+
+/**
+ * The ProgressCellRenderer class draws the progress column of the upload
+ * table. A single progress bar is shared by every cell, the table stamps it
+ * once for each visible row.
+ */
+class ProgressCellRenderer extends JProgressBar implements TableCellRenderer {
+    private static final long serialVersionUID = 1L;
+
+    ProgressCellRenderer() {
+        super(0, 100);
+        setStringPainted(true);
+    }
+
+    public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected, boolean hasFocus,
+            int row, int column) {
+        setValue((Integer) value);
+        return this;
+    }
 }
 
 /**
@@ -152,6 +261,7 @@ class FTClientFrame extends JFrame {
     private int portNumber;
     private FileSelectionPanel fileSelectionPanel;
     private FileUploadViewPanel fileUploadViewPanel;
+    private FileDownloadViewPanel fileDownloadViewPanel;
     private Container container;
 
     FTClientFrame(String host, int portNumber) {
@@ -159,10 +269,16 @@ class FTClientFrame extends JFrame {
         this.host = host;
         fileSelectionPanel = new FileSelectionPanel();
         fileUploadViewPanel = new FileUploadViewPanel();
+        fileDownloadViewPanel = new FileDownloadViewPanel();
+        JPanel uploadPanel = new JPanel(new GridLayout(1, 2));
+        uploadPanel.add(fileSelectionPanel);
+        uploadPanel.add(fileUploadViewPanel);
+        JTabbedPane tabbedPane = new JTabbedPane();
+        tabbedPane.addTab("Upload", uploadPanel);
+        tabbedPane.addTab("Download", fileDownloadViewPanel);
         container = getContentPane();
-        container.setLayout(new GridLayout(1, 2));
-        container.add(fileSelectionPanel);
-        container.add(fileUploadViewPanel);
+        container.setLayout(new BorderLayout());
+        container.add(tabbedPane, BorderLayout.CENTER);
         setSize(900, 600);
         setLocation(10, 20);
         setVisible(true);
@@ -199,10 +315,31 @@ class FTClientFrame extends JFrame {
         public void actionPerformed(ActionEvent ev) {
             JFileChooser jfc = new JFileChooser();
             jfc.setCurrentDirectory(new File("."));
+            jfc.setMultiSelectionEnabled(true);
+            jfc.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
             int selectedOption = jfc.showOpenDialog(this);
             if (selectedOption == jfc.APPROVE_OPTION) {
-                File selectedFile = jfc.getSelectedFile();
-                model.add(selectedFile);
+                File selectedFiles[] = jfc.getSelectedFiles();
+                // Selected directories are walked off the event dispatch thread, they may hold many files
+                new SwingWorker<ArrayList<File>, Void>() {
+                    protected ArrayList<File> doInBackground() throws IOException {
+                        ArrayList<File> regularFiles = new ArrayList<>();
+                        for (File selectedFile : selectedFiles) {
+                            try (java.util.stream.Stream<Path> paths = Files.walk(selectedFile.toPath())) {
+                                paths.filter(Files::isRegularFile).forEach(path -> regularFiles.add(path.toFile()));
+                            }
+                        }
+                        return regularFiles;
+                    }
+
+                    protected void done() {
+                        try {
+                            model.addAll(get());
+                        } catch (InterruptedException | ExecutionException e) {
+                            JOptionPane.showMessageDialog(FTClientFrame.this, "Cannot add files: " + e.getCause());
+                        }
+                    }
+                }.execute();
             }
         }
     }
@@ -213,17 +350,42 @@ class FTClientFrame extends JFrame {
      */
     class FileUploadViewPanel extends JPanel implements ActionListener, FileUploadListener {
         private JButton uploadFilesButton;
-        private JPanel progressPanelsContainer;
+        private JButton syncFolderButton;
+        private UploadTableModel uploadTableModel;
+        private JTable uploadTable;
         private JScrollPane jsp;
-        private ArrayList<ProgressPanel> progressPanels;
+        private javax.swing.Timer progressTimer;
         ArrayList<File> files;
         ArrayList<FileUploadThread> fileUploaders;
+        private ExecutorService executor;
+        private UploadScheduler scheduler;
+        private long nextUploaderId;
 
         FileUploadViewPanel() {
+            executor = TransferExecutors.newExecutor(FTConfig.executorMode);
+            scheduler = new UploadScheduler(executor, FTConfig.uploadConcurrency, FTConfig.uploadOrder,
+                    FTConfig.uploadAttempts, FTConfig.retryBackoff, FTConfig.maxRetryAfter);
             uploadFilesButton = new JButton("Upload File");
+            uploadTableModel = new UploadTableModel();
+            uploadTable = new JTable(uploadTableModel);
+            uploadTable.setFillsViewportHeight(true);
+            uploadTable.getColumnModel().getColumn(0).setPreferredWidth(50);
+            uploadTable.getColumnModel().getColumn(1).setPreferredWidth(300);
+            uploadTable.getColumnModel().getColumn(3).setCellRenderer(new ProgressCellRenderer());
+            jsp = new JScrollPane(uploadTable, ScrollPaneConstants.VERTICAL_SCROLLBAR_ALWAYS,
+                    ScrollPaneConstants.HORIZONTAL_SCROLLBAR_AS_NEEDED);
+            syncFolderButton = new JButton("Sync Folder");
+            JPanel buttonPanel = new JPanel(new GridLayout(1, 2));
+            buttonPanel.add(uploadFilesButton);
+            buttonPanel.add(syncFolderButton);
             setLayout(new BorderLayout());
-            add(uploadFilesButton, BorderLayout.NORTH);
+            add(buttonPanel, BorderLayout.NORTH);
+            add(jsp, BorderLayout.CENTER);
             uploadFilesButton.addActionListener(this);
+            syncFolderButton.addActionListener(ev -> syncFolder());
+            // Uploaders only update their counters, the timer shows the latest values a fixed number of times a second
+            progressTimer = new javax.swing.Timer(1000 / Math.max(1, FTConfig.progressFps),
+                    ev -> uploadTableModel.refresh());
         }
 
         public void actionPerformed(ActionEvent ev) {
@@ -232,175 +394,138 @@ class FTClientFrame extends JFrame {
                 JOptionPane.showMessageDialog(FTClientFrame.this, "No Files selected for upload");
                 return;
             }
-            progressPanelsContainer = new JPanel();
-            progressPanelsContainer.setLayout(new GridLayout(files.size(), 1));
-            ProgressPanel progressPanel;
-            progressPanels = new ArrayList<>();
-            fileUploaders = new ArrayList<>();
-            FileUploadThread fut;
-            String uploadersId;
+            fileUploaders = new ArrayList<>(files.size());
             for (File file : files) {
-                uploadersId = UUID.randomUUID().toString();
-                progressPanel = new ProgressPanel(uploadersId, file);
-                progressPanels.add(progressPanel);
-                progressPanelsContainer.add(progressPanel);
-                fut = new FileUploadThread(this, uploadersId, file, host, portNumber);
-                fileUploaders.add(fut);
+                fileUploaders.add(new FileUploadThread(this, String.valueOf(nextUploaderId++), file, host, portNumber));
             }
-            jsp = new JScrollPane(progressPanelsContainer, ScrollPaneConstants.VERTICAL_SCROLLBAR_ALWAYS,
-                    ScrollPaneConstants.HORIZONTAL_SCROLLBAR_ALWAYS);
-            add(jsp, BorderLayout.CENTER);
-            this.revalidate();
-            this.repaint();
-            for (FileUploadThread fileUploadThread : fileUploaders) {
-                fileUploadThread.start();
+            uploadTableModel.addAll(fileUploaders,
+                    FTConfig.sessions ? FileUploadStatus.UPLOADING : FileUploadStatus.PENDING);
+            progressTimer.start();
+            if (FTConfig.sessions) {
+                executor.execute(new FileUploadSession(fileUploaders, host, portNumber, scheduler));
+                return;
             }
-        }
-
-        public void fileUploadStatusChanged(FileUploadEvent fileUploadEvent) {
-            String uploaderId = fileUploadEvent.getUploaderId();
-            long numberOfBytesUploaded = fileUploadEvent.getNumberOfBytesUploaded();
-            File file = fileUploadEvent.getFile();
-            for (ProgressPanel progressPanel : progressPanels) {
-                if (progressPanel.getId().equals(uploaderId)) {
-                    progressPanel.updateProgressBar(numberOfBytesUploaded);
-                    break;
+            // Queueing stats every file for the scheduler's order, keep that off the event dispatch thread
+            ArrayList<FileUploadThread> batch = fileUploaders;
+            executor.execute(() -> {
+                for (FileUploadThread fileUploadThread : batch) {
+                    scheduler.submit(fileUploadThread);
                 }
-            }
+            });
         }
 
-        /**
-         * The ProgressPanel class represents a panel displaying the progress of a file
-         * upload.
-         */
-        class ProgressPanel extends JPanel {
-            private File file;
-            private JLabel fileNameLabel;
-            private JProgressBar progressBar;
-            private long fileLength;
-            private String id;
-
-            public ProgressPanel(String id, File file) {
-                this.id = id;
-                this.file = file;
-                this.fileLength = file.length();
-                fileNameLabel = new JLabel("Uploading : " + file.getAbsolutePath());
-                progressBar = new JProgressBar(1, 100);
-                setLayout(new GridLayout(2, 1));
-                add(fileNameLabel);
-                add(progressBar);
-            }
-
-            public String getId() {
-                return id;
-            }
+        // Push a directory tree: hash it, let the server pick the files it lacks and upload only those
+        private void syncFolder() {
+            JFileChooser jfc = new JFileChooser();
+            jfc.setCurrentDirectory(new File("."));
+            jfc.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+            if (jfc.showOpenDialog(this) != JFileChooser.APPROVE_OPTION)
+                return;
+            File root = jfc.getSelectedFile();
+            syncFolderButton.setEnabled(false);
+            new SwingWorker<ArrayList<ManifestEntry>, Void>() {
+                protected ArrayList<ManifestEntry> doInBackground() throws IOException {
+                    return new DirectorySync(root, host, portNumber).findChangedFiles();
+                }
 
-            public void updateProgressBar(long bytesUploaded) {
-                int percentage;
-                if (bytesUploaded == fileLength)
-                    percentage = 100;
-                else
-                    percentage = (int) ((bytesUploaded * 100) / fileLength);
-                progressBar.setValue(percentage);
-                if (percentage == 100) {
-                    fileNameLabel.setText("Uploaded : " + file.getAbsolutePath());
+                protected void done() {
+                    syncFolderButton.setEnabled(true);
+                    ArrayList<ManifestEntry> changedFiles;
+                    try {
+                        changedFiles = get();
+                    } catch (InterruptedException | ExecutionException e) {
+                        JOptionPane.showMessageDialog(FTClientFrame.this, "Cannot sync " + root + ": " + e.getCause());
+                        return;
+                    }
+                    if (changedFiles.isEmpty()) {
+                        JOptionPane.showMessageDialog(FTClientFrame.this, root.getName() + " is up to date");
+                        return;
+                    }
+                    ArrayList<FileUploadThread> batch = new ArrayList<>(changedFiles.size());
+                    for (ManifestEntry entry : changedFiles) {
+                        FileUploadThread upload = new FileUploadThread(FileUploadViewPanel.this,
+                                String.valueOf(nextUploaderId++), DirectorySync.resolve(root, entry), host, portNumber);
+                        upload.setRemoteName(DirectorySync.remoteName(root, entry));
+                        batch.add(upload);
+                    }
+                    uploadTableModel.addAll(batch, FileUploadStatus.PENDING);
+                    progressTimer.start();
+                    executor.execute(() -> {
+                        for (FileUploadThread upload : batch) {
+                            scheduler.submit(upload);
+                        }
+                    });
                 }
-            }
-        } // ProgressPanel ends
-    } // FileUploadViewPanel ends
+            }.execute();
+        }
 
-    public static void main(String gg[]) {
-        FTClientFrame fcf = new FTClientFrame("localhost", 5500);
-    }
-}
+        public void fileUploadStatusChanged(FileUploadEvent fileUploadEvent) {
+            uploadTableModel.setStatus(fileUploadEvent.getUploaderId(), fileUploadEvent.getStatus());
+        }
+    } // FileUploadViewPanel ends
 
-/**
- * The FileUploadThread class represents a thread for uploading a file to the
- * server.
- */
-class FileUploadThread extends Thread {
-    private String id;
-    private FileUploadListener fileUploadListener;
-    private File file;
-    private String host;
-    private int portNumber;
+    /**
+     * The FileDownloadViewPanel class represents the panel for fetching files
+     * from the server into the downloads directory and watching their
+     * progress.
+     */
+    class FileDownloadViewPanel extends JPanel implements ActionListener, FileUploadListener {
+        private static final long serialVersionUID = 1L;
 
-    FileUploadThread(FileUploadListener fileUploadListener, String id, File file, String host, int portNumber) {
-        this.fileUploadListener = fileUploadListener;
-        this.id = id;
-        this.host = host;
-        this.file = file;
-        this.portNumber = portNumber;
-    }
+        private JTextField remoteNameField;
+        private JButton downloadButton;
+        private UploadTableModel downloadTableModel;
+        private JTable downloadTable;
+        private JScrollPane jsp;
+        private javax.swing.Timer progressTimer;
+        private ExecutorService executor;
+        private long nextDownloaderId;
+
+        FileDownloadViewPanel() {
+            executor = TransferExecutors.newExecutor(FTConfig.executorMode);
+            remoteNameField = new JTextField();
+            remoteNameField.addActionListener(this);
+            downloadButton = new JButton("Download");
+            downloadButton.addActionListener(this);
+            JPanel requestPanel = new JPanel(new BorderLayout());
+            requestPanel.add(new JLabel("File on server "), BorderLayout.WEST);
+            requestPanel.add(remoteNameField, BorderLayout.CENTER);
+            requestPanel.add(downloadButton, BorderLayout.EAST);
+            downloadTableModel = new UploadTableModel();
+            downloadTable = new JTable(downloadTableModel);
+            downloadTable.setFillsViewportHeight(true);
+            downloadTable.getColumnModel().getColumn(0).setPreferredWidth(50);
+            downloadTable.getColumnModel().getColumn(1).setPreferredWidth(600);
+            downloadTable.getColumnModel().getColumn(3).setCellRenderer(new ProgressCellRenderer());
+            jsp = new JScrollPane(downloadTable, ScrollPaneConstants.VERTICAL_SCROLLBAR_ALWAYS,
+                    ScrollPaneConstants.HORIZONTAL_SCROLLBAR_AS_NEEDED);
+            setLayout(new BorderLayout());
+            add(requestPanel, BorderLayout.NORTH);
+            add(jsp, BorderLayout.CENTER);
+            progressTimer = new javax.swing.Timer(1000 / Math.max(1, FTConfig.progressFps),
+                    ev -> downloadTableModel.refresh());
+        }
 
-    public void run() {
-        try {
-            long lengthOfFile = file.length();
-            String name = file.getName();
-            byte header[] = new byte[1024];
-            int i;
-            long x, k;
-            i = 0;
-            k = lengthOfFile;
-            while (k > 0) {
-                header[i] = (byte) (k % 10);
-                k = k / 10;
-                i++;
-            }
-            header[i] = (byte) ',';
-            i++;
-            x = name.length();
-            int r = 0;
-            while (r < x) {
-                header[i] = (byte) name.charAt(r);
-                i++;
-                r++;
-            }
-            while (i <= 1023) {
-                header[i] = (byte) 32;
-                i++;
-            }
-            Socket socket = new Socket(host, portNumber);
-            OutputStream os = socket.getOutputStream();
-            os.write(header, 0, 1024);
-            os.flush();
-            InputStream is = socket.getInputStream();
-            byte ack[] = new byte[1];
-            int bytesReadCount;
-            while (true) {
-                bytesReadCount = is.read(ack);
-                if (bytesReadCount == -1)
-                    continue;
-                break;
-            }
-            FileInputStream fis = new FileInputStream(file);
-            int chunkSize = 4096;
-            byte bytes[] = new byte[chunkSize];
-            int j = 0;
-            while (j < lengthOfFile) {
-                bytesReadCount = fis.read(bytes);
-                os.write(bytes, 0, bytesReadCount);
-                os.flush();
-                j = j + bytesReadCount;
-                long brc = j;
-                SwingUtilities.invokeLater(() -> {
-                    FileUploadEvent fue = new FileUploadEvent();
-                    fue.setUploaderId(id);
-                    fue.setFile(file);
-                    fue.setNumberOfBytesUploaded(brc);
-                    fileUploadListener.fileUploadStatusChanged(fue);
-                });
-            }
-            fis.close();
-            while (true) {
-                bytesReadCount = is.read(ack);
-                if (bytesReadCount == -1)
-                    continue;
-                break;
+        public void actionPerformed(ActionEvent ev) {
+            String remoteName = remoteNameField.getText().trim();
+            if (remoteName.length() == 0) {
+                JOptionPane.showMessageDialog(FTClientFrame.this, "Enter the name of a file on the server");
+                return;
             }
-            socket.close();
-        } catch (Exception e) {
-            System.out.println(e);
+            File file = new File("downloads", remoteName.replace('/', File.separatorChar));
+            FileDownloadThread download = new FileDownloadThread(this, String.valueOf(nextDownloaderId++), remoteName,
+                    file, host, portNumber);
+            downloadTableModel.addAll(Collections.singletonList(download), FileUploadStatus.PENDING);
+            progressTimer.start();
+            executor.execute(download);
+        }
+
+        public void fileUploadStatusChanged(FileUploadEvent fileUploadEvent) {
+            downloadTableModel.setStatus(fileUploadEvent.getUploaderId(), fileUploadEvent.getStatus());
         }
+    } // FileDownloadViewPanel ends
+
+    public static void main(String gg[]) {
+        FTClientFrame fcf = new FTClientFrame("localhost", 5500);
     }
 }
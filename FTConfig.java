@@ -0,0 +1,273 @@
+/**
+ * The FTConfig class holds the settings shared by the client and the server.
+ * Every value starts from a system property (for example
+ * {@code -Dft.executor=virtual}) so the applications can be tuned from the
+ * command line without touching the user interface.
+ */
+class FTConfig {
+    /**
+     * The execution mode of the connection handlers and upload tasks, either
+     * {@link TransferExecutors#PLATFORM} or {@link TransferExecutors#VIRTUAL}.
+     */
+    static String executorMode = System.getProperty("ft.executor", TransferExecutors.PLATFORM);
+
+    /**
+     * Whether file data is moved with FileChannel.transferTo/transferFrom
+     * instead of being copied through a heap buffer.
+     */
+    static boolean zeroCopy = Boolean.parseBoolean(System.getProperty("ft.zeroCopy", "true"));
+
+    /**
+     * The number of bytes moved per transferTo/transferFrom call, progress is
+     * reported at these chunk boundaries.
+     */
+    static long zeroCopyChunkSize = Long.getLong("ft.zeroCopyChunkSize", 1024 * 1024);
+
+    /**
+     * The header format the client sends: 2 for the binary {@link FTHeader},
+     * 1 for the legacy 1024 byte header understood by older servers.
+     */
+    static int protocolVersion = Integer.getInteger("ft.protocol", FTHeader.VERSION);
+
+    /**
+     * Whether the client sends a batch of files over one persistent session
+     * connection instead of one connection per file.
+     */
+    static boolean sessions = Boolean.getBoolean("ft.sessions");
+
+    /**
+     * The number of parallel connections a large file is striped over, 1
+     * sends every file over a single connection.
+     */
+    static int stripeCount = Integer.getInteger("ft.stripes", 1);
+
+    /**
+     * Files smaller than this many bytes are never striped.
+     */
+    static long stripeThreshold = Long.getLong("ft.stripeThreshold", 64L * 1024 * 1024);
+
+    /**
+     * The server abandons a striped upload and deletes its partial file when
+     * no range of it arrived for this many milliseconds.
+     */
+    static long stripeIdleTimeout = Long.getLong("ft.stripeIdleTimeout", 2 * 60 * 1000);
+
+    /**
+     * Whether uploads of at least {@link #resumeThreshold} bytes can resume
+     * where a dropped connection left them instead of starting over.
+     */
+    static boolean resume = Boolean.parseBoolean(System.getProperty("ft.resume", "true"));
+
+    /**
+     * Files smaller than this many bytes are always sent from the start.
+     */
+    static long resumeThreshold = Long.getLong("ft.resumeThreshold", 1024 * 1024);
+
+    /**
+     * How many uploads of a batch the client runs at once, the rest wait in
+     * the scheduler's queue.
+     */
+    static int uploadConcurrency = Integer.getInteger("ft.concurrency", 4);
+
+    /**
+     * The order of the scheduler's queue, "small-first" or "large-first".
+     */
+    static String uploadOrder = System.getProperty("ft.order", UploadScheduler.SMALL_FIRST);
+
+    /**
+     * How many times the scheduler starts an upload before reporting it
+     * failed. A resumable upload continues where the previous attempt
+     * stopped.
+     */
+    static int uploadAttempts = Integer.getInteger("ft.attempts", 3);
+
+    /**
+     * The delay before the second attempt of a failed upload in
+     * milliseconds, doubled for every further attempt.
+     */
+    static long retryBackoff = Long.getLong("ft.retryBackoff", 1000);
+
+    /**
+     * How many retry-after answers a transfer waits out before they count as
+     * failed attempts, so a server that stays busy does not hold it forever.
+     */
+    static int maxRetryAfter = Integer.getInteger("ft.maxRetryAfter", 20);
+
+    /**
+     * The server syncs a resumable upload and records the range in its journal
+     * every this many bytes.
+     */
+    static long journalInterval = Long.getLong("ft.journalInterval", 8L * 1024 * 1024);
+
+    /**
+     * Whether the client offers the SHA-256 digest of every file so the server
+     * can skip content it already stores.
+     */
+    static boolean dedup = Boolean.getBoolean("ft.dedup");
+
+    /**
+     * Whether the client compresses uploads of at least
+     * {@link #compressionThreshold} bytes.
+     */
+    static boolean compression = Boolean.getBoolean("ft.compression");
+
+    /**
+     * Files smaller than this many bytes are always sent uncompressed.
+     */
+    static long compressionThreshold = Long.getLong("ft.compressionThreshold", 64 * 1024);
+
+    /**
+     * How many compressed chunks the compression stage may prepare ahead of
+     * the socket writes.
+     */
+    static int compressionQueueLength = Integer.getInteger("ft.compressionQueue", 4);
+
+    /**
+     * The checksum of every negotiated upload, "crc32c", "sha256" or "none".
+     * The server returns its checksum in the final acknowledgment and the
+     * client retries the upload on a mismatch.
+     */
+    static byte checksum = StreamChecksum.algorithm(System.getProperty("ft.checksum", "crc32c"));
+
+    /**
+     * How many times a second the upload view repaints the progress bars.
+     */
+    static int progressFps = Integer.getInteger("ft.progressFps", 20);
+
+    /**
+     * The number of bytes the server's plain receive loop reads and writes at
+     * a time, used when neither zero-copy nor write-behind applies.
+     */
+    static int receiveChunkSize = Integer.getInteger("ft.receiveChunkSize", 4096);
+
+    /**
+     * Whether the server's buffered receive path hands pooled direct buffers
+     * to write-behind threads instead of writing each chunk itself.
+     */
+    static boolean writeBehind = Boolean.parseBoolean(System.getProperty("ft.writeBehind", "true"));
+
+    /**
+     * The size and the number of the direct buffers the server receives
+     * into, which bounds the data waiting for the disk.
+     */
+    static int receiveBufferSize = Integer.getInteger("ft.receiveBufferSize", 256 * 1024);
+    static int receiveBuffers = Integer.getInteger("ft.receiveBuffers", 64);
+
+    /**
+     * The number of write-behind threads of every storage volume and the
+     * number of buffers each one queues.
+     */
+    static int writerThreads = Integer.getInteger("ft.writerThreads", 2);
+    static int writeQueueLength = Integer.getInteger("ft.writeQueue", 8);
+
+    /**
+     * The chunk size and the number of chunks the client reads ahead of the
+     * socket when it does not use zero-copy.
+     */
+    static int readAheadChunkSize = Integer.getInteger("ft.readAheadChunkSize", 256 * 1024);
+    static int readAheadChunks = Integer.getInteger("ft.readAheadChunks", 4);
+
+    /**
+     * Server admission limits: concurrent transfers, bytes announced by
+     * running uploads, and the disk space that has to stay free after every
+     * reservation. Uploads beyond them are answered with
+     * {@link FTProtocol#STATUS_RETRY_AFTER}.
+     */
+    static int maxTransfers = Integer.getInteger("ft.maxTransfers", 256);
+    static long maxInFlightBytes = Long.getLong("ft.maxInFlightBytes", 16L * 1024 * 1024 * 1024);
+    static long minFreeSpace = Long.getLong("ft.minFreeSpace", 256L * 1024 * 1024);
+
+    /**
+     * The base delay in milliseconds the server suggests to uploads it
+     * turns away.
+     */
+    static long retryAfter = Long.getLong("ft.retryAfter", 1000);
+
+    /**
+     * Server rate limits in bytes per second for all transfers together, for
+     * the transfers of one client address and for a single transfer, 0 for
+     * unlimited. The server frame changes them at runtime.
+     */
+    static long rateLimit = Long.getLong("ft.rateLimit", 0);
+    static long clientRateLimit = Long.getLong("ft.clientRateLimit", 0);
+    static long transferRateLimit = Long.getLong("ft.transferRateLimit", 0);
+
+    /**
+     * The client's limit in bytes per second for all of its uploads
+     * together, 0 for unlimited.
+     */
+    static long uploadRateLimit = Long.getLong("ft.uploadRateLimit", 0);
+
+    /**
+     * The largest encoded sync manifest the server accepts, in bytes.
+     */
+    static long maxManifestLength = Long.getLong("ft.maxManifestLength", 64 * 1024 * 1024);
+
+    /**
+     * The number of parallel range requests a download of at least
+     * {@link #stripeThreshold} bytes is split into.
+     */
+    static int downloadStreams = Integer.getInteger("ft.downloadStreams", 4);
+
+    /**
+     * The server's in-memory cache of hot files for downloads: its size in
+     * bytes, the largest file it holds, and how many requests a file needs
+     * before it is cached.
+     */
+    static long hotFileCacheSize = Long.getLong("ft.hotFileCache", 64 * 1024 * 1024);
+    static long hotFileMaxLength = Long.getLong("ft.hotFileMaxLength", 1024 * 1024);
+    static int hotFileMinHits = Integer.getInteger("ft.hotFileMinHits", 2);
+
+    /**
+     * The server's storage volumes, a comma separated list of root
+     * directories, typically one per disk. Each volume gets its own
+     * {@link #writerThreads} write-behind threads and its own group committer.
+     */
+    static String volumes = System.getProperty("ft.volumes", "uploads");
+
+    /**
+     * How the server chooses the volume of a new top-level name,
+     * {@link Storage#HASH} or {@link Storage#LEAST_LOADED}.
+     */
+    static String placement = System.getProperty("ft.placement", Storage.HASH);
+
+    /**
+     * How durable a received file is when the server acknowledges it:
+     * {@link Durability#NONE}, {@link Durability#PER_FILE} or
+     * {@link Durability#GROUP}.
+     */
+    static String durability = System.getProperty("ft.durability", Durability.NONE);
+
+    /**
+     * How long in microseconds the group commit waits for more files to
+     * join a batch, and the largest batch.
+     */
+    static long groupCommitWindow = Long.getLong("ft.groupCommitWindow", 2000);
+    static int groupCommitBatch = Integer.getInteger("ft.groupCommitBatch", 256);
+
+    /**
+     * Whether uploads adapt their chunk size and socket buffers to the
+     * measured round trip time and goodput, see {@link TransferTuner}. The
+     * configured chunk sizes are where the tuning starts.
+     */
+    static boolean autoTune = Boolean.getBoolean("ft.autoTune");
+
+    /**
+     * The largest chunk size and socket buffer in bytes the tuning goes to.
+     */
+    static int tuneMaxChunkSize = Integer.getInteger("ft.tuneMaxChunkSize", 4 * 1024 * 1024);
+    static long tuneMaxSocketBuffer = Long.getLong("ft.tuneMaxSocketBuffer", 64L * 1024 * 1024);
+
+    /**
+     * The file {@link TransferMetrics} replaces with a JSON snapshot of both
+     * sides every {@link #metricsInterval} milliseconds, null for none.
+     */
+    static String metricsFile = System.getProperty("ft.metricsFile");
+    static long metricsInterval = Long.getLong("ft.metricsInterval", 10_000);
+
+    /**
+     * The number of lines the server frame's log keeps, older lines are
+     * dropped.
+     */
+    static int logLines = Integer.getInteger("ft.logLines", 1000);
+}
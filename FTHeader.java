@@ -0,0 +1,397 @@
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * The FTHeader class represents the version 2 transfer header. It replaces the
+ * fixed 1024 byte header with a compact, length prefixed layout:
+ *
+ * <pre>
+ * magic    4 bytes  "FTV2"
+ * version  1 byte
+ * op       1 byte   operation requested by the client
+ * flags    2 bytes  FLAG_* bits
+ * length   8 bytes  file length
+ * nameLen  2 bytes  length of the UTF-8 encoded name
+ * name     nameLen bytes
+ * extensions        fixed size fields present when their flag is set, in flag order
+ * </pre>
+ *
+ * The magic never starts a legacy header (legacy headers start with decimal
+ * digit values or ','), which lets the server accept both formats.
+ */
+class FTHeader {
+    static final int MAGIC = 0x46545632;
+    static final byte VERSION = 2;
+    static final int FIXED_LENGTH = 18;
+
+    static final byte OP_UPLOAD = 1;
+
+    /**
+     * Opens a session: the connection then carries a sequence of OP_UPLOAD
+     * frames, each tagged with a transfer id, until the client shuts down its
+     * output. The length field holds the number of frames the client plans to
+     * send.
+     */
+    static final byte OP_SESSION = 2;
+
+    /**
+     * Compares a directory tree with the server's copy. The body is a
+     * {@link SyncManifest} of the length field's size and the name holds the
+     * directory's name. The server answers with the status, the 4 byte number
+     * of entries it needs and the 4 byte index of each, then closes.
+     */
+    static final byte OP_SYNC = 3;
+
+    /**
+     * Fetches the file named by the header from the server. With
+     * {@link #FLAG_RANGE} the server sends at most length bytes from the
+     * offset on, without it the whole file. The server answers with the
+     * status, the 8 byte length of the file and its 8 byte version, then the
+     * bytes. A range of length 0 only asks for the length and version.
+     */
+    static final byte OP_DOWNLOAD = 4;
+
+    /**
+     * Asks the server to acknowledge the header before the body is sent.
+     * Without it the client streams the body right behind the header.
+     */
+    static final int FLAG_ACK_HEADER = 1;
+
+    /**
+     * The header carries a 4 byte transfer id, used by session frames.
+     */
+    static final int FLAG_TRANSFER_ID = 2;
+
+    /**
+     * The header carries the 16 byte id of the upload the body belongs to.
+     */
+    static final int FLAG_UPLOAD_ID = 4;
+
+    /**
+     * The body is a range of a larger file: the header carries the 8 byte
+     * offset of the range and the 8 byte length of the whole file, while the
+     * length field holds the length of the range.
+     */
+    static final int FLAG_RANGE = 8;
+
+    /**
+     * Asks the server to resume the upload named by the upload id. The server
+     * answers the header with the status and the 8 byte offset it already
+     * holds, and the client sends the body from that offset on.
+     */
+    static final int FLAG_RESUME = 16;
+
+    /**
+     * The header carries the 32 byte SHA-256 digest of the file. A server
+     * that already stores this content answers the header with
+     * {@link FTProtocol#STATUS_HAVE_IT} and the client skips the body.
+     */
+    static final int FLAG_DIGEST = 32;
+
+    /**
+     * The body is sent as a sequence of chunks that are each deflated or
+     * stored, see {@link FTProtocol#CHUNK_DEFLATED}.
+     */
+    static final int FLAG_COMPRESSED = 64;
+
+    /**
+     * The header carries a 1 byte checksum algorithm, see
+     * {@link FTProtocol#CHECKSUM_CRC32C}. The final acknowledgment then
+     * carries the server's checksum of the body bytes it received on the
+     * connection.
+     */
+    static final int FLAG_CHECKSUM = 128;
+
+    private byte version;
+    private byte op;
+    private int flags;
+    private long length;
+    private String name;
+    private int transferId;
+    private UUID uploadId;
+    private long offset;
+    private long totalLength;
+    private byte digest[];
+    private byte checksumAlgorithm;
+
+    public FTHeader() {
+        this.version = VERSION;
+        this.op = OP_UPLOAD;
+        this.flags = 0;
+        this.length = 0;
+        this.name = "";
+    }
+
+    public FTHeader(byte op, int flags, long length, String name) {
+        this.version = VERSION;
+        this.op = op;
+        this.flags = flags;
+        this.length = length;
+        this.name = name;
+    }
+
+    public byte getVersion() {
+        return this.version;
+    }
+
+    public byte getOp() {
+        return this.op;
+    }
+
+    public int getFlags() {
+        return this.flags;
+    }
+
+    /**
+     * Tells whether the given flag is set.
+     *
+     * @param flag One of the FLAG_* constants.
+     * @return true when the flag is set.
+     */
+    public boolean hasFlag(int flag) {
+        return (this.flags & flag) != 0;
+    }
+
+    public long getLength() {
+        return this.length;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public int getTransferId() {
+        return this.transferId;
+    }
+
+    /**
+     * Sets the transfer id and the flag announcing it.
+     *
+     * @param transferId The id the server echoes in the acknowledgment.
+     */
+    public void setTransferId(int transferId) {
+        this.transferId = transferId;
+        this.flags |= FLAG_TRANSFER_ID;
+    }
+
+    public UUID getUploadId() {
+        return this.uploadId;
+    }
+
+    /**
+     * Sets the upload id and the flag announcing it.
+     *
+     * @param uploadId The id shared by every connection of the upload.
+     */
+    public void setUploadId(UUID uploadId) {
+        this.uploadId = uploadId;
+        this.flags |= FLAG_UPLOAD_ID;
+    }
+
+    public long getOffset() {
+        return this.offset;
+    }
+
+    public long getTotalLength() {
+        return this.totalLength;
+    }
+
+    /**
+     * Marks the body as the range starting at {@code offset} of a file of
+     * {@code totalLength} bytes.
+     *
+     * @param offset      The position of the range in the file.
+     * @param totalLength The length of the whole file.
+     */
+    public void setRange(long offset, long totalLength) {
+        this.offset = offset;
+        this.totalLength = totalLength;
+        this.flags |= FLAG_RANGE;
+    }
+
+    /**
+     * Asks the server to resume the upload named by the upload id.
+     */
+    public void setResume() {
+        this.flags |= FLAG_RESUME;
+    }
+
+    public byte[] getDigest() {
+        return this.digest;
+    }
+
+    /**
+     * Sets the SHA-256 digest of the file and the flag announcing it.
+     *
+     * @param digest The 32 byte digest.
+     */
+    public void setDigest(byte digest[]) {
+        this.digest = digest;
+        this.flags |= FLAG_DIGEST;
+    }
+
+    /**
+     * Announces a compressed body.
+     */
+    public void setCompressed() {
+        this.flags |= FLAG_COMPRESSED;
+    }
+
+    public byte getChecksumAlgorithm() {
+        return this.checksumAlgorithm;
+    }
+
+    /**
+     * Asks for the server's checksum of the body in the final acknowledgment.
+     *
+     * @param checksumAlgorithm One of the FTProtocol.CHECKSUM_* algorithms.
+     */
+    public void setChecksum(byte checksumAlgorithm) {
+        this.checksumAlgorithm = checksumAlgorithm;
+        this.flags |= FLAG_CHECKSUM;
+    }
+
+    /**
+     * Encodes the header, magic included.
+     *
+     * @return The encoded header.
+     */
+    public byte[] toByteArray() throws IOException {
+        byte nameBytes[] = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > 0xFFFF)
+            throw new IOException("File name too long: " + name);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(FIXED_LENGTH + nameBytes.length);
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(MAGIC);
+        dos.writeByte(version);
+        dos.writeByte(op);
+        dos.writeShort(flags);
+        dos.writeLong(length);
+        dos.writeShort(nameBytes.length);
+        dos.write(nameBytes);
+        if (hasFlag(FLAG_TRANSFER_ID))
+            dos.writeInt(transferId);
+        if (hasFlag(FLAG_UPLOAD_ID)) {
+            dos.writeLong(uploadId.getMostSignificantBits());
+            dos.writeLong(uploadId.getLeastSignificantBits());
+        }
+        if (hasFlag(FLAG_RANGE)) {
+            dos.writeLong(offset);
+            dos.writeLong(totalLength);
+        }
+        if (hasFlag(FLAG_DIGEST))
+            dos.write(digest, 0, 32);
+        if (hasFlag(FLAG_CHECKSUM))
+            dos.writeByte(checksumAlgorithm);
+        return baos.toByteArray();
+    }
+
+    /**
+     * Writes the header to the stream in a single write.
+     *
+     * @param os The stream to write to.
+     */
+    public void write(OutputStream os) throws IOException {
+        os.write(toByteArray());
+        os.flush();
+    }
+
+    /**
+     * Tells whether the first four bytes of a header are the version 2 magic.
+     *
+     * @param bytes At least four bytes read from the start of a header.
+     * @return true for a version 2 header, false for a legacy header.
+     */
+    public static boolean isMagic(byte bytes[]) {
+        return ByteBuffer.wrap(bytes, 0, 4).getInt() == MAGIC;
+    }
+
+    /**
+     * Reads the rest of a header whose magic has already been consumed. The
+     * fields are read with exact length reads so no body bytes are buffered.
+     * The caller checks {@link #getVersion()} before trusting the other fields.
+     * Negative lengths and offsets, and upload ranges that end past the
+     * length of their file, are rejected with a {@link ProtocolException}.
+     *
+     * @param is The stream positioned right after the magic.
+     * @return The decoded header.
+     */
+    public static FTHeader read(InputStream is) throws IOException {
+        byte fixed[] = new byte[FIXED_LENGTH - 4];
+        FTProtocol.readFully(is, fixed, fixed.length);
+        ByteBuffer buffer = ByteBuffer.wrap(fixed);
+        FTHeader header = new FTHeader();
+        header.version = buffer.get();
+        header.op = buffer.get();
+        header.flags = buffer.getShort() & 0xFFFF;
+        header.length = buffer.getLong();
+        byte nameBytes[] = new byte[buffer.getShort() & 0xFFFF];
+        FTProtocol.readFully(is, nameBytes, nameBytes.length);
+        header.name = new String(nameBytes, StandardCharsets.UTF_8);
+        byte extensions[] = new byte[extensionLength(header.flags)];
+        FTProtocol.readFully(is, extensions, extensions.length);
+        buffer = ByteBuffer.wrap(extensions);
+        if (header.hasFlag(FLAG_TRANSFER_ID))
+            header.transferId = buffer.getInt();
+        if (header.hasFlag(FLAG_UPLOAD_ID))
+            header.uploadId = new UUID(buffer.getLong(), buffer.getLong());
+        if (header.hasFlag(FLAG_RANGE)) {
+            header.offset = buffer.getLong();
+            header.totalLength = buffer.getLong();
+        }
+        if (header.hasFlag(FLAG_DIGEST)) {
+            header.digest = new byte[32];
+            buffer.get(header.digest);
+        }
+        if (header.hasFlag(FLAG_CHECKSUM))
+            header.checksumAlgorithm = buffer.get();
+        header.validate();
+        return header;
+    }
+
+    // Reject lengths a peer cannot mean, before the server sizes buffers, files or reservations from them. Download
+    // ranges carry no file length, the server checks them against its own copy
+    private void validate() throws ProtocolException {
+        if (length < 0 || offset < 0 || totalLength < 0)
+            throw new ProtocolException("Negative length in header for " + name + ": length " + length + ", offset "
+                    + offset + ", total length " + totalLength);
+        if (hasFlag(FLAG_RANGE) && op != OP_DOWNLOAD && length > totalLength - offset)
+            throw new ProtocolException("Range " + offset + "+" + length + " of " + name + " ends past its length "
+                    + totalLength);
+    }
+
+    /**
+     * Computes the encoded length of a version 2 header from the bytes
+     * received so far, for readers that cannot block.
+     *
+     * @param bytes The received bytes, starting with the magic.
+     * @param count The number of valid bytes.
+     * @return The total header length, or -1 if more bytes are needed to tell.
+     */
+    public static int encodedLength(byte bytes[], int count) {
+        if (count < FIXED_LENGTH)
+            return -1;
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int flags = buffer.getShort(6) & 0xFFFF;
+        return FIXED_LENGTH + (buffer.getShort(FIXED_LENGTH - 2) & 0xFFFF) + extensionLength(flags);
+    }
+
+    // Number of extension bytes that follow the name for the given flags
+    private static int extensionLength(int flags) {
+        int length = 0;
+        if ((flags & FLAG_TRANSFER_ID) != 0)
+            length += 4;
+        if ((flags & FLAG_UPLOAD_ID) != 0)
+            length += 16;
+        if ((flags & FLAG_RANGE) != 0)
+            length += 16;
+        if ((flags & FLAG_DIGEST) != 0)
+            length += 32;
+        if ((flags & FLAG_CHECKSUM) != 0)
+            length += 1;
+        return length;
+    }
+}
@@ -0,0 +1,355 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * The FTLoadGenerator class drives a server with synthetic uploads from the
+ * command line, without the user interface. Every virtual client opens one
+ * connection per upload and speaks the version 2 protocol like
+ * FileUploadThread, but the bodies come from a random buffer held in
+ * memory, so the sender never waits for its own disk.
+ *
+ * In a closed loop (the default) every client starts its next upload when
+ * the previous one is acknowledged, optionally after a think time. In an
+ * open loop the uploads arrive at a fixed total rate with exponential gaps,
+ * whether or not the server keeps up, and the latency of an upload counts
+ * from the moment it was due, so a stalled server shows up in the
+ * percentiles instead of slowing the arrivals down.
+ *
+ * Usage: java FTLoadGenerator [--local] [--host localhost] [--port 5500]
+ *        [--clients 16] [--duration 60] [--warmup 5] [--report 5]
+ *        [--sizes fixed:64K] [--rate 0] [--think 0] [--ack]
+ *        [--checksum none] [--names 4] [--seed 42]
+ *
+ * --local starts an FTServerF in the same JVM. --sizes takes fixed:SIZE,
+ * uniform:MIN:MAX, lognormal:MEDIAN:SIGMA or mix:SIZE@WEIGHT,..., where
+ * sizes take a K, M or G suffix. --rate is the total number of uploads per
+ * second, 0 for a closed loop, and --think the pause in milliseconds between
+ * the uploads of a closed loop client. --ack asks the server to answer every
+ * header before the body, which adds the time to the first ack to the
+ * report, and --checksum crc32c or sha256 has the server's checksum of
+ * every body verified. Each client cycles through --names file names
+ * starting with loadgen-, so a soak test does not fill the disk. The names
+ * are top-level, so the server spreads them over all of its volumes.
+ */
+class FTLoadGenerator {
+    // The bodies are slices of this buffer, repeated for larger uploads
+    private static final int PAYLOAD_SIZE = 4 * 1024 * 1024;
+
+    private String host = "localhost";
+    private int port = 5500;
+    private boolean local;
+    private int clients = 16;
+    private long durationNanos = TimeUnit.SECONDS.toNanos(60);
+    private long warmupNanos = TimeUnit.SECONDS.toNanos(5);
+    private long reportNanos = TimeUnit.SECONDS.toNanos(5);
+    private SizeDistribution sizes = SizeDistribution.parse("fixed:64K");
+    private double rate;
+    private long thinkMillis;
+    private boolean ackHeader;
+    private byte checksumAlgorithm = FTProtocol.CHECKSUM_NONE;
+    private int names = 4;
+    private long seed = 42;
+
+    private ByteBuffer payload;
+    private long measureFrom;
+    private long stopAt;
+
+    // Totals after the warm-up, and the interval of the next report line
+    private LongAdder uploads = new LongAdder();
+    private LongAdder bytes = new LongAdder();
+    private LongAdder rejected = new LongAdder();
+    private LatencyHistogram latency = new LatencyHistogram();
+    private LatencyHistogram firstAck = new LatencyHistogram();
+    private ConcurrentHashMap<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<String, String> errorExamples = new ConcurrentHashMap<>();
+    private LongAdder intervalUploads = new LongAdder();
+    private LongAdder intervalBytes = new LongAdder();
+    private AtomicReference<LatencyHistogram> intervalLatency = new AtomicReference<>(new LatencyHistogram());
+
+    public static void main(String args[]) throws Exception {
+        FTLoadGenerator generator = new FTLoadGenerator();
+        try {
+            generator.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println("Usage: java FTLoadGenerator [--local] [--host h] [--port p] [--clients n]"
+                    + " [--duration s] [--warmup s] [--report s] [--sizes spec] [--rate uploads/s] [--think ms]"
+                    + " [--ack] [--checksum none|crc32c|sha256] [--names n] [--seed n]");
+            System.exit(2);
+        }
+        System.exit(generator.run() ? 0 : 1);
+    }
+
+    private void parse(String args[]) {
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (option.equals("--local")) {
+                local = true;
+                continue;
+            }
+            if (option.equals("--ack")) {
+                ackHeader = true;
+                continue;
+            }
+            if (option.equals("--help"))
+                throw new IllegalArgumentException("Headless load generator for the file transfer server");
+            if (i + 1 >= args.length)
+                throw new IllegalArgumentException("Missing value for " + option);
+            String value = args[++i];
+            switch (option) {
+            case "--host":
+                host = value;
+                break;
+            case "--port":
+                port = Integer.parseInt(value);
+                break;
+            case "--clients":
+                clients = Math.max(1, Integer.parseInt(value));
+                break;
+            case "--duration":
+                durationNanos = seconds(value);
+                break;
+            case "--warmup":
+                warmupNanos = seconds(value);
+                break;
+            case "--report":
+                reportNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(100), seconds(value));
+                break;
+            case "--sizes":
+                sizes = SizeDistribution.parse(value);
+                break;
+            case "--rate":
+                rate = Double.parseDouble(value);
+                break;
+            case "--think":
+                thinkMillis = Long.parseLong(value);
+                break;
+            case "--checksum":
+                checksumAlgorithm = StreamChecksum.algorithm(value);
+                break;
+            case "--names":
+                names = Math.max(1, Integer.parseInt(value));
+                break;
+            case "--seed":
+                seed = Long.parseLong(value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+    }
+
+    private static long seconds(String value) {
+        return (long) (Double.parseDouble(value) * 1e9);
+    }
+
+    /**
+     * Runs the load for the warm-up and the duration, printing a line per
+     * report interval and a summary at the end.
+     *
+     * @return true when no upload failed.
+     */
+    boolean run() throws Exception {
+        byte random[] = new byte[PAYLOAD_SIZE];
+        new Random(seed).nextBytes(random);
+        payload = ByteBuffer.allocateDirect(PAYLOAD_SIZE).put(random);
+        FTServerF server = null;
+        if (local) {
+            server = new FTServerF(message -> {
+            });
+            server.start();
+            FTBenchmark.awaitPort(port);
+        }
+        System.out.println(String.format("%d clients, %s, %s loop%s, %s, warm-up %ds, duration %ds", clients, sizes,
+                rate > 0 ? "open" : "closed", rate > 0 ? " at " + rate + " uploads/s" : "",
+                ackHeader ? "header acks" : "no header acks", TimeUnit.NANOSECONDS.toSeconds(warmupNanos),
+                TimeUnit.NANOSECONDS.toSeconds(durationNanos)));
+
+        long start = System.nanoTime();
+        measureFrom = start + warmupNanos;
+        stopAt = measureFrom + durationNanos;
+        ExecutorService executor = TransferExecutors.newExecutor(FTConfig.executorMode);
+        for (int i = 0; i < clients; i++) {
+            int client = i;
+            executor.execute(() -> runClient(client));
+        }
+        executor.shutdown();
+
+        long nextReport = start + reportNanos;
+        long lastReport = start;
+        while (!executor.awaitTermination(Math.max(1, nextReport - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+            long now = System.nanoTime();
+            if (now < nextReport)
+                continue;
+            reportInterval(now - start, now - lastReport);
+            lastReport = now;
+            nextReport += reportNanos;
+        }
+        if (server != null)
+            server.shutdown();
+        return summarize();
+    }
+
+    // One virtual client: uploads until the end of the run, back to back or on its share of the arrival rate
+    private void runClient(int client) {
+        SplittableRandom random = new SplittableRandom(seed * 31 + client);
+        double meanGapNanos = rate > 0 ? 1e9 * clients / rate : 0;
+        // Clients of an open loop start at random points so their arrivals do not line up
+        long due = System.nanoTime() + (rate > 0 ? (long) (random.nextDouble() * meanGapNanos) : 0);
+        long sequence = 0;
+        while (due < stopAt) {
+            long now = System.nanoTime();
+            if (due > now)
+                sleepNanos(due - now);
+            long startedAt = rate > 0 ? due : System.nanoTime();
+            long length = sizes.next(random);
+            String name = "loadgen-c" + client + "-" + (sequence++ % names) + ".bin";
+            long pause = 0;
+            try {
+                long ackAt = upload(name, length, random.nextInt(PAYLOAD_SIZE));
+                long finishedAt = System.nanoTime();
+                if (finishedAt >= measureFrom) {
+                    latency.record(finishedAt - startedAt);
+                    if (ackAt > 0)
+                        firstAck.record(ackAt - startedAt);
+                    uploads.increment();
+                    bytes.add(length);
+                }
+                intervalLatency.get().record(finishedAt - startedAt);
+                intervalUploads.increment();
+                intervalBytes.add(length);
+                pause = thinkMillis;
+            } catch (RetryAfterException e) {
+                if (System.nanoTime() >= measureFrom)
+                    rejected.increment();
+                // A closed loop client waits as long as the server asked, an open loop arrival is lost
+                pause = e.getDelay();
+            } catch (IOException e) {
+                if (System.nanoTime() >= measureFrom) {
+                    String kind = e.getClass().getSimpleName();
+                    errors.computeIfAbsent(kind, k -> new LongAdder()).increment();
+                    errorExamples.putIfAbsent(kind, String.valueOf(e.getMessage()));
+                }
+                pause = thinkMillis;
+            }
+            if (rate > 0) {
+                due += (long) (-Math.log(1 - random.nextDouble()) * meanGapNanos);
+            } else {
+                due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(pause);
+            }
+        }
+    }
+
+    /**
+     * Uploads one synthetic file: a header, the body streamed from the
+     * payload buffer starting at the given offset, and the final status.
+     *
+     * @return The nanoTime of the header ack, 0 without header acks.
+     */
+    private long upload(String name, long length, int offset) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port))) {
+            Socket socket = channel.socket();
+            socket.setTcpNoDelay(true);
+            OutputStream os = socket.getOutputStream();
+            InputStream is = socket.getInputStream();
+            FTHeader header = new FTHeader(FTHeader.OP_UPLOAD, ackHeader ? FTHeader.FLAG_ACK_HEADER : 0, length, name);
+            StreamChecksum checksum = null;
+            if (checksumAlgorithm != FTProtocol.CHECKSUM_NONE) {
+                header.setChecksum(checksumAlgorithm);
+                checksum = new StreamChecksum(checksumAlgorithm);
+            }
+            header.write(os);
+            long ackAt = 0;
+            if (ackHeader) {
+                byte status = FTProtocol.readStatus(is);
+                ackAt = System.nanoTime();
+                RetryAfterException.check(status, is, name);
+                if (status != FTProtocol.STATUS_OK)
+                    throw new IOException("Server refused " + name + " with status " + status);
+            }
+            ByteBuffer body = payload.duplicate();
+            long sent = 0;
+            int position = offset;
+            while (sent < length) {
+                int count = (int) Math.min(PAYLOAD_SIZE - position, length - sent);
+                body.limit(position + count).position(position);
+                if (checksum != null) {
+                    checksum.update(body.duplicate());
+                }
+                while (body.hasRemaining()) {
+                    channel.write(body);
+                }
+                sent += count;
+                position = 0;
+            }
+            byte status = FTProtocol.readStatus(is);
+            RetryAfterException.check(status, is, name);
+            if (status != FTProtocol.STATUS_OK)
+                throw new IOException("Server rejected " + name + " with status " + status);
+            if (checksum != null && !Arrays.equals(FTProtocol.readChecksum(is), checksum.getValue()))
+                throw new ChecksumMismatchException("Checksum mismatch for " + name);
+            return ackAt;
+        }
+    }
+
+    private void reportInterval(long elapsed, long interval) {
+        LatencyHistogram histogram = intervalLatency.getAndSet(new LatencyHistogram());
+        double seconds = interval / 1e9;
+        long count = intervalUploads.sumThenReset();
+        long intervalBytesSum = intervalBytes.sumThenReset();
+        long errorCount = 0;
+        for (LongAdder adder : errors.values()) {
+            errorCount += adder.sum();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        System.out.println(String.format("[%5ds]%s %8.1f uploads/s %9.1f MB/s  p50 %8.2f ms  p99 %8.2f ms"
+                + "  errors %d  rejected %d  heap %d MB", TimeUnit.NANOSECONDS.toSeconds(elapsed),
+                elapsed < warmupNanos ? " warm-up" : "", count / seconds, intervalBytesSum / seconds / 1048576,
+                histogram.percentile(0.5) / 1e6, histogram.percentile(0.99) / 1e6, errorCount, rejected.sum(),
+                (runtime.totalMemory() - runtime.freeMemory()) / 1048576));
+    }
+
+    // Print the totals after the warm-up, true when nothing failed
+    private boolean summarize() {
+        double seconds = durationNanos / 1e9;
+        long errorCount = 0;
+        for (LongAdder adder : errors.values()) {
+            errorCount += adder.sum();
+        }
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%nUploads      %d (%.1f/s), %.1f MB/s%n", uploads.sum(), uploads.sum() / seconds,
+                bytes.sum() / seconds / 1048576));
+        appendLatency(report, "Latency", latency);
+        if (ackHeader)
+            appendLatency(report, "First ack", firstAck);
+        report.append(String.format("Rejected     %d (retry after)%n", rejected.sum()));
+        report.append(String.format("Errors       %d%n", errorCount));
+        for (Map.Entry<String, LongAdder> error : errors.entrySet()) {
+            report.append(String.format("  %-24s %d, e.g. %s%n", error.getKey(), error.getValue().sum(),
+                    errorExamples.get(error.getKey())));
+        }
+        if (local)
+            report.append("Server       ").append(TransferMetrics.server().toJson()).append('\n');
+        System.out.print(report);
+        return errorCount == 0;
+    }
+
+    private static void appendLatency(StringBuilder report, String label, LatencyHistogram histogram) {
+        report.append(String.format("%-12s p50 %.2f ms  p99 %.2f ms  p99.9 %.2f ms  max %.2f ms%n", label,
+                histogram.percentile(0.5) / 1e6, histogram.percentile(0.99) / 1e6,
+                histogram.percentile(0.999) / 1e6, histogram.max() / 1e6));
+    }
+
+    private static void sleepNanos(long nanos) {
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,225 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The FTProtocol class holds the acknowledgment codes and the stream helpers
+ * shared by the client and the server.
+ */
+class FTProtocol {
+    /**
+     * The acknowledgment sent by legacy servers, also the success code of the
+     * version 2 protocol.
+     */
+    static final byte STATUS_OK = 1;
+
+    /**
+     * The server does not understand the header version or operation.
+     */
+    static final byte STATUS_UNSUPPORTED = 2;
+
+    /**
+     * Another connection is still receiving the same upload id, the client
+     * should try again later.
+     */
+    static final byte STATUS_BUSY = 3;
+
+    /**
+     * The server already stores content with the offered digest and saved the
+     * file from it, the client does not send the body.
+     */
+    static final byte STATUS_HAVE_IT = 4;
+
+    /**
+     * The server is at capacity. The status is followed by the 8 byte number
+     * of milliseconds the client should wait before it tries again, except in
+     * a session acknowledgment, where it means the frame was read and
+     * dropped.
+     */
+    static final byte STATUS_RETRY_AFTER = 5;
+
+    /**
+     * The longest body a client sends right behind its header without
+     * waiting for the header ack. A server that turns such an upload away
+     * reads the body before it answers, so the client reads the answer rather
+     * than a reset; longer bodies wait for the header ack.
+     */
+    static final long MAX_UNACKED_BODY = 1024 * 1024;
+
+    /**
+     * The file asked for by a download is not on the server.
+     */
+    static final byte STATUS_NOT_FOUND = 6;
+
+    /**
+     * The upload is larger than the server's disk can take even with no
+     * other transfer running. Unlike a retry-after this is final, the client
+     * does not send the file again.
+     */
+    static final byte STATUS_NO_SPACE = 7;
+
+    /**
+     * Checksum algorithms a client can ask for with
+     * {@link FTHeader#FLAG_CHECKSUM}.
+     */
+    static final byte CHECKSUM_NONE = 0;
+    static final byte CHECKSUM_CRC32C = 1;
+    static final byte CHECKSUM_SHA256 = 2;
+
+    /**
+     * The length of a session acknowledgment: the status byte followed by the
+     * 4 byte transfer id of the frame it acknowledges.
+     */
+    static final int SESSION_ACK_LENGTH = 5;
+
+    /**
+     * Kinds of the chunks of a compressed body. Every chunk starts with the
+     * kind byte, the 4 byte raw length and the 4 byte encoded length, followed
+     * by the encoded bytes.
+     */
+    static final byte CHUNK_STORED = 0;
+    static final byte CHUNK_DEFLATED = 1;
+    static final int CHUNK_HEADER_LENGTH = 9;
+
+    /**
+     * The raw size of the chunks of a compressed body.
+     */
+    static final int COMPRESSION_CHUNK_SIZE = 256 * 1024;
+
+    private FTProtocol() {
+    }
+
+    /**
+     * Reads exactly {@code length} bytes.
+     *
+     * @param is     The stream to read from.
+     * @param bytes  The destination array.
+     * @param length The number of bytes to read.
+     */
+    static void readFully(InputStream is, byte bytes[], int length) throws IOException {
+        int i = 0;
+        while (i < length) {
+            int bytesReadCount = is.read(bytes, i, length - i);
+            if (bytesReadCount == -1)
+                throw new EOFException("Connection closed after " + i + " of " + length + " bytes");
+            i += bytesReadCount;
+        }
+    }
+
+    /**
+     * Sends a one byte acknowledgment.
+     *
+     * @param os     The stream to write to.
+     * @param status One of the STATUS_* codes.
+     */
+    static void writeStatus(OutputStream os, byte status) throws IOException {
+        os.write(status);
+        os.flush();
+    }
+
+    /**
+     * Reads a one byte acknowledgment.
+     *
+     * @param is The stream to read from.
+     * @return The status code.
+     */
+    static byte readStatus(InputStream is) throws IOException {
+        int status = is.read();
+        if (status == -1)
+            throw new EOFException("Server closed the connection before acknowledging");
+        return (byte) status;
+    }
+
+    /**
+     * Sends a status followed by an 8 byte value, for example the offset a
+     * resumed upload continues from.
+     *
+     * @param os     The stream to write to.
+     * @param status One of the STATUS_* codes.
+     * @param value  The value that follows the status.
+     */
+    static void writeStatus(OutputStream os, byte status, long value) throws IOException {
+        os.write(ByteBuffer.allocate(9).put(status).putLong(value).array());
+        os.flush();
+    }
+
+    /**
+     * Sends a status followed by a 1 byte length and a checksum, the final
+     * acknowledgment of a body sent with {@link FTHeader#FLAG_CHECKSUM}.
+     *
+     * @param os       The stream to write to.
+     * @param status   One of the STATUS_* codes.
+     * @param checksum The checksum of the received body.
+     */
+    static void writeStatus(OutputStream os, byte status, byte checksum[]) throws IOException {
+        os.write(ByteBuffer.allocate(2 + checksum.length).put(status).put((byte) checksum.length).put(checksum)
+                .array());
+        os.flush();
+    }
+
+    /**
+     * Reads the length prefixed checksum that follows the status of a final
+     * acknowledgment.
+     *
+     * @param is The stream to read from.
+     * @return The checksum.
+     */
+    static byte[] readChecksum(InputStream is) throws IOException {
+        byte checksum[] = new byte[readStatus(is) & 0xFF];
+        readFully(is, checksum, checksum.length);
+        return checksum;
+    }
+
+    /**
+     * Reads an 8 byte big-endian value.
+     *
+     * @param is The stream to read from.
+     * @return The value read.
+     */
+    static long readLong(InputStream is) throws IOException {
+        byte bytes[] = new byte[8];
+        readFully(is, bytes, bytes.length);
+        return ByteBuffer.wrap(bytes).getLong();
+    }
+
+    /**
+     * Computes the SHA-256 digest of a file.
+     *
+     * @param file The file to hash.
+     * @return The 32 byte digest.
+     */
+    static byte[] sha256(File file) throws IOException {
+        MessageDigest messageDigest;
+        try {
+            messageDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                messageDigest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return messageDigest.digest();
+    }
+
+    /**
+     * Formats a digest as lower case hexadecimal.
+     *
+     * @param digest The digest bytes.
+     * @return The hexadecimal string.
+     */
+    static String toHex(byte digest[]) {
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -1,204 +1,22 @@
-import java.net.*;
-import java.util.*;
-import java.io.*;
 import java.awt.*;
 import javax.swing.*;
 import java.awt.event.*;
 
-// RequestProcessor Class: Handles incoming client requests
-class RequestProcessor extends Thread {
-    private Socket socket;
-    private String id;
-    private FTServerFrame fsf;
-
-    RequestProcessor(Socket socket, String id, FTServerFrame fsf) {
-        this.id = id;
-        this.fsf = fsf;
-        this.socket = socket;
-        start();
-    }
-
-    public void run() {
-        try {
-            // Notify server GUI about the client connection
-            SwingUtilities.invokeLater(() -> fsf.updateLog("Client connected with id: " + id));
-
-            InputStream is = socket.getInputStream();
-            OutputStream os = socket.getOutputStream();
-
-            int bytesToReceive = 1024;
-            byte header[] = new byte[bytesToReceive];
-            int bytesReadCount = readHeaderData(is, header);
-
-            int lengthOfFile = getLengthOfFile(header);
-            String fileName = getFileName(header);
-
-            // Notify server GUI about the incoming file
-            SwingUtilities.invokeLater(() -> fsf.updateLog("Receiving File: " + fileName + " Length: " + lengthOfFile));
-            File file = saveFile(fileName);
-            sendAck(os);
-            receiveAndSaveFileData(is, file, lengthOfFile);
-            sendAck(os);
-            socket.close();
-
-            // Notify server GUI about file saved and client connection closure
-            SwingUtilities.invokeLater(() -> {
-                fsf.updateLog("File Saved to " + file.getAbsolutePath());
-                fsf.updateLog("Connection with client " + id + " closed.");
-            });
-        } catch (Exception e) {
-            // Handle exceptions by printing to console
-            System.out.println(e);
-        }
-    }
-
-    // Read header data from the client
-    private int readHeaderData(InputStream is, byte[] header) throws IOException {
-        int bytesReadCount;
-        int i = 0;
-        int j = 1;
-        while (j < header.length) {
-            bytesReadCount = is.read(header, i, header.length - i);
-            if (bytesReadCount == -1) continue;
-            i += bytesReadCount;
-            j += bytesReadCount;
-        }
-
-        return i;
-    }
-
-    // Extract the length of the file from the header
-    private int getLengthOfFile(byte[] header) {
-        int lengthOfFile = 0;
-        int i = 0;
-        int j = 1;
-
-        while (header[i] != ',') {
-            lengthOfFile = lengthOfFile + (header[i] * j);
-            j = j * 10;
-            i++;
-        }
-
-        return lengthOfFile;
-    }
-
-    // Extract the file name from the header
-    private String getFileName(byte[] header) {
-        int i = header.length - 1;
-
-        while (i >= 0 && header[i] == 0) {
-            i--;
-        }
-        StringBuffer sb = new StringBuffer();
-        for (int j = i - 1; j >= 0; j--) {
-            sb.append((char) header[j]);
-        }
-
-        return sb.reverse().toString().trim();
-    }
-
-    // Save the received file
-    private File saveFile(String fileName) {
-        File file = new File("uploads" + File.separator + fileName);
-        if (file.exists()) file.delete();
-
-        return file;
-    }
-
-    // Send acknowledgment to the client
-    private void sendAck(OutputStream os) throws IOException {
-        byte ack[] = {1};
-        os.write(ack);
-        os.flush();
-    }
-
-    // Receive and save file data
-    private void receiveAndSaveFileData(InputStream is, File file, int lengthOfFile) throws IOException {
-        FileOutputStream fos = new FileOutputStream(file);
-        int chunkSize = 4096;
-        byte bytes[] = new byte[chunkSize];
-        long m = 0;
-
-        while (m < lengthOfFile) {
-            int bytesReadCount = is.read(bytes);
-            if (bytesReadCount == -1) continue;
-            fos.write(bytes, 0, bytesReadCount);
-            fos.flush();
-            m += bytesReadCount;
-        }
-
-        fos.close();
-    }
-}
-
-// Rest of the code remains unchanged...
-
-
-
-// FTServerF Class (Server Thread): Manages server setup and client connections
-class FTServerF extends Thread {
-    private ServerSocket serverSocket;
-    private FTServerFrame fsf;
-
-    // Constructor
-    FTServerF(FTServerFrame fsf) {
-        this.fsf = fsf;
-    }
-
-    // Main thread execution
-    public void run() {
-        try {
-            serverSocket = new ServerSocket(5500);
-            startListening();
-        } catch (Exception e) {
-            // Handle exceptions by printing to console
-            System.out.println(e);
-        }
-    }
-
-    // Shutdown the server
-    public void shutdown() {
-        try {
-            serverSocket.close();
-        } catch (Exception e) {
-            // Handle exceptions by printing to console
-            System.out.println(e);
-        }
-    }
-
-    // Start listening for client connections
-    public void startListening() {
-        try {
-            RequestProcessor requestProcessor;
-            Socket socket;
-            while (true) {
-                System.out.println("Server Started!");
-
-                // Update the server log when the server is started and listening
-                SwingUtilities.invokeLater(new Thread() {
-                    public void run() {
-                        fsf.updateLog("Server is started and listening to port no 5500");
-                    }
-                });
-
-                socket = serverSocket.accept();
-                requestProcessor = new RequestProcessor(socket, UUID.randomUUID().toString(), fsf);
-            }
-        } catch (Exception e) {
-            // Handle exceptions by printing to console
-            System.out.println("Server Stopped Listening.");
-            System.out.println(e);
-        }
-    }
-}
-
 // FTServerFrame Class: Represents the server's graphical user interface
-class FTServerFrame extends JFrame implements ActionListener {
-    private FTServerF server;
+class FTServerFrame extends JFrame implements ActionListener, ServerLogListener {
+    private static final String THREAD_PER_CONNECTION = "Thread per connection";
+    private static final String VIRTUAL_THREADS = "Virtual threads";
+    private static final String NIO_SELECTOR = "NIO selector";
+
+    private FTServerEngine server;
     private Container container;
     private JButton button;
+    private JButton limitsButton;
+    private JComboBox<String> engineComboBox;
+    private JPanel controlPanel;
     private JTextArea jta;
     private JScrollPane jsp;
+    private JLabel metricsLabel;
     private boolean serverState = false;
 
     // Constructor
@@ -209,32 +27,106 @@ class FTServerFrame extends JFrame implements ActionListener {
         jta = new JTextArea();
         jsp = new JScrollPane(jta, ScrollPaneConstants.VERTICAL_SCROLLBAR_ALWAYS,
                 ScrollPaneConstants.HORIZONTAL_SCROLLBAR_ALWAYS);
+        engineComboBox = new JComboBox<>(new String[] { THREAD_PER_CONNECTION, VIRTUAL_THREADS, NIO_SELECTOR });
+        controlPanel = new JPanel(new BorderLayout());
+        controlPanel.add(engineComboBox, BorderLayout.WEST);
+        controlPanel.add(button, BorderLayout.CENTER);
+        limitsButton = new JButton("Rate limit");
+        controlPanel.add(limitsButton, BorderLayout.EAST);
+        metricsLabel = new JLabel(" ");
+        container.add(metricsLabel, BorderLayout.NORTH);
         container.add(jsp, BorderLayout.CENTER);
-        container.add(button, BorderLayout.SOUTH);
+        container.add(controlPanel, BorderLayout.SOUTH);
+        new javax.swing.Timer(1000, ev -> showMetrics()).start();
         server = new FTServerF(this);
         setLocation(100, 100);
         setSize(500, 500);
         setVisible(true);
         button.addActionListener(this);
+        limitsButton.addActionListener(ev -> editRateLimits());
+    }
+
+    // Let the operator change the rate limits in MB/s, they apply to running transfers too
+    private void editRateLimits() {
+        BandwidthShaper shaper = BandwidthShaper.getInstance();
+        JTextField globalField = new JTextField(toMegabytes(shaper.getGlobalRate()));
+        JTextField addressField = new JTextField(toMegabytes(shaper.getAddressRate()));
+        JTextField transferField = new JTextField(toMegabytes(shaper.getTransferRate()));
+        JPanel panel = new JPanel(new GridLayout(4, 2, 5, 5));
+        panel.add(new JLabel("Server (MB/s)"));
+        panel.add(globalField);
+        panel.add(new JLabel("Per client (MB/s)"));
+        panel.add(addressField);
+        panel.add(new JLabel("Per transfer (MB/s)"));
+        panel.add(transferField);
+        panel.add(new JLabel("0 means unlimited"));
+        int option = JOptionPane.showConfirmDialog(this, panel, "Rate limit", JOptionPane.OK_CANCEL_OPTION);
+        if (option != JOptionPane.OK_OPTION) return;
+        try {
+            long globalRate = fromMegabytes(globalField.getText());
+            long addressRate = fromMegabytes(addressField.getText());
+            long transferRate = fromMegabytes(transferField.getText());
+            shaper.setGlobalRate(globalRate);
+            shaper.setAddressRate(addressRate);
+            shaper.setTransferRate(transferRate);
+            updateLog("Rate limits set to " + toMegabytes(globalRate) + " MB/s per server, " + toMegabytes(addressRate)
+                    + " MB/s per client, " + toMegabytes(transferRate) + " MB/s per transfer");
+        } catch (NumberFormatException e) {
+            JOptionPane.showMessageDialog(this, "Not a number: " + e.getMessage());
+        }
     }
 
-    // Update the server log
+    private static String toMegabytes(long rate) {
+        return rate % (1024 * 1024) == 0 ? String.valueOf(rate / (1024 * 1024)) : String.valueOf(rate / 1048576.0);
+    }
+
+    private static long fromMegabytes(String text) {
+        return Math.max(0, Math.round(Double.parseDouble(text.trim()) * 1024 * 1024));
+    }
+
+    // Update the server log, dropping the oldest lines beyond the configured number
     public void updateLog(String message) {
         jta.append(message + "\n");
+        int excess = jta.getLineCount() - 1 - FTConfig.logLines;
+        if (excess > 0) {
+            try {
+                jta.replaceRange(null, 0, jta.getLineEndOffset(excess - 1));
+            } catch (javax.swing.text.BadLocationException e) {
+                jta.setText("");
+            }
+        }
+    }
+
+    // Show the live numbers of TransferMetrics above the log
+    private void showMetrics() {
+        TransferMetrics metrics = TransferMetrics.server();
+        metricsLabel.setText(String.format(" %d connections, %.1f MB/s in, %.1f MB/s out, %d transfers,"
+                + " first ack p99 %.1f ms, transfer p99 %.1f ms", metrics.getActiveConnections(),
+                metrics.getReceiveBytesPerSecond() / 1048576.0, metrics.getSendBytesPerSecond() / 1048576.0,
+                metrics.getTransfers(), metrics.getFirstAckP99Micros() / 1000.0,
+                metrics.getTransferP99Micros() / 1000.0));
     }
 
     // ActionListener for the "Start" and "Stop" button
     public void actionPerformed(ActionEvent ev) {
         if (serverState == false) {
-            server = new FTServerF(this);
+            if (NIO_SELECTOR.equals(engineComboBox.getSelectedItem())) {
+                server = new FTServerNio(this);
+            } else if (VIRTUAL_THREADS.equals(engineComboBox.getSelectedItem())) {
+                server = new FTServerF(this, TransferExecutors.VIRTUAL);
+            } else {
+                server = new FTServerF(this, TransferExecutors.PLATFORM);
+            }
             server.start();
             serverState = true;
+            engineComboBox.setEnabled(false);
             button.setText("Stop");
         } else {
             server.shutdown();
             serverState = false;
+            engineComboBox.setEnabled(true);
             button.setText("Start");
-            jta.append("Server Stopped!\n");
+            updateLog("Server Stopped!");
         }
     }
 
@@ -0,0 +1,6 @@
+// FTServerEngine Interface: Common start/stop contract for the server engines
+interface FTServerEngine {
+    void start();
+
+    void shutdown();
+}
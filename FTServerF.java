@@ -0,0 +1,75 @@
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.swing.*;
+
+// FTServerF Class (Server Thread): Manages server setup and client connections
+class FTServerF extends Thread implements FTServerEngine {
+    private ServerSocket serverSocket;
+    private ServerLogListener fsf;
+    private ExecutorService executor;
+
+    // Constructor
+    FTServerF(ServerLogListener fsf) {
+        this(fsf, FTConfig.executorMode);
+    }
+
+    // Constructor taking the execution mode used for the RequestProcessors (platform or virtual threads)
+    FTServerF(ServerLogListener fsf, String executorMode) {
+        this.fsf = fsf;
+        this.executor = TransferExecutors.newExecutor(executorMode);
+    }
+
+    // Main thread execution
+    public void run() {
+        try {
+            // Opened through a channel so accepted sockets can use FileChannel.transferFrom
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(5500));
+            serverSocket = serverChannel.socket();
+            BlobStore blobStore = BlobStore.getInstance();
+            SwingUtilities.invokeLater(() -> fsf.updateLog("Blob store loaded with " + blobStore.size() + " blobs"));
+            startListening();
+        } catch (Exception e) {
+            // Handle exceptions by printing to console
+            System.out.println(e);
+        }
+    }
+
+    // Shutdown the server
+    public void shutdown() {
+        try {
+            serverSocket.close();
+        } catch (Exception e) {
+            // Handle exceptions by printing to console
+            System.out.println(e);
+        }
+        // Transfers already in progress are allowed to finish
+        executor.shutdown();
+    }
+
+    // Start listening for client connections
+    public void startListening() {
+        try {
+            Socket socket;
+            while (true) {
+                System.out.println("Server Started!");
+
+                // Update the server log when the server is started and listening
+                SwingUtilities.invokeLater(new Thread() {
+                    public void run() {
+                        fsf.updateLog("Server is started and listening to port no 5500");
+                    }
+                });
+
+                socket = serverSocket.accept();
+                executor.execute(new RequestProcessor(socket, UUID.randomUUID().toString(), fsf));
+            }
+        } catch (Exception e) {
+            // Handle exceptions by printing to console
+            System.out.println("Server Stopped Listening.");
+            System.out.println(e);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+import java.net.*;
+import java.nio.channels.*;
+import javax.swing.*;
+
+// FTServerNio Class (Server Thread): Accepts connections on a ServerSocketChannel
+// and hands them to a fixed set of selector driven event loops
+class FTServerNio extends Thread implements FTServerEngine {
+    private ServerSocketChannel serverChannel;
+    private ServerLogListener fsf;
+    private NioEventLoop eventLoops[];
+
+    // Constructor
+    FTServerNio(ServerLogListener fsf) {
+        this(fsf, Runtime.getRuntime().availableProcessors());
+    }
+
+    FTServerNio(ServerLogListener fsf, int numberOfEventLoops) {
+        this.fsf = fsf;
+        this.eventLoops = new NioEventLoop[Math.max(1, numberOfEventLoops)];
+    }
+
+    // Main thread execution
+    public void run() {
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(5500));
+            for (int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i] = new NioEventLoop(fsf, i);
+                eventLoops[i].start();
+            }
+            startListening();
+        } catch (Exception e) {
+            // Handle exceptions by printing to console
+            System.out.println(e);
+        }
+    }
+
+    // Shutdown the server and its event loops
+    public void shutdown() {
+        try {
+            serverChannel.close();
+        } catch (Exception e) {
+            // Handle exceptions by printing to console
+            System.out.println(e);
+        }
+        for (NioEventLoop eventLoop : eventLoops) {
+            if (eventLoop != null) eventLoop.shutdown();
+        }
+    }
+
+    // Accept client connections and spread them over the event loops round robin
+    public void startListening() {
+        try {
+            System.out.println("Server Started!");
+            SwingUtilities.invokeLater(() -> fsf.updateLog("Server is started and listening to port no 5500 ("
+                    + eventLoops.length + " event loops)"));
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                eventLoops[next].register(channel);
+                next = (next + 1) % eventLoops.length;
+            }
+        } catch (Exception e) {
+            // Handle exceptions by printing to console
+            System.out.println("Server Stopped Listening.");
+            System.out.println(e);
+        }
+    }
+}
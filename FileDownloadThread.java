@@ -0,0 +1,227 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.swing.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/**
+ * The FileDownloadThread class fetches a file from the uploads directory of
+ * the server with {@link FTHeader#OP_DOWNLOAD} requests. Files of at least
+ * {@link FTConfig#stripeThreshold} bytes are split into
+ * {@link FTConfig#downloadStreams} byte ranges fetched over parallel
+ * connections. The data goes to a ".part" file that is renamed when complete;
+ * a failed attempt is retried after a backoff and fetches only the bytes each
+ * range is still missing, as long as the server's file did not change.
+ */
+class FileDownloadThread implements Runnable, TrackedTransfer {
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private String id;
+    private FileUploadListener fileDownloadListener;
+    private String remoteName;
+    private File file;
+    private String host;
+    private int portNumber;
+    private volatile long lengthOfFile = -1;
+    private long version;
+    private long lengthOfRange;
+    private long rangeReceived[];
+    private AtomicLong bytesDownloaded = new AtomicLong();
+
+    FileDownloadThread(FileUploadListener fileDownloadListener, String id, String remoteName, File file, String host,
+            int portNumber) {
+        this.fileDownloadListener = fileDownloadListener;
+        this.id = id;
+        this.remoteName = remoteName;
+        this.file = file;
+        this.host = host;
+        this.portNumber = portNumber;
+    }
+
+    public void run() {
+        fireStatus(FileUploadStatus.DOWNLOADING);
+        int attempts = 0;
+        int retryAfters = 0;
+        while (true) {
+            attempts++;
+            long startedAt = System.nanoTime();
+            try {
+                download();
+                TransferMetrics.client().transferCompleted(System.nanoTime() - startedAt);
+                fireStatus(FileUploadStatus.DOWNLOADED);
+                return;
+            } catch (Exception e) {
+                TransferMetrics.client().transferFailed();
+                RetryAfterException retryAfter = RetryAfterException.find(e);
+                if (retryAfters >= FTConfig.maxRetryAfter)
+                    retryAfter = null;
+                if (retryAfter == null && (attempts >= FTConfig.uploadAttempts || e instanceof FileNotFoundException)) {
+                    System.out.println(e + ", giving up on " + remoteName);
+                    fireStatus(FileUploadStatus.FAILED);
+                    return;
+                }
+                long delay;
+                if (retryAfter != null) {
+                    // A busy server is not a failed attempt
+                    retryAfters++;
+                    attempts--;
+                    delay = retryAfter.getDelay();
+                } else {
+                    delay = Math.min(FTConfig.retryBackoff << (attempts - 1), 60000);
+                }
+                System.out.println(e + ", retrying " + remoteName + " in " + delay + " ms");
+                fireStatus(FileUploadStatus.RETRYING);
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException interrupted) {
+                    fireStatus(FileUploadStatus.FAILED);
+                    return;
+                }
+                fireStatus(FileUploadStatus.DOWNLOADING);
+            }
+        }
+    }
+
+    /**
+     * Runs one attempt of the download, continuing the ranges of the previous
+     * attempt when the server's file is unchanged.
+     */
+    void download() throws IOException {
+        File part = new File(file.getPath() + ".part");
+        long probe[] = new long[2];
+        fetch(0, 0, probe, null, -1);
+        if (rangeReceived == null || probe[0] != lengthOfFile || probe[1] != version) {
+            // First attempt, or the file changed on the server since the last one: start over
+            lengthOfFile = probe[0];
+            version = probe[1];
+            int streams = lengthOfFile >= FTConfig.stripeThreshold ? Math.max(1, FTConfig.downloadStreams) : 1;
+            lengthOfRange = Math.max(1, (lengthOfFile + streams - 1) / streams);
+            rangeReceived = new long[(int) ((lengthOfFile + lengthOfRange - 1) / lengthOfRange)];
+            bytesDownloaded.set(0);
+            part.delete();
+        }
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create " + directory);
+        try (RandomAccessFile raf = new RandomAccessFile(part, "rw")) {
+            raf.setLength(lengthOfFile);
+            FileChannel fileChannel = raf.getChannel();
+            if (rangeReceived.length <= 1) {
+                if (rangeReceived.length == 1)
+                    fetchRange(fileChannel, 0);
+            } else {
+                ExecutorService executor = TransferExecutors.newExecutor(FTConfig.executorMode);
+                ArrayList<Future<?>> ranges = new ArrayList<>();
+                try {
+                    for (int i = 0; i < rangeReceived.length; i++) {
+                        int range = i;
+                        ranges.add(executor.submit(() -> {
+                            fetchRange(fileChannel, range);
+                            return null;
+                        }));
+                    }
+                    for (Future<?> range : ranges) {
+                        range.get();
+                    }
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+                            : new IOException(e.getCause());
+                } finally {
+                    executor.shutdownNow();
+                }
+            }
+        }
+        Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Fetch the part of a range that earlier attempts did not receive
+    private void fetchRange(FileChannel fileChannel, int range) throws IOException {
+        long start = range * lengthOfRange;
+        long end = Math.min(start + lengthOfRange, lengthOfFile);
+        long offset = start + rangeReceived[range];
+        if (offset < end)
+            fetch(offset, end - offset, new long[2], fileChannel, range);
+    }
+
+    // Request length bytes from offset on and write them to the channel, the file's length and version go to info
+    private void fetch(long offset, long length, long info[], FileChannel fileChannel, int range) throws IOException {
+        TransferMetrics metrics = TransferMetrics.client();
+        try (SocketChannel socketChannel = SocketChannel.open(new InetSocketAddress(host, portNumber));
+                TransferMetrics.Connection connection = metrics.open()) {
+            Socket socket = socketChannel.socket();
+            socket.setTcpNoDelay(true);
+            FTHeader header = new FTHeader(FTHeader.OP_DOWNLOAD, 0, length, remoteName);
+            header.setRange(offset, 0);
+            header.write(socket.getOutputStream());
+            DataInputStream dis = new DataInputStream(socket.getInputStream());
+            byte status = FTProtocol.readStatus(dis);
+            connection.firstAck();
+            RetryAfterException.check(status, dis, remoteName);
+            if (status == FTProtocol.STATUS_NOT_FOUND)
+                throw new FileNotFoundException(remoteName + " is not on the server");
+            if (status != FTProtocol.STATUS_OK)
+                throw new IOException("Server refused " + remoteName + " with status " + status);
+            info[0] = dis.readLong();
+            info[1] = dis.readLong();
+            if (fileChannel == null)
+                return;
+            if (info[0] != lengthOfFile || info[1] != version)
+                throw new IOException(remoteName + " changed on the server during the download");
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) Math.min(BUFFER_SIZE, length));
+            long received = 0;
+            while (received < length) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), length - received));
+                if (socketChannel.read(buffer) == -1)
+                    throw new EOFException("Server closed the connection after " + received + " of " + length
+                            + " bytes of " + remoteName);
+                buffer.flip();
+                int bytesReadCount = buffer.remaining();
+                metrics.bytesReceived(bytesReadCount);
+                long writeStartedAt = System.nanoTime();
+                while (buffer.hasRemaining()) {
+                    fileChannel.write(buffer, offset + received + buffer.position());
+                }
+                metrics.diskStall(System.nanoTime() - writeStartedAt);
+                received += bytesReadCount;
+                rangeReceived[range] += bytesReadCount;
+                bytesDownloaded.addAndGet(bytesReadCount);
+            }
+        }
+    }
+
+    private void fireStatus(FileUploadStatus status) {
+        if (fileDownloadListener == null)
+            return;
+        SwingUtilities.invokeLater(() -> {
+            FileUploadEvent fue = new FileUploadEvent();
+            fue.setUploaderId(id);
+            fue.setFile(file);
+            fue.setStatus(status);
+            fue.setNumberOfBytesUploaded(bytesDownloaded.get());
+            fileDownloadListener.fileUploadStatusChanged(fue);
+        });
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getLength() {
+        return lengthOfFile;
+    }
+
+    public long getBytesTransferred() {
+        return bytesDownloaded.get();
+    }
+}
@@ -0,0 +1,91 @@
+import java.io.*;
+
+/**
+ * The FileUploadEvent class represents an event related to file uploads. It
+ * includes information about the uploader, file, and bytes uploaded.
+ */
+class FileUploadEvent {
+    private String uploaderId;
+    private File file;
+    private long numberOfBytesUploaded;
+    private FileUploadStatus status;
+
+    public FileUploadEvent() {
+        this.uploaderId = null;
+        this.file = null;
+        this.numberOfBytesUploaded = 0;
+        this.status = FileUploadStatus.UPLOADING;
+    }
+
+    /**
+     * Sets the uploader's ID for the event.
+     *
+     * @param uploaderId The unique uploader ID.
+     */
+    public void setUploaderId(String uploaderId) {
+        this.uploaderId = uploaderId;
+    }
+
+    /**
+     * Gets the uploader's ID for the event.
+     *
+     * @return The uploader's ID.
+     */
+    public String getUploaderId() {
+        return this.uploaderId;
+    }
+
+    /**
+     * Sets the file associated with the event.
+     *
+     * @param file The uploaded file.
+     */
+    public void setFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Gets the file associated with the event.
+     *
+     * @return The uploaded file.
+     */
+    public File getFile() {
+        return this.file;
+    }
+
+    /**
+     * Sets the number of bytes uploaded for the event.
+     *
+     * @param numberOfBytesUploaded The number of bytes uploaded.
+     */
+    public void setNumberOfBytesUploaded(long numberOfBytesUploaded) {
+        this.numberOfBytesUploaded = numberOfBytesUploaded;
+    }
+
+    /**
+     * Gets the number of bytes uploaded for the event.
+     *
+     * @return The number of bytes uploaded.
+     */
+    public long getNumberOfBytesUploaded() {
+        return this.numberOfBytesUploaded;
+    }
+
+    /**
+     * Sets the state of the upload for the event.
+     *
+     * @param status The state of the upload.
+     */
+    public void setStatus(FileUploadStatus status) {
+        this.status = status;
+    }
+
+    /**
+     * Gets the state of the upload for the event.
+     *
+     * @return The state of the upload.
+     */
+    public FileUploadStatus getStatus() {
+        return this.status;
+    }
+}
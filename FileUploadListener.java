@@ -0,0 +1,12 @@
+/**
+ * The FileUploadListener interface defines methods to handle file upload
+ * status changes.
+ */
+interface FileUploadListener {
+    /**
+     * Handles a file upload status change event.
+     *
+     * @param fileUploadEvent The file upload event.
+     */
+    public void fileUploadStatusChanged(FileUploadEvent fileUploadEvent);
+}
@@ -0,0 +1,104 @@
+import java.io.*;
+import java.util.*;
+import java.net.*;
+import java.nio.channels.*;
+
+/**
+ * The FileUploadSession class uploads many files over a single connection.
+ * It opens an {@link FTHeader#OP_SESSION} session and pipelines one framed
+ * transfer per file without waiting for acknowledgments, while a separate
+ * reader matches the server's acknowledgments to the files by transfer id.
+ * A file the server does not accept, and every file still unacknowledged
+ * when the session fails, goes to the {@link UploadScheduler} to be
+ * uploaded on its own.
+ */
+class FileUploadSession implements Runnable {
+    private ArrayList<FileUploadThread> uploads;
+    private String host;
+    private int portNumber;
+    private UploadScheduler fallback;
+    private boolean acknowledged[];
+
+    FileUploadSession(ArrayList<FileUploadThread> uploads, String host, int portNumber, UploadScheduler fallback) {
+        this.uploads = uploads;
+        this.host = host;
+        this.portNumber = portNumber;
+        this.fallback = fallback;
+        this.acknowledged = new boolean[uploads.size()];
+    }
+
+    public void run() {
+        TransferMetrics metrics = TransferMetrics.client();
+        Thread ackReader = null;
+        try (SocketChannel socketChannel = SocketChannel.open(new InetSocketAddress(host, portNumber));
+                TransferMetrics.Connection connection = metrics.open()) {
+            Socket socket = socketChannel.socket();
+            OutputStream os = socket.getOutputStream();
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            new FTHeader(FTHeader.OP_SESSION, FTHeader.FLAG_ACK_HEADER, uploads.size(), "").write(os);
+            byte status = FTProtocol.readStatus(dis);
+            connection.firstAck();
+            if (status != FTProtocol.STATUS_OK)
+                throw new IOException("Server refused the upload session with status " + status);
+
+            ackReader = new Thread(() -> readAcks(dis), "session-acks");
+            ackReader.start();
+            for (int transferId = 0; transferId < uploads.size(); transferId++) {
+                FileUploadThread upload = uploads.get(transferId);
+                FTHeader frame = new FTHeader(FTHeader.OP_UPLOAD, 0, upload.getFile().length(),
+                        upload.getRemoteName());
+                frame.setTransferId(transferId);
+                frame.write(os);
+                upload.sendFileData(socketChannel, 0);
+            }
+            // Ends the session, the server still sends the acks it owes
+            socket.shutdownOutput();
+            ackReader.join();
+        } catch (Exception e) {
+            System.out.println(e + ", uploading the rest of the session file by file");
+        }
+        // The connection is closed by now, so the reader stops at the latest with an exception
+        try {
+            if (ackReader != null)
+                ackReader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (int transferId = 0; transferId < uploads.size(); transferId++) {
+            acknowledge(transferId, false);
+        }
+    }
+
+    private void readAcks(DataInputStream dis) {
+        try {
+            for (int i = 0; i < uploads.size(); i++) {
+                byte status = dis.readByte();
+                int transferId = dis.readInt();
+                if (transferId < 0 || transferId >= uploads.size())
+                    throw new IOException("Acknowledgment for unknown transfer " + transferId);
+                if (status != FTProtocol.STATUS_OK)
+                    System.out.println("Server rejected " + uploads.get(transferId).getFile().getName()
+                            + " with status " + status + ", uploading it on its own");
+                acknowledge(transferId, status == FTProtocol.STATUS_OK);
+            }
+        } catch (IOException e) {
+            System.out.println(e);
+        }
+    }
+
+    // Settles a file on its first acknowledgment, a file the server did not take is queued on its own
+    private void acknowledge(int transferId, boolean accepted) {
+        synchronized (this) {
+            if (acknowledged[transferId])
+                return;
+            acknowledged[transferId] = true;
+        }
+        FileUploadThread upload = uploads.get(transferId);
+        if (accepted) {
+            upload.fireStatus(FileUploadStatus.COMPLETED);
+        } else {
+            upload.fireStatus(FileUploadStatus.PENDING);
+            fallback.submit(upload);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/**
+ * The FileUploadStatus enum lists the states an upload goes through while the
+ * scheduler runs it.
+ */
+enum FileUploadStatus {
+    PENDING("Pending"), UPLOADING("Uploading"), RETRYING("Retrying"), COMPLETED("Uploaded"), FAILED("Failed"),
+    DOWNLOADING("Downloading"), DOWNLOADED("Downloaded");
+
+    private String label;
+
+    FileUploadStatus(String label) {
+        this.label = label;
+    }
+
+    /**
+     * Gets the text shown for the state in the upload view.
+     *
+     * @return The label of the state.
+     */
+    public String getLabel() {
+        return this.label;
+    }
+
+    /**
+     * Tells whether the transfer is moving data in this state.
+     *
+     * @return true while uploading or downloading.
+     */
+    public boolean isActive() {
+        return this == UPLOADING || this == DOWNLOADING;
+    }
+
+    /**
+     * Tells whether the transfer finished successfully in this state.
+     *
+     * @return true once uploaded or downloaded.
+     */
+    public boolean isDone() {
+        return this == COMPLETED || this == DOWNLOADED;
+    }
+}
@@ -0,0 +1,453 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.swing.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+/**
+ * The FileUploadThread class represents the task of uploading a file to the
+ * server. It is run by the executor of the upload view, which uses platform or
+ * virtual threads depending on the configured execution mode.
+ */
+class FileUploadThread implements Runnable, TrackedTransfer {
+    /**
+     * The limit shared by every upload of the client, see
+     * {@link FTConfig#uploadRateLimit}.
+     */
+    static final TokenBucket uploadLimit = new TokenBucket(FTConfig.uploadRateLimit);
+
+    // How long a server's refusal of a header is remembered, it may be restarted with another engine
+    private static final long REFUSAL_MEMORY = TimeUnit.MINUTES.toMillis(5);
+    // The flags each server, by host:port, refused lately, with the time the refusal is forgotten
+    private static final ConcurrentHashMap<String, ConcurrentHashMap<Integer, Long>> refusals =
+            new ConcurrentHashMap<>();
+
+    private String id;
+    private FileUploadListener fileUploadListener;
+    private File file;
+    private String remoteName;
+    private String host;
+    private int portNumber;
+    private boolean resumable;
+    private byte digest[];
+    private boolean compress;
+    private byte checksumAlgorithm;
+    private AtomicLong bytesUploaded = new AtomicLong();
+    private TransferTuner tuner;
+
+    FileUploadThread(FileUploadListener fileUploadListener, String id, File file, String host, int portNumber) {
+        this.fileUploadListener = fileUploadListener;
+        this.id = id;
+        this.host = host;
+        this.file = file;
+        this.remoteName = file.getName();
+        this.portNumber = portNumber;
+    }
+
+    public void run() {
+        try {
+            upload();
+        } catch (Exception e) {
+            System.out.println(e);
+        }
+    }
+
+    /**
+     * Uploads the file, striping it over several connections where the
+     * configuration asks for it. A failed attempt throws, the
+     * {@link UploadScheduler} starts the next one after a backoff, and a
+     * resumable upload then continues from the offset the server holds.
+     */
+    public void upload() throws Exception {
+        TransferMetrics metrics = TransferMetrics.client();
+        long startedAt = System.nanoTime();
+        try {
+            send();
+        } catch (Exception e) {
+            metrics.transferFailed();
+            throw e;
+        }
+        metrics.transferCompleted(System.nanoTime() - startedAt);
+    }
+
+    // One attempt of the upload, striped or over a single connection
+    private void send() throws Exception {
+        long lengthOfFile = file.length();
+        if (FTConfig.stripeCount > 1 && lengthOfFile > 0 && lengthOfFile >= FTConfig.stripeThreshold) {
+            new StripedFileUpload(this, host, portNumber, FTConfig.stripeCount).upload();
+            return;
+        }
+        boolean v2 = FTConfig.protocolVersion >= FTHeader.VERSION;
+        resumable = v2 && FTConfig.resume && lengthOfFile >= FTConfig.resumeThreshold;
+        digest = v2 && FTConfig.dedup ? FTProtocol.sha256(file) : null;
+        compress = v2 && FTConfig.compression && lengthOfFile >= FTConfig.compressionThreshold;
+        checksumAlgorithm = v2 && !refusedBefore(FTHeader.FLAG_CHECKSUM) ? FTConfig.checksum
+                : FTProtocol.CHECKSUM_NONE;
+        int flags = negotiatedFlags();
+        if (flags == 0 || refusedBefore(flags)) {
+            compress = false;
+            uploadPlain();
+            return;
+        }
+        if (!uploadOnce(true)) {
+            // The server does not keep journals, a blob store or decompress, send the file the plain way
+            refused(flags);
+            compress = false;
+            uploadPlain();
+        }
+    }
+
+    // A plain upload, sent once more without the checksum when the server does not know the algorithm
+    private void uploadPlain() throws IOException {
+        if (!uploadOnce(false)) {
+            refused(FTHeader.FLAG_CHECKSUM);
+            checksumAlgorithm = FTProtocol.CHECKSUM_NONE;
+            uploadOnce(false);
+        }
+    }
+
+    // The flags the negotiating header asks for, besides the header ack. A checksum alone does not need the header
+    // answered first, the final ack carries it
+    private int negotiatedFlags() {
+        int flags = 0;
+        if (resumable)
+            flags |= FTHeader.FLAG_UPLOAD_ID | FTHeader.FLAG_RESUME;
+        if (digest != null)
+            flags |= FTHeader.FLAG_DIGEST;
+        if (compress)
+            flags |= FTHeader.FLAG_COMPRESSED;
+        return flags;
+    }
+
+    // Whether the server refused a header with some of these flags lately. Flags that include all of a refused set
+    // include the one the server does not support, so the upload skips the negotiation that would fail again
+    private boolean refusedBefore(int flags) {
+        Map<Integer, Long> refused = refusals.get(host + ":" + portNumber);
+        if (refused == null)
+            return false;
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Integer, Long> refusal : refused.entrySet()) {
+            if ((flags & refusal.getKey()) == refusal.getKey() && refusal.getValue() > now)
+                return true;
+        }
+        return false;
+    }
+
+    private void refused(int flags) {
+        refusals.computeIfAbsent(host + ":" + portNumber, server -> new ConcurrentHashMap<>()).put(flags,
+                System.currentTimeMillis() + REFUSAL_MEMORY);
+    }
+
+    // With negotiate set the header asks for resuming and compression and/or offers the digest, and the server answers
+    // it first. Either way it asks for a checksum of the body unless the algorithm is none.
+    // Returns false when the server does not support the negotiated flags, without sending the body, or the checksum
+    // algorithm of a plain upload.
+    private boolean uploadOnce(boolean negotiate) throws IOException {
+        long lengthOfFile = file.length();
+        TransferMetrics metrics = TransferMetrics.client();
+        try (SocketChannel socketChannel = SocketChannel.open(new InetSocketAddress(host, portNumber));
+                TransferMetrics.Connection connection = metrics.open()) {
+            Socket socket = socketChannel.socket();
+            // Every write is a whole header or chunk, do not hold the last small one back for the server's delayed ack
+            socket.setTcpNoDelay(true);
+            tuner = new TransferTuner(socket, true, initialChunkSize());
+            OutputStream os = socket.getOutputStream();
+            InputStream is = socket.getInputStream();
+            long offset = 0;
+            if (FTConfig.protocolVersion < FTHeader.VERSION) {
+                long headerSentAt = System.nanoTime();
+                os.write(createLegacyHeader(lengthOfFile, remoteName), 0, 1024);
+                os.flush();
+                FTProtocol.readStatus(is);
+                tuner.roundTrip(System.nanoTime() - headerSentAt);
+                connection.firstAck();
+            } else if (negotiate) {
+                FTHeader header = new FTHeader(FTHeader.OP_UPLOAD, FTHeader.FLAG_ACK_HEADER, lengthOfFile,
+                        remoteName);
+                if (resumable) {
+                    header.setUploadId(getResumeId());
+                    header.setResume();
+                }
+                if (digest != null)
+                    header.setDigest(digest);
+                if (compress)
+                    header.setCompressed();
+                if (checksumAlgorithm != FTProtocol.CHECKSUM_NONE)
+                    header.setChecksum(checksumAlgorithm);
+                long headerSentAt = System.nanoTime();
+                header.write(os);
+                byte status = FTProtocol.readStatus(is);
+                tuner.roundTrip(System.nanoTime() - headerSentAt);
+                connection.firstAck();
+                if (status == FTProtocol.STATUS_UNSUPPORTED)
+                    return false;
+                RetryAfterException.check(status, is, file.getName());
+                NoSpaceException.check(status, file.getName());
+                if (status == FTProtocol.STATUS_HAVE_IT) {
+                    // The server already stores this content, the body is not needed
+                    setBytesUploaded(lengthOfFile);
+                    return true;
+                }
+                // A resumable upload is answered with the offset the server already holds
+                if (resumable)
+                    offset = FTProtocol.readLong(is);
+                if (status != FTProtocol.STATUS_OK)
+                    throw new IOException("Server cannot accept " + file.getName() + " now, status " + status);
+            } else if (lengthOfFile > FTProtocol.MAX_UNACKED_BODY) {
+                // A server at capacity would cut a long body off, wait for it to accept the header
+                FTHeader header = new FTHeader(FTHeader.OP_UPLOAD, FTHeader.FLAG_ACK_HEADER, lengthOfFile, remoteName);
+                if (checksumAlgorithm != FTProtocol.CHECKSUM_NONE)
+                    header.setChecksum(checksumAlgorithm);
+                long headerSentAt = System.nanoTime();
+                header.write(os);
+                byte status = FTProtocol.readStatus(is);
+                tuner.roundTrip(System.nanoTime() - headerSentAt);
+                connection.firstAck();
+                if (status == FTProtocol.STATUS_UNSUPPORTED && checksumAlgorithm != FTProtocol.CHECKSUM_NONE)
+                    return false;
+                RetryAfterException.check(status, is, file.getName());
+                NoSpaceException.check(status, file.getName());
+                if (status != FTProtocol.STATUS_OK)
+                    throw new IOException("Server cannot accept " + file.getName() + " now, status " + status);
+            } else {
+                // The body follows the header right away, there is no header ack to wait for
+                FTHeader header = new FTHeader(FTHeader.OP_UPLOAD, 0, lengthOfFile, remoteName);
+                if (checksumAlgorithm != FTProtocol.CHECKSUM_NONE)
+                    header.setChecksum(checksumAlgorithm);
+                header.write(os);
+            }
+            // The checksum is computed from the file on a pool thread while the body streams
+            boolean checksummed = checksumAlgorithm != FTProtocol.CHECKSUM_NONE;
+            CompletableFuture<byte[]> expectedChecksum = checksummed
+                    ? StreamChecksum.computeAsync(file, offset, checksumAlgorithm)
+                    : null;
+            if (negotiate && compress) {
+                new CompressionPipeline(file, offset, this).send(os);
+            } else {
+                sendFileData(socketChannel, offset, tuner);
+            }
+            byte status = FTProtocol.readStatus(is);
+            // Without a header ack the server answers the body, after reading it, when it does not know the checksum
+            // algorithm
+            if (status == FTProtocol.STATUS_UNSUPPORTED && checksummed && !negotiate)
+                return false;
+            // Without a header ack a server at capacity answers the body with the retry delay
+            RetryAfterException.check(status, is, file.getName());
+            NoSpaceException.check(status, file.getName());
+            if (status != FTProtocol.STATUS_OK)
+                throw new IOException("Server rejected " + file.getName() + " with status " + status);
+            if (checksummed) {
+                byte checksum[] = FTProtocol.readChecksum(is);
+                byte expected[];
+                try {
+                    expected = expectedChecksum.join();
+                } catch (CompletionException e) {
+                    throw new IOException("Cannot compute the checksum of " + file.getName(), e.getCause());
+                }
+                if (!Arrays.equals(checksum, expected))
+                    throw new ChecksumMismatchException("Checksum mismatch for " + file.getName() + ": server "
+                            + FTProtocol.toHex(checksum) + ", client " + FTProtocol.toHex(expected));
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Derives the upload id from the file's path, length and modification
+     * time, so a later attempt for the unchanged file finds the server's
+     * journal again.
+     *
+     * @return The upload id used to resume this file.
+     */
+    UUID getResumeId() {
+        String key = file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified();
+        return UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public String getRemoteName() {
+        return remoteName;
+    }
+
+    /**
+     * Returns the tuner of the last attempt over a single connection, which
+     * describes the chunk size and socket buffer the upload ended with.
+     *
+     * @return The tuner, null before the first attempt.
+     */
+    TransferTuner getTuner() {
+        return tuner;
+    }
+
+    // The chunk size an upload starts from, the tuning adapts it from there
+    static int initialChunkSize() {
+        return FTConfig.zeroCopy ? (int) Math.min(Integer.MAX_VALUE, FTConfig.zeroCopyChunkSize)
+                : FTConfig.readAheadChunkSize;
+    }
+
+    /**
+     * Sets the name the server saves the file under, by default the file's
+     * own name. Sync uploads use the path relative to the synced directory,
+     * with '/' separators.
+     *
+     * @param remoteName The name sent in the header.
+     */
+    public void setRemoteName(String remoteName) {
+        this.remoteName = remoteName;
+    }
+
+    /**
+     * Sends the body of the file, reporting progress as it goes. Also used by
+     * {@link FileUploadSession} to send the body of each frame. Without
+     * zero-copy a {@link ReadAheadReader} reads the next chunks while the
+     * current one is written, and the chunks go to the channel without
+     * flushes in between.
+     *
+     * @param socketChannel The channel of the connection.
+     * @param offset        The position to start from, non zero when resuming.
+     */
+    void sendFileData(SocketChannel socketChannel, long offset) throws IOException {
+        sendFileData(socketChannel, offset, new TransferTuner(socketChannel.socket(), true, initialChunkSize()));
+    }
+
+    private void sendFileData(SocketChannel socketChannel, long offset, TransferTuner tuner) throws IOException {
+        if (FTConfig.zeroCopy) {
+            try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                sendFileDataZeroCopy(fileChannel, socketChannel, offset, fileChannel.size(), tuner);
+            }
+            return;
+        }
+        try (ReadAheadReader reader = new ReadAheadReader(file, offset, tuner.getChunkSize(),
+                FTConfig.readAheadChunks)) {
+            long j = offset;
+            TransferMetrics metrics = TransferMetrics.client();
+            ByteBuffer chunk;
+            while (true) {
+                // The reader is ahead of the socket unless the disk is slower
+                long waitStartedAt = System.nanoTime();
+                chunk = reader.next();
+                metrics.diskStall(System.nanoTime() - waitStartedAt);
+                if (chunk == null)
+                    break;
+                while (chunk.hasRemaining()) {
+                    socketChannel.write(chunk);
+                }
+                uploadLimit.acquire(chunk.limit());
+                metrics.bytesSent(chunk.limit());
+                tuner.transferred(chunk.limit());
+                reader.setChunkSize(tuner.getChunkSize());
+                j = j + chunk.limit();
+                reader.recycle(chunk);
+                setBytesUploaded(j);
+            }
+        }
+    }
+
+    /**
+     * Builds the legacy 1024 byte header: the file length as decimal digits,
+     * least significant first and one per byte, a ',' and the space padded
+     * name.
+     */
+    private static byte[] createLegacyHeader(long lengthOfFile, String name) {
+        byte header[] = new byte[1024];
+        int i;
+        long x, k;
+        i = 0;
+        k = lengthOfFile;
+        while (k > 0) {
+            header[i] = (byte) (k % 10);
+            k = k / 10;
+            i++;
+        }
+        header[i] = (byte) ',';
+        i++;
+        x = name.length();
+        int r = 0;
+        while (r < x) {
+            header[i] = (byte) name.charAt(r);
+            i++;
+            r++;
+        }
+        while (i <= 1023) {
+            header[i] = (byte) 32;
+            i++;
+        }
+        return header;
+    }
+
+    /**
+     * Streams the file to the socket with FileChannel.transferTo so the bytes
+     * never pass through the Java heap. The transfer is split into chunks of
+     * {@link FTConfig#zeroCopyChunkSize} bytes, or the size the tuner chose,
+     * progress is reported after each.
+     */
+    private void sendFileDataZeroCopy(FileChannel fileChannel, SocketChannel socketChannel, long position,
+            long lengthOfFile, TransferTuner tuner) throws IOException {
+        while (position < lengthOfFile) {
+            long count = Math.min(Math.min(tuner.getChunkSize(), uploadLimit.getBurst()), lengthOfFile - position);
+            long bytesSent = fileChannel.transferTo(position, count, socketChannel);
+            // The socket blocks until it takes bytes, nothing sent means the file ends before its announced length
+            if (bytesSent == 0)
+                throw new EOFException(file.getName() + " shrank during the upload");
+            uploadLimit.acquire(bytesSent);
+            TransferMetrics.client().bytesSent(bytesSent);
+            tuner.transferred(bytesSent);
+            position += bytesSent;
+            setBytesUploaded(position);
+        }
+    }
+
+    /**
+     * Reports a change of the upload's state, for example while it waits in
+     * the scheduler's queue.
+     *
+     * @param status The new state.
+     */
+    void fireStatus(FileUploadStatus status) {
+        if (fileUploadListener == null)
+            return;
+        SwingUtilities.invokeLater(() -> {
+            FileUploadEvent fue = new FileUploadEvent();
+            fue.setUploaderId(id);
+            fue.setFile(file);
+            fue.setStatus(status);
+            fue.setNumberOfBytesUploaded(bytesUploaded.get());
+            fileUploadListener.fileUploadStatusChanged(fue);
+        });
+    }
+
+    /**
+     * Records the progress of the upload. This is called for every chunk, so
+     * it only updates a counter; the upload view polls it with
+     * {@link #getBytesUploaded()} at a fixed frame rate.
+     *
+     * @param numberOfBytesUploaded The number of bytes the server has been sent so far.
+     */
+    void setBytesUploaded(long numberOfBytesUploaded) {
+        bytesUploaded.set(numberOfBytesUploaded);
+    }
+
+    public long getBytesUploaded() {
+        return bytesUploaded.get();
+    }
+
+    public long getBytesTransferred() {
+        return bytesUploaded.get();
+    }
+
+    public long getLength() {
+        return file.length();
+    }
+}
@@ -0,0 +1,98 @@
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+
+// GroupCommitter Class: Syncs the uploads that complete within a short window together, one per volume. The first
+// commit of a batch waits up to the window for others to join, then the committer thread syncs every file of the batch
+// back to back, which the file system folds into a few journal commits, renames them, syncs each directory once and
+// releases the waiting RequestProcessors to send their final acks
+class GroupCommitter extends Thread {
+    private LinkedBlockingQueue<CommitRequest> requests = new LinkedBlockingQueue<>();
+    private long windowNanos;
+    private int maxBatch;
+    private long batches;
+    private long commits;
+
+    GroupCommitter(String name, long windowMicros, int maxBatch) {
+        super("group-commit-" + name);
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.maxBatch = maxBatch;
+        setDaemon(true);
+    }
+
+    // Queue the file for the next batch and wait until the batch is durable
+    void commit(FileChannel data, File temporary, File target) throws IOException {
+        CommitRequest request = new CommitRequest(data, temporary, target);
+        requests.add(request);
+        try {
+            request.done.await();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for the group commit");
+        }
+        if (request.failure != null) throw request.failure;
+    }
+
+    public void run() {
+        ArrayList<CommitRequest> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(requests.take());
+                long deadline = System.nanoTime() + windowNanos;
+                while (batch.size() < maxBatch) {
+                    CommitRequest request = requests.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (request == null) break;
+                    batch.add(request);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            commit(batch);
+            batch.clear();
+        }
+    }
+
+    private void commit(ArrayList<CommitRequest> batch) {
+        LinkedHashSet<File> directories = new LinkedHashSet<>();
+        for (CommitRequest request : batch) {
+            try {
+                request.data.force(true);
+                request.data.close();
+                Durability.rename(request.temporary, request.target);
+                directories.add(request.target.getParentFile());
+            } catch (IOException e) {
+                request.failure = e;
+            }
+        }
+        for (File directory : directories) {
+            Durability.syncDirectory(directory);
+        }
+        synchronized (this) {
+            batches++;
+            commits += batch.size();
+        }
+        for (CommitRequest request : batch) {
+            request.done.countDown();
+        }
+    }
+
+    // The number of batches synced and of files they held, for the benchmark
+    synchronized long[] getBatchesAndCommits() {
+        return new long[] { batches, commits };
+    }
+
+    // A completed upload waiting for its batch
+    private static class CommitRequest {
+        FileChannel data;
+        File temporary;
+        File target;
+        IOException failure;
+        CountDownLatch done = new CountDownLatch(1);
+
+        CommitRequest(FileChannel data, File temporary, File target) {
+            this.data = data;
+            this.temporary = temporary;
+            this.target = target;
+        }
+    }
+}
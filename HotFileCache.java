@@ -0,0 +1,132 @@
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.io.*;
+
+// HotFileCache Class: Keeps the most requested small files in direct buffers for downloads, so a release artifact
+// fetched by hundreds of clients is read from disk once. A file is cached on its second request within the recent
+// ones, one-off downloads do not push out the hot files, and the least recently used files are evicted once the cache
+// is full. Every entry remembers the length and modification time it was read with and is dropped when they change
+class HotFileCache {
+    private static final HotFileCache instance = new HotFileCache(FTConfig.hotFileCacheSize, FTConfig.hotFileMaxLength,
+            FTConfig.hotFileMinHits);
+    private static final int MAX_CANDIDATES = 4096;
+
+    private long capacity;
+    private long maxLength;
+    private int minHits;
+    private long size;
+    private long hits;
+    private long misses;
+    private LinkedHashMap<String, CachedFile> files = new LinkedHashMap<>(16, 0.75f, true);
+    private LinkedHashMap<String, Integer> candidates = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > MAX_CANDIDATES;
+        }
+    };
+
+    HotFileCache(long capacity, long maxLength, int minHits) {
+        this.capacity = capacity;
+        this.maxLength = maxLength;
+        this.minHits = minHits;
+    }
+
+    static HotFileCache getInstance() {
+        return instance;
+    }
+
+    // The cached content of the file in a private view, null when it is not cached (yet)
+    CachedFile get(File file) throws IOException {
+        String key = file.getCanonicalPath();
+        long length = file.length();
+        long lastModified = file.lastModified();
+        synchronized (this) {
+            CachedFile cachedFile = files.get(key);
+            if (cachedFile != null && cachedFile.length == length && cachedFile.lastModified == lastModified) {
+                hits++;
+                return cachedFile.view();
+            }
+            misses++;
+            if (cachedFile != null) remove(key);
+            if (capacity <= 0 || length > maxLength || length > capacity) return null;
+            int requests = candidates.merge(key, 1, Integer::sum);
+            if (requests < minHits) return null;
+            candidates.remove(key);
+        }
+        // Read outside the lock, a concurrent request may read the same file, the second put wins
+        ByteBuffer content = ByteBuffer.allocateDirect((int) length);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (content.hasRemaining()) {
+                if (channel.read(content, content.position()) == -1) return null;
+            }
+        }
+        content.flip();
+        if (file.length() != length || file.lastModified() != lastModified) return null;
+        CachedFile cachedFile = new CachedFile(content.asReadOnlyBuffer(), length, lastModified);
+        synchronized (this) {
+            remove(key);
+            files.put(key, cachedFile);
+            size += length;
+            Iterator<Map.Entry<String, CachedFile>> eldest = files.entrySet().iterator();
+            while (size > capacity && eldest.hasNext()) {
+                size -= eldest.next().getValue().length;
+                eldest.remove();
+            }
+        }
+        return cachedFile.view();
+    }
+
+    // Resize the cache, 0 turns it off
+    synchronized void setCapacity(long capacity) {
+        this.capacity = capacity;
+        Iterator<Map.Entry<String, CachedFile>> eldest = files.entrySet().iterator();
+        while (size > capacity && eldest.hasNext()) {
+            size -= eldest.next().getValue().length;
+            eldest.remove();
+        }
+    }
+
+    // Drop a file that is being replaced by an upload
+    void invalidate(File file) throws IOException {
+        String key = file.getCanonicalPath();
+        synchronized (this) {
+            remove(key);
+        }
+    }
+
+    private void remove(String key) {
+        CachedFile cachedFile = files.remove(key);
+        if (cachedFile != null) size -= cachedFile.length;
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized long getSize() {
+        return size;
+    }
+
+    // The content of a cached file and the length and modification time it was read with
+    static class CachedFile {
+        ByteBuffer content;
+        long length;
+        long lastModified;
+
+        CachedFile(ByteBuffer content, long length, long lastModified) {
+            this.content = content;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        // A copy whose buffer position and limit the caller may move
+        CachedFile view() {
+            return new CachedFile(content.duplicate(), length, lastModified);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+import java.util.concurrent.atomic.*;
+
+/**
+ * The LatencyHistogram class records durations in nanoseconds without locks.
+ * Values below 4 ns get a bucket each; above, every power of two is split
+ * into four buckets, so 248 buckets cover the whole range of a long with a
+ * relative error of at most 25%. Percentiles report the upper bound of their
+ * bucket.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private LongAdder buckets[] = new LongAdder[BUCKETS];
+    private LongAdder sum = new LongAdder();
+    private LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos The duration, negative values count as 0.
+     */
+    void record(long nanos) {
+        long value = Math.max(0, nanos);
+        buckets[bucket(value)].increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    long count() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    long max() {
+        return max.get();
+    }
+
+    /**
+     * Computes a percentile from the buckets recorded so far.
+     *
+     * @param quantile The quantile, between 0 and 1.
+     * @return The upper bound of the bucket holding it, never above the
+     *         largest value recorded, 0 when nothing was recorded.
+     */
+    long percentile(double quantile) {
+        long counts[] = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        if (total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(upperBound(i), max());
+        }
+        return max();
+    }
+
+    void reset() {
+        for (LongAdder bucket : buckets) {
+            bucket.reset();
+        }
+        sum.reset();
+        max.reset();
+    }
+
+    String toJson() {
+        long count = count();
+        return "{\"count\":" + count + ",\"mean\":" + (count == 0 ? 0 : sum.sum() / count / 1000) + ",\"p50\":"
+                + percentile(0.5) / 1000 + ",\"p99\":" + percentile(0.99) / 1000 + ",\"p999\":"
+                + percentile(0.999) / 1000 + ",\"max\":" + max() / 1000 + "}";
+    }
+
+    // The bucket of a value: its power of two and the next two bits below the leading one
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    // The largest value that falls into a bucket
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long lowerBound = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return lowerBound + width - 1 < 0 ? Long.MAX_VALUE : lowerBound + width - 1;
+    }
+}
@@ -0,0 +1,32 @@
+/**
+ * The ManifestEntry class describes one file of a {@link SyncManifest}.
+ */
+class ManifestEntry {
+    private String path;
+    private long length;
+    private long lastModified;
+    private byte digest[];
+
+    ManifestEntry(String path, long length, long lastModified, byte digest[]) {
+        this.path = path;
+        this.length = length;
+        this.lastModified = lastModified;
+        this.digest = digest;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public byte[] getDigest() {
+        return digest;
+    }
+}
@@ -0,0 +1,373 @@
+import java.nio.*;
+import java.nio.channels.*;
+import java.io.*;
+import java.net.ProtocolException;
+import java.util.concurrent.*;
+import javax.swing.*;
+
+// NioConnection Class: Non-blocking version of the RequestProcessor header -> ack -> body -> ack state machine
+class NioConnection {
+    private static final int READING_HEADER = 0;
+    private static final int SENDING_HEADER_ACK = 1;
+    private static final int READING_BODY = 2;
+    private static final int SENDING_FINAL_ACK = 3;
+    private static final int COMMITTING = 4;
+    private static final int DISCARDING = 5;
+
+    // Commits run off the event loops, syncing a file takes as long as the disk needs
+    private static final ExecutorService committers = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "nio-commit");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Connections held back by a rate limit are woken up from here, the event loop itself never sleeps
+    private static final ScheduledExecutorService pauses = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "nio-throttle");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private NioEventLoop loop;
+    private SelectionKey key;
+    private SocketChannel channel;
+    private String id;
+    private ServerLogListener fsf;
+    private int state;
+    private ByteBuffer header;
+    private ByteBuffer ack;
+    private File file;
+    private File temporary;
+    private FileChannel fileChannel;
+    private StreamChecksum checksum;
+    private long lengthOfFile;
+    private long m;
+    private long admittedBytes = -1;
+    private Throttle throttle;
+    private TransferMetrics metrics = TransferMetrics.server();
+    private long acceptedAt = System.nanoTime();
+    private long headerReadAt;
+    private ByteBuffer refusal;
+    private long discarding;
+    private boolean answered;
+    private boolean closed;
+
+    NioConnection(NioEventLoop loop, SelectionKey key, String id, ServerLogListener fsf) {
+        this.loop = loop;
+        this.key = key;
+        this.channel = (SocketChannel) key.channel();
+        this.id = id;
+        this.fsf = fsf;
+        this.state = READING_HEADER;
+        this.header = ByteBuffer.allocate(1024);
+        metrics.connectionOpened();
+        SwingUtilities.invokeLater(() -> fsf.updateLog("Client connected with id: " + id));
+    }
+
+    // Called by the event loop whenever the channel has bytes available
+    void onReadable(ByteBuffer bodyBuffer) throws IOException {
+        if (state == READING_HEADER) {
+            if (channel.read(header) == -1) {
+                close();
+                return;
+            }
+            int headerLength = headerLength();
+            if (headerLength != -1) headerReceived(headerLength);
+        } else if (state == READING_BODY) {
+            long count = Math.min(Math.min(bodyBuffer.capacity(), throttle.getChunkLimit()), lengthOfFile - m);
+            if (FTConfig.zeroCopy) {
+                long bytesTransferred = fileChannel.transferFrom(channel, m, count);
+                if (bytesTransferred > 0) {
+                    if (checksum != null) checksum.update(fileChannel, m, bytesTransferred);
+                    bodyReceived(bytesTransferred);
+                    throttle(bytesTransferred);
+                    return;
+                }
+                // Nothing transferred although the key was readable, let the plain read detect end of stream
+            }
+            bodyBuffer.clear();
+            bodyBuffer.limit((int) count);
+            int bytesReadCount = channel.read(bodyBuffer);
+            if (bytesReadCount == -1) {
+                close();
+                return;
+            }
+            bodyBuffer.flip();
+            if (checksum != null) checksum.update(bodyBuffer.duplicate());
+            while (bodyBuffer.hasRemaining()) {
+                fileChannel.write(bodyBuffer, m + bodyBuffer.position());
+            }
+            bodyReceived(bytesReadCount);
+            throttle(bytesReadCount);
+        } else if (state == DISCARDING) {
+            bodyBuffer.clear();
+            bodyBuffer.limit((int) Math.min(bodyBuffer.capacity(), discarding));
+            int bytesReadCount = channel.read(bodyBuffer);
+            if (bytesReadCount == -1) {
+                close();
+                return;
+            }
+            discarding -= bytesReadCount;
+            if (discarding == 0) {
+                state = SENDING_FINAL_ACK;
+                send(refusal);
+            }
+        }
+    }
+
+    // Count body bytes against the rate limits, and stop reading until the limits allow more
+    private void throttle(long bytesReadCount) {
+        metrics.bytesReceived(bytesReadCount);
+        long wait = throttle.reserve(bytesReadCount);
+        if (wait <= 0 || state != READING_BODY) return;
+        key.interestOps(0);
+        pauses.schedule(() -> loop.execute(() -> {
+            if (!closed && state == READING_BODY) key.interestOps(SelectionKey.OP_READ);
+        }), wait, TimeUnit.NANOSECONDS);
+    }
+
+    // Length of the header once enough bytes arrived to know it and receive it completely, -1 until then
+    private int headerLength() {
+        int count = header.position();
+        if (count < 4) return -1;
+        if (!FTHeader.isMagic(header.array())) return count < 1024 ? -1 : 1024;
+        int headerLength = FTHeader.encodedLength(header.array(), count);
+        if (headerLength > header.capacity()) {
+            // Long UTF-8 names do not fit the initial buffer
+            ByteBuffer larger = ByteBuffer.allocate(headerLength);
+            header.flip();
+            larger.put(header);
+            header = larger;
+        }
+        return headerLength != -1 && count >= headerLength ? headerLength : -1;
+    }
+
+    private void headerReceived(int headerLength) throws IOException {
+        byte bytes[] = header.array();
+        String fileName;
+        boolean ackHeader;
+        boolean checksummed = false;
+        byte checksumAlgorithm = FTProtocol.CHECKSUM_NONE;
+        if (FTHeader.isMagic(bytes)) {
+            FTHeader v2Header;
+            try {
+                v2Header = FTHeader.read(new ByteArrayInputStream(bytes, 4, headerLength - 4));
+            } catch (ProtocolException e) {
+                reject(FTProtocol.STATUS_UNSUPPORTED, e.getMessage());
+                return;
+            }
+            // Sessions, ranges, resumable, deduplicated and compressed uploads are only served by the threaded engines
+            if (v2Header.getVersion() != FTHeader.VERSION || v2Header.getOp() != FTHeader.OP_UPLOAD
+                    || (v2Header.getFlags() & ~(FTHeader.FLAG_ACK_HEADER | FTHeader.FLAG_CHECKSUM)) != 0) {
+                reject(FTProtocol.STATUS_UNSUPPORTED, "Unsupported header version " + v2Header.getVersion() + " op "
+                        + v2Header.getOp() + " flags " + v2Header.getFlags());
+                return;
+            }
+            lengthOfFile = v2Header.getLength();
+            fileName = v2Header.getName();
+            ackHeader = v2Header.hasFlag(FTHeader.FLAG_ACK_HEADER);
+            checksummed = v2Header.hasFlag(FTHeader.FLAG_CHECKSUM);
+            checksumAlgorithm = v2Header.getChecksumAlgorithm();
+        } else {
+            lengthOfFile = RequestProcessor.getLengthOfFile(bytes);
+            if (lengthOfFile < 0) {
+                reject(FTProtocol.STATUS_UNSUPPORTED, "Malformed legacy header");
+                return;
+            }
+            fileName = RequestProcessor.getFileName(bytes);
+            ackHeader = true;
+        }
+        headerReadAt = System.nanoTime();
+        int pipelined = header.position() - headerLength;
+        if (pipelined > lengthOfFile) throw new IOException("Client " + id + " sent more bytes than announced");
+        if (checksummed && !StreamChecksum.isSupported(checksumAlgorithm)) {
+            // The client sends the upload again without the checksum
+            answer(ByteBuffer.wrap(new byte[] { FTProtocol.STATUS_UNSUPPORTED }),
+                    ackHeader ? 0 : lengthOfFile - pipelined);
+            byte algorithm = checksumAlgorithm;
+            SwingUtilities.invokeLater(() -> fsf.updateLog("Unknown checksum algorithm " + algorithm + " from client "
+                    + id + ", connection closed."));
+            return;
+        }
+        // The same admission as the threaded engines, before anything is allocated on disk
+        if (!AdmissionController.getInstance().admit(lengthOfFile)) {
+            refuse(fileName, FTHeader.isMagic(bytes), ackHeader ? 0 : lengthOfFile - pipelined);
+            return;
+        }
+        admittedBytes = lengthOfFile;
+        if (checksummed) checksum = new StreamChecksum(checksumAlgorithm);
+        throttle = BandwidthShaper.getInstance().open(channel.socket().getInetAddress());
+        SwingUtilities.invokeLater(() -> fsf.updateLog("Receiving File: " + fileName + " Length: " + lengthOfFile));
+        // Like the threaded engines, write a temporary file sized up front and replace the target once it is complete
+        file = RequestProcessor.targetFile(fileName);
+        temporary = Durability.temporaryFile(file);
+        RandomAccessFile raf = new RandomAccessFile(temporary, "rw");
+        fileChannel = raf.getChannel();
+        raf.setLength(lengthOfFile);
+
+        // Version 2 clients that do not wait for the header ack pipeline the body right behind the header. The rate
+        // limits take these bytes too, the next reads wait for them
+        ByteBuffer body = ByteBuffer.wrap(bytes, headerLength, pipelined);
+        if (checksum != null) checksum.update(body.duplicate());
+        while (body.hasRemaining()) {
+            m += fileChannel.write(body, m);
+        }
+        metrics.bytesReceived(pipelined);
+        throttle.reserve(pipelined);
+        header = null;
+        if (ackHeader) {
+            state = SENDING_HEADER_ACK;
+            sendAck(FTProtocol.STATUS_OK);
+        } else {
+            bodyReceived(0);
+        }
+    }
+
+    // Answer a header this engine cannot serve and close once the status is out, nothing of the body is read
+    private void reject(byte status, String reason) throws IOException {
+        header = null;
+        answered = true;
+        state = SENDING_FINAL_ACK;
+        sendAck(status);
+        SwingUtilities.invokeLater(() -> fsf.updateLog(reason + " from client " + id + ", connection closed."));
+    }
+
+    // Turn away an upload the server has no room for, like RequestProcessor does: a retry-after with the delay, or
+    // a no-space status when the disk cannot take it at all. A short body already on its way is read and dropped
+    // first, so the client reads the answer rather than a reset; legacy clients only see the connection close
+    private void refuse(String fileName, boolean v2, long body) throws IOException {
+        AdmissionController admission = AdmissionController.getInstance();
+        boolean couldFit = admission.couldFit(lengthOfFile);
+        long retryAfter = admission.getRetryAfter();
+        SwingUtilities.invokeLater(() -> fsf.updateLog(couldFit
+                ? "Server at capacity, client " + id + " told to retry " + fileName + " in " + retryAfter + " ms."
+                : "Not enough disk space for " + fileName + ", client " + id + " refused for good."));
+        if (!v2) {
+            answered = true;
+            close();
+            return;
+        }
+        answer(couldFit ? ByteBuffer.allocate(9).put(FTProtocol.STATUS_RETRY_AFTER).putLong(retryAfter).flip()
+                : ByteBuffer.wrap(new byte[] { FTProtocol.STATUS_NO_SPACE }), body);
+    }
+
+    // Answer an upload that is not taken and close once the answer is out, after reading past the body the client
+    // sends without waiting
+    private void answer(ByteBuffer refusal, long body) throws IOException {
+        header = null;
+        answered = true;
+        this.refusal = refusal;
+        if (body > 0 && body <= FTProtocol.MAX_UNACKED_BODY) {
+            state = DISCARDING;
+            discarding = body;
+            key.interestOps(SelectionKey.OP_READ);
+            return;
+        }
+        state = SENDING_FINAL_ACK;
+        send(refusal);
+    }
+
+    private void bodyReceived(long bytesReadCount) throws IOException {
+        m += bytesReadCount;
+        if (m == lengthOfFile) {
+            commit();
+        } else if (state != READING_BODY) {
+            state = READING_BODY;
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    // Make the file as durable as configured on a committer thread, the final ack waits for it on the event loop
+    private void commit() {
+        state = COMMITTING;
+        key.interestOps(0);
+        committers.execute(() -> {
+            IOException failure = null;
+            try {
+                Durability.commit(fileChannel, temporary, file);
+            } catch (IOException e) {
+                failure = e;
+            }
+            IOException result = failure;
+            loop.execute(() -> {
+                try {
+                    committed(result);
+                } catch (IOException e) {
+                    close();
+                    System.out.println(e);
+                }
+            });
+        });
+    }
+
+    private void committed(IOException failure) throws IOException {
+        state = SENDING_FINAL_ACK;
+        if (failure != null) throw failure;
+        temporary = null;
+        answered = true;
+        metrics.transferCompleted(System.nanoTime() - headerReadAt);
+        if (checksum == null) {
+            sendAck(FTProtocol.STATUS_OK);
+        } else {
+            // The final ack carries the checksum of the body, see FTProtocol.writeStatus
+            byte value[] = checksum.getValue();
+            send(ByteBuffer.allocate(2 + value.length).put(FTProtocol.STATUS_OK).put((byte) value.length).put(value)
+                    .flip());
+        }
+    }
+
+    // Called by the event loop when a pending acknowledgment can be flushed
+    void onWritable() throws IOException {
+        channel.write(ack);
+        if (!ack.hasRemaining()) ackSent();
+    }
+
+    // Send acknowledgment to the client, waiting for OP_WRITE only if the socket buffer is full
+    private void sendAck(byte status) throws IOException {
+        send(ByteBuffer.wrap(new byte[] { status }));
+    }
+
+    private void send(ByteBuffer acknowledgment) throws IOException {
+        ack = acknowledgment;
+        channel.write(ack);
+        if (ack.hasRemaining()) {
+            key.interestOps(SelectionKey.OP_WRITE);
+        } else {
+            ackSent();
+        }
+    }
+
+    private void ackSent() throws IOException {
+        if (state == SENDING_HEADER_ACK) {
+            metrics.firstAck(System.nanoTime() - acceptedAt);
+            bodyReceived(0);
+        } else {
+            close();
+            SwingUtilities.invokeLater(() -> {
+                if (file != null) fsf.updateLog("File Saved to " + file.getAbsolutePath());
+                fsf.updateLog("Connection with client " + id + " closed.");
+            });
+        }
+    }
+
+    void close() {
+        if (closed) return;
+        closed = true;
+        if (!answered) metrics.transferFailed();
+        metrics.connectionClosed();
+        if (throttle != null) throttle.close();
+        if (admittedBytes >= 0) AdmissionController.getInstance().release(admittedBytes);
+        try {
+            key.cancel();
+            channel.close();
+            // A commit in flight closes and renames the file itself
+            if (state != COMMITTING) {
+                if (fileChannel != null) fileChannel.close();
+                // Only left over when the upload failed
+                if (temporary != null) temporary.delete();
+            }
+        } catch (IOException e) {
+            System.out.println(e);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+
+// NioEventLoop Class: Drives the connections registered with one selector
+class NioEventLoop extends Thread {
+    private Selector selector;
+    private ServerLogListener fsf;
+    private ConcurrentLinkedQueue<SocketChannel> pendingChannels;
+    private ConcurrentLinkedQueue<Runnable> pendingTasks;
+    private ByteBuffer bodyBuffer;
+    private volatile boolean running;
+
+    NioEventLoop(ServerLogListener fsf, int index) throws IOException {
+        super("nio-event-loop-" + index);
+        this.fsf = fsf;
+        this.selector = Selector.open();
+        this.pendingChannels = new ConcurrentLinkedQueue<>();
+        this.pendingTasks = new ConcurrentLinkedQueue<>();
+        // A single body buffer per loop, connections only ever use it for the duration of one read
+        this.bodyBuffer = ByteBuffer.allocateDirect(64 * 1024);
+        this.running = true;
+    }
+
+    // Queue a freshly accepted channel, the loop registers it on its next wake up
+    public void register(SocketChannel channel) {
+        pendingChannels.add(channel);
+        selector.wakeup();
+    }
+
+    // Queue a task for the loop thread, for connections that resume after blocking work on another thread
+    public void execute(Runnable task) {
+        pendingTasks.add(task);
+        selector.wakeup();
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+                registerPendingChannels();
+                runPendingTasks();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) connection.onReadable(bodyBuffer);
+                        if (key.isValid() && key.isWritable()) connection.onWritable();
+                    } catch (IOException | RuntimeException e) {
+                        // Only this connection is broken, the others on the loop carry on
+                        connection.close();
+                        System.out.println(e);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            // Handle exceptions by printing to console
+            System.out.println(e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                ((NioConnection) key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                System.out.println(e);
+            }
+        }
+    }
+
+    private void registerPendingChannels() throws IOException {
+        SocketChannel channel;
+        while ((channel = pendingChannels.poll()) != null) {
+            channel.configureBlocking(false);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new NioConnection(this, key, UUID.randomUUID().toString(), fsf));
+        }
+    }
+
+    private void runPendingTasks() {
+        Runnable task;
+        while ((task = pendingTasks.poll()) != null) {
+            task.run();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+import java.io.*;
+
+/**
+ * The NoSpaceException class reports that the server's disk cannot take the
+ * upload even with no other transfer running. Unlike a
+ * {@link RetryAfterException} this is final, the scheduler does not try the
+ * upload again.
+ */
+class NoSpaceException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    NoSpaceException(String message) {
+        super(message);
+    }
+
+    /**
+     * Throws when the status is {@link FTProtocol#STATUS_NO_SPACE}.
+     *
+     * @param status The status read from the server.
+     * @param name   The name of the file, for the message.
+     */
+    static void check(byte status, String name) throws IOException {
+        if (status == FTProtocol.STATUS_NO_SPACE)
+            throw new NoSpaceException("Server has no room for " + name);
+    }
+
+    /**
+     * Tells whether an exception or one of its causes is a NoSpaceException,
+     * striped uploads report it wrapped by the range that was refused.
+     *
+     * @param e The exception an upload failed with.
+     * @return true when the upload must not be tried again.
+     */
+    static boolean isCause(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof NoSpaceException)
+                return true;
+        }
+        return false;
+    }
+}
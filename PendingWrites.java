@@ -0,0 +1,38 @@
+import java.io.*;
+
+// PendingWrites Class: Counts the writes a connection has queued and keeps the first failure, the connection waits
+// for the count to drop to zero before it acknowledges or closes the file
+class PendingWrites {
+    private int outstanding;
+    private IOException failure;
+
+    synchronized void add() {
+        outstanding++;
+    }
+
+    synchronized void done(IOException e) {
+        if (e != null && failure == null) failure = e;
+        outstanding--;
+        if (outstanding == 0) notifyAll();
+    }
+
+    // Wait for the queued writes, an interrupt is kept for the caller since the buffers still belong to the stage
+    synchronized void await() {
+        boolean interrupted = false;
+        while (outstanding > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    // Throw the first write failure once, the next transfer on the connection starts clean
+    synchronized void rethrow() throws IOException {
+        IOException e = failure;
+        failure = null;
+        if (e != null) throw e;
+    }
+}
@@ -0,0 +1,19 @@
+import java.nio.*;
+import java.nio.channels.*;
+
+// PooledBuffer Class: A pooled buffer together with the target of its pending write, reused so queueing a write
+// allocates nothing
+class PooledBuffer {
+    private ByteBuffer buffer;
+    FileChannel fileChannel;
+    long position;
+    PendingWrites pendingWrites;
+
+    PooledBuffer(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    ByteBuffer getBuffer() {
+        return buffer;
+    }
+}
@@ -0,0 +1,116 @@
+import java.io.*;
+import java.util.concurrent.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/**
+ * The ReadAheadReader class reads a file on a separate thread a few chunks
+ * ahead of the sender, so disk reads overlap socket writes. The chunks are
+ * direct buffers that cycle between a free and a filled queue; they are
+ * allocated as needed, so a small file costs a single buffer of its own
+ * size.
+ */
+class ReadAheadReader implements Closeable {
+    private static final ByteBuffer END_OF_FILE = ByteBuffer.allocate(0);
+    private static final ExecutorService readers = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "read-ahead");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ArrayBlockingQueue<ByteBuffer> freeBuffers;
+    private ArrayBlockingQueue<ByteBuffer> filledBuffers;
+    private volatile int chunkSize;
+    private int maxChunks;
+    private volatile IOException failure;
+    private Future<?> task;
+
+    ReadAheadReader(File file, long offset, int chunkSize, int maxChunks) {
+        this.chunkSize = chunkSize;
+        this.maxChunks = Math.max(1, maxChunks);
+        this.freeBuffers = new ArrayBlockingQueue<>(this.maxChunks);
+        // One more slot for the end marker
+        this.filledBuffers = new ArrayBlockingQueue<>(this.maxChunks + 1);
+        this.task = readers.submit(() -> read(file, offset));
+    }
+
+    private void read(File file, long offset) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long lengthOfFile = channel.size();
+            long position = offset;
+            int allocatedChunks = 0;
+            while (position < lengthOfFile) {
+                ByteBuffer buffer = freeBuffers.poll();
+                if (buffer == null && allocatedChunks < maxChunks) {
+                    allocatedChunks++;
+                    buffer = ByteBuffer.allocateDirect((int) Math.min(chunkSize, lengthOfFile - offset));
+                } else if (buffer == null) {
+                    buffer = freeBuffers.take();
+                }
+                // A buffer of a chunk size the sender has since moved away from is replaced as it comes back
+                int wanted = (int) Math.min(chunkSize, lengthOfFile - position);
+                if (buffer.capacity() < wanted || buffer.capacity() > chunkSize)
+                    buffer = ByteBuffer.allocateDirect(wanted);
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), lengthOfFile - position));
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) == -1)
+                        throw new EOFException(file.getName() + " shrank during the upload");
+                }
+                buffer.flip();
+                position += buffer.limit();
+                filledBuffers.put(buffer);
+            }
+            filledBuffers.put(END_OF_FILE);
+        } catch (InterruptedException e) {
+            // The sender closed the reader
+        } catch (IOException e) {
+            failure = e;
+            filledBuffers.offer(END_OF_FILE);
+        }
+    }
+
+    /**
+     * Waits for the next chunk.
+     *
+     * @return The chunk, flipped for writing, or null at the end of the file.
+     */
+    public ByteBuffer next() throws IOException {
+        ByteBuffer buffer;
+        try {
+            buffer = filledBuffers.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        if (buffer == END_OF_FILE) {
+            if (failure != null)
+                throw failure;
+            return null;
+        }
+        return buffer;
+    }
+
+    /**
+     * Changes the size of the chunks read from now on, the chunks already
+     * read keep theirs.
+     *
+     * @param chunkSize The new chunk size in bytes.
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = Math.max(1, chunkSize);
+    }
+
+    /**
+     * Gives a written chunk back to the reader.
+     *
+     * @param buffer The chunk returned by {@link #next()}.
+     */
+    public void recycle(ByteBuffer buffer) {
+        freeBuffers.offer(buffer);
+    }
+
+    public void close() {
+        task.cancel(true);
+    }
+}
@@ -0,0 +1,729 @@
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+import javax.swing.*;
+
+// RequestProcessor Class: Handles incoming client requests
+class RequestProcessor implements Runnable {
+    // Any number of up to 18 decimal digits fits a long
+    private static final int MAX_LEGACY_DIGITS = 18;
+
+    private Socket socket;
+    private String id;
+    private ServerLogListener fsf;
+    private CompressedBodyReader compressedBody;
+    private StreamChecksum checksum;
+    private PendingWrites pendingWrites = new PendingWrites();
+    private long admittedBytes = -1;
+    private Throttle throttle;
+    private TransferMetrics metrics = TransferMetrics.server();
+    // Created when the connection is accepted, so the time spent queued for a thread counts too
+    private long acceptedAt = System.nanoTime();
+    private long headerReadAt;
+    private boolean headerAnswered;
+    private long headerAnsweredAt;
+    private TransferTuner tuner;
+
+    RequestProcessor(Socket socket, String id, ServerLogListener fsf) {
+        this.id = id;
+        this.fsf = fsf;
+        this.socket = socket;
+    }
+
+    public void run() {
+        metrics.connectionOpened();
+        try {
+            // Notify server GUI about the client connection
+            SwingUtilities.invokeLater(() -> fsf.updateLog("Client connected with id: " + id));
+
+            InputStream is = socket.getInputStream();
+            OutputStream os = socket.getOutputStream();
+
+            // Version 2 headers start with a magic, anything else is the legacy 1024 byte header
+            byte magic[] = new byte[4];
+            FTProtocol.readFully(is, magic, magic.length);
+            if (FTHeader.isMagic(magic)) {
+                FTHeader header = FTHeader.read(is);
+                headerReadAt = System.nanoTime();
+                if (header.getVersion() == FTHeader.VERSION && header.getOp() == FTHeader.OP_SESSION) {
+                    // A session takes one transfer slot, the lengths of its frames are not known up front
+                    if (!admit(is, os, 0, 0, "a session")) return;
+                    processSession(is, os, header.getLength());
+                    return;
+                }
+                if (header.getVersion() == FTHeader.VERSION && header.getOp() == FTHeader.OP_DOWNLOAD) {
+                    if (!admit(is, os, 0, 0, "a download of " + header.getName())) return;
+                    processDownload(os, header);
+                    return;
+                }
+                if (header.getVersion() == FTHeader.VERSION && header.getOp() == FTHeader.OP_SYNC) {
+                    // The manifest follows the header without waiting for an answer
+                    if (!admit(is, os, 0, header.getLength(), "a sync of " + header.getName())) return;
+                    processSync(is, os, header);
+                    return;
+                }
+                if (header.getVersion() != FTHeader.VERSION || header.getOp() != FTHeader.OP_UPLOAD) {
+                    FTProtocol.writeStatus(os, FTProtocol.STATUS_UNSUPPORTED);
+                    socket.close();
+                    SwingUtilities.invokeLater(() -> fsf.updateLog("Unsupported header version " + header.getVersion()
+                            + " op " + header.getOp() + " from client " + id + ", connection closed."));
+                    return;
+                }
+                if (header.hasFlag(FTHeader.FLAG_CHECKSUM) && !StreamChecksum.isSupported(header.getChecksumAlgorithm())) {
+                    // The client sends the upload again without the checksum, a short body on its way is read first
+                    if (unackedBody(header) <= FTProtocol.MAX_UNACKED_BODY) discard(is, unackedBody(header));
+                    FTProtocol.writeStatus(os, FTProtocol.STATUS_UNSUPPORTED);
+                    socket.close();
+                    SwingUtilities.invokeLater(() -> fsf.updateLog("Unknown checksum algorithm "
+                            + header.getChecksumAlgorithm() + " from client " + id + ", connection closed."));
+                    return;
+                }
+                if (header.hasFlag(FTHeader.FLAG_DIGEST) && !header.hasFlag(FTHeader.FLAG_RANGE)
+                        && BlobStore.getInstance().linkIfPresent(header.getDigest(), header.getName())) {
+                    FTProtocol.writeStatus(os, FTProtocol.STATUS_HAVE_IT);
+                    headerAnswered();
+                    socket.close();
+                    SwingUtilities.invokeLater(() -> fsf.updateLog("File " + header.getName()
+                            + " saved from the blob store, client " + id + " skipped the upload."));
+                    return;
+                }
+                boolean range = header.hasFlag(FTHeader.FLAG_RANGE) && header.hasFlag(FTHeader.FLAG_UPLOAD_ID);
+                // A range takes a slot, its striped file reserves the space of the whole file once
+                if (!admit(is, os, range ? 0 : header.getLength(), unackedBody(header), header.getName())) return;
+                if (header.hasFlag(FTHeader.FLAG_COMPRESSED)) compressedBody = new CompressedBodyReader(is, getThrottle());
+                if (header.hasFlag(FTHeader.FLAG_CHECKSUM)) checksum = new StreamChecksum(header.getChecksumAlgorithm());
+                if (range) {
+                    receiveRange(is, os, header);
+                    return;
+                }
+                if (header.hasFlag(FTHeader.FLAG_RESUME) && header.hasFlag(FTHeader.FLAG_UPLOAD_ID)) {
+                    receiveResumable(is, os, header);
+                    return;
+                }
+                receiveFile(is, os, header);
+            } else {
+                byte header[] = new byte[1024];
+                System.arraycopy(magic, 0, header, 0, magic.length);
+                readHeaderData(is, header, magic.length);
+                headerReadAt = System.nanoTime();
+                long lengthOfFile = getLengthOfFile(header);
+                if (lengthOfFile < 0) {
+                    FTProtocol.writeStatus(os, FTProtocol.STATUS_UNSUPPORTED);
+                    socket.close();
+                    SwingUtilities.invokeLater(() -> fsf.updateLog("Malformed legacy header from client " + id
+                            + ", connection closed."));
+                    return;
+                }
+                // Legacy clients do not know the retry-after status, they only see the connection close
+                if (!admit(is, null, lengthOfFile, 0, getFileName(header))) return;
+                receiveFile(is, os, new FTHeader(FTHeader.OP_UPLOAD, FTHeader.FLAG_ACK_HEADER, lengthOfFile,
+                        getFileName(header)));
+            }
+        } catch (Exception e) {
+            // Handle exceptions by printing to console
+            System.out.println(e);
+            metrics.transferFailed();
+            // Do not leave the client waiting for an acknowledgment that will not come
+            try {
+                socket.close();
+            } catch (IOException closeException) {
+                System.out.println(closeException);
+            }
+        } finally {
+            if (throttle != null) throttle.close();
+            if (compressedBody != null) compressedBody.close();
+            if (admittedBytes >= 0) AdmissionController.getInstance().release(admittedBytes);
+            metrics.connectionClosed();
+        }
+    }
+
+    // Record the time from accepting the connection to answering its header, before any body. Uploads that stream
+    // the body without waiting are only answered at the end, their time shows in the transfer latency instead
+    private void headerAnswered() {
+        if (headerAnswered) return;
+        headerAnswered = true;
+        headerAnsweredAt = System.nanoTime();
+        metrics.firstAck(headerAnsweredAt - acceptedAt);
+    }
+
+    // The tuner of this connection, starting from the chunk size of its receive path
+    private TransferTuner getTuner() {
+        if (tuner == null) {
+            tuner = new TransferTuner(socket, false, FTConfig.zeroCopy && socket.getChannel() != null
+                    ? (int) Math.min(Integer.MAX_VALUE, FTConfig.zeroCopyChunkSize) : FTConfig.receiveChunkSize);
+        }
+        return tuner;
+    }
+
+    // Where the tuning of this connection ended, null when it is off
+    private String tuningSummary() {
+        return FTConfig.autoTune && tuner != null ? tuner.toString() : null;
+    }
+
+    // The first bytes of a body arrive a round trip after the header ack the client waited for
+    private void bodyArrived(TransferTuner tuner) {
+        if (headerAnsweredAt == 0) return;
+        tuner.roundTrip(System.nanoTime() - headerAnsweredAt);
+        headerAnsweredAt = 0;
+    }
+
+    // Reserve a transfer slot and the disk space of the upload, or turn the client away. The body is the number of
+    // bytes the client sends behind the header before it reads an answer
+    private boolean admit(InputStream is, OutputStream os, long lengthOfData, long body, String what)
+            throws IOException {
+        if (AdmissionController.getInstance().admit(lengthOfData)) {
+            admittedBytes = lengthOfData;
+            return true;
+        }
+        if (AdmissionController.getInstance().couldFit(lengthOfData)) {
+            refuse(is, os, body, what);
+        } else {
+            refuseForGood(is, os, body, what);
+        }
+        return false;
+    }
+
+    // Tell the client when to come back and close. A short body already on its way is read first, so the client
+    // reads the answer rather than a reset; legacy clients do not know the retry-after status, they only see the close
+    private void refuse(InputStream is, OutputStream os, long body, String what) throws IOException {
+        long retryAfter = AdmissionController.getInstance().getRetryAfter();
+        if (os != null) {
+            if (body <= FTProtocol.MAX_UNACKED_BODY) discard(is, body);
+            FTProtocol.writeStatus(os, FTProtocol.STATUS_RETRY_AFTER, retryAfter);
+        }
+        socket.close();
+        SwingUtilities.invokeLater(() -> fsf.updateLog("Server at capacity, client " + id + " told to retry "
+                + what + " in " + retryAfter + " ms."));
+    }
+
+    // Tell the client the disk is too small for the upload and close, there is no point in coming back
+    private void refuseForGood(InputStream is, OutputStream os, long body, String what) throws IOException {
+        if (os != null) {
+            if (body <= FTProtocol.MAX_UNACKED_BODY) discard(is, body);
+            FTProtocol.writeStatus(os, FTProtocol.STATUS_NO_SPACE);
+        }
+        socket.close();
+        SwingUtilities.invokeLater(() -> fsf.updateLog("Not enough disk space for " + what + ", client " + id
+                + " refused for good."));
+    }
+
+    // The body bytes an upload sends before it reads an answer
+    private static long unackedBody(FTHeader header) {
+        return header.hasFlag(FTHeader.FLAG_ACK_HEADER) ? 0 : header.getLength();
+    }
+
+    // Read past a body the server does not keep
+    private void discard(InputStream is, long lengthOfData) throws IOException {
+        byte bytes[] = new byte[(int) Math.min(64 * 1024, Math.max(1, lengthOfData))];
+        long m = 0;
+        while (m < lengthOfData) {
+            int bytesReadCount = is.read(bytes, 0, (int) Math.min(bytes.length, lengthOfData - m));
+            if (bytesReadCount == -1) throw new EOFException("Client closed the connection after " + m + " bytes");
+            m += bytesReadCount;
+        }
+    }
+
+    // Receive one file, acknowledging the header only when the client waits for it
+    private void receiveFile(InputStream is, OutputStream os, FTHeader header) throws IOException {
+        String fileName = header.getName();
+        long lengthOfFile = header.getLength();
+        // Notify server GUI about the incoming file
+        SwingUtilities.invokeLater(() -> fsf.updateLog("Receiving File: " + fileName + " Length: " + lengthOfFile));
+        File file = targetFile(fileName);
+        if (header.hasFlag(FTHeader.FLAG_ACK_HEADER)) {
+            sendAck(os);
+            headerAnswered();
+        }
+        receiveAndSaveFileData(is, file, lengthOfFile);
+        sendFinalAck(os);
+        metrics.transferCompleted(System.nanoTime() - headerReadAt);
+        socket.close();
+        storeBlob(header, file);
+
+        // Notify server GUI about file saved and client connection closure
+        String tuning = tuningSummary();
+        SwingUtilities.invokeLater(() -> {
+            fsf.updateLog("File Saved to " + file.getAbsolutePath());
+            if (tuning != null) fsf.updateLog("Transfer tuned to " + tuning);
+            fsf.updateLog("Connection with client " + id + " closed.");
+        });
+    }
+
+    // Add a received file that came with a digest to the blob store, after the client got its ack
+    private void storeBlob(FTHeader header, File file) {
+        if (!header.hasFlag(FTHeader.FLAG_DIGEST)) return;
+        try {
+            BlobStore.getInstance().ingest(file, header.getDigest());
+        } catch (IOException e) {
+            System.out.println(e);
+        }
+    }
+
+    // Receive one range of a striped upload straight into its position in the preallocated target
+    private void receiveRange(InputStream is, OutputStream os, FTHeader header) throws IOException {
+        StripedFile stripedFile = StripedFile.open(header.getUploadId(), header.getName(), header.getOffset(),
+                header.getLength(), header.getTotalLength());
+        if (stripedFile == null) {
+            if (AdmissionController.getInstance().couldFit(header.getTotalLength())) {
+                refuse(is, os, unackedBody(header), "a range of " + header.getName());
+            } else {
+                refuseForGood(is, os, unackedBody(header), "a range of " + header.getName());
+            }
+            return;
+        }
+        boolean complete;
+        try {
+            if (header.hasFlag(FTHeader.FLAG_ACK_HEADER)) {
+                sendAck(os);
+                headerAnswered();
+            }
+            receiveFileData(is, stripedFile.getChannel(), header.getOffset(), header.getLength(),
+                    Storage.getInstance().volumeOf(stripedFile.getFile()));
+            complete = stripedFile.rangeReceived(header.getOffset());
+        } catch (IOException | RuntimeException e) {
+            // The client gives up on the whole upload when a range fails
+            stripedFile.abort();
+            throw e;
+        }
+        sendFinalAck(os);
+        metrics.transferCompleted(System.nanoTime() - headerReadAt);
+        socket.close();
+
+        SwingUtilities.invokeLater(() -> {
+            fsf.updateLog("Range " + header.getOffset() + "+" + header.getLength() + " of " + header.getName()
+                    + " received from client " + id);
+            if (complete) fsf.updateLog("File Saved to " + stripedFile.getFile().getAbsolutePath());
+        });
+    }
+
+    // Receive an upload that survives dropped connections, committing its progress to a journal as it goes
+    private void receiveResumable(InputStream is, OutputStream os, FTHeader header) throws IOException {
+        String fileName = header.getName();
+        long lengthOfFile = header.getLength();
+        // The journal lives on the volume of the target, so completing it is a rename within one file system
+        File file = targetFile(fileName);
+        Volume volume = Storage.getInstance().volumeOf(file);
+        UploadJournal journal = UploadJournal.open(header.getUploadId(), volume, lengthOfFile);
+        if (journal == null) {
+            FTProtocol.writeStatus(os, FTProtocol.STATUS_BUSY, 0);
+            socket.close();
+            return;
+        }
+        try {
+            long offset = journal.getResumeOffset();
+            SwingUtilities.invokeLater(() -> fsf.updateLog("Receiving File: " + fileName + " Length: " + lengthOfFile
+                    + (offset > 0 ? " Resuming at: " + offset : "")));
+            FTProtocol.writeStatus(os, FTProtocol.STATUS_OK, offset);
+            headerAnswered();
+            long m = offset;
+            while (m < lengthOfFile) {
+                long lengthOfSegment = Math.min(FTConfig.journalInterval, lengthOfFile - m);
+                receiveFileData(is, journal.getChannel(), m, lengthOfSegment, volume);
+                long syncStartedAt = System.nanoTime();
+                journal.commit(m, lengthOfSegment);
+                metrics.diskStall(System.nanoTime() - syncStartedAt);
+                m += lengthOfSegment;
+            }
+            long commitStartedAt = System.nanoTime();
+            journal.complete(file);
+            metrics.diskStall(System.nanoTime() - commitStartedAt);
+            sendFinalAck(os);
+            metrics.transferCompleted(System.nanoTime() - headerReadAt);
+            socket.close();
+            storeBlob(header, file);
+
+            String tuning = tuningSummary();
+            SwingUtilities.invokeLater(() -> {
+                fsf.updateLog("File Saved to " + file.getAbsolutePath());
+                if (tuning != null) fsf.updateLog("Transfer tuned to " + tuning);
+                fsf.updateLog("Connection with client " + id + " closed.");
+            });
+        } finally {
+            journal.release();
+        }
+    }
+
+    // Receive the frames of a session until the client shuts down its output, acks go out asynchronously
+    private void processSession(InputStream is, OutputStream os, long announcedFrames) throws Exception {
+        SwingUtilities.invokeLater(() -> fsf.updateLog("Session opened by client " + id + " for " + announcedFrames + " files"));
+        sendAck(os);
+        headerAnswered();
+        SessionAckWriter ackWriter = new SessionAckWriter(os, id);
+        ackWriter.start();
+        int frames = 0;
+        try {
+            byte magic[] = new byte[4];
+            while (readFrameStart(is, magic)) {
+                // Without the magic the bytes are not a frame, do not parse them as one
+                if (!FTHeader.isMagic(magic))
+                    throw new IOException("Malformed session frame from client " + id);
+                FTHeader frame = FTHeader.read(is);
+                long frameReadAt = System.nanoTime();
+                if (frame.getOp() != FTHeader.OP_UPLOAD || !frame.hasFlag(FTHeader.FLAG_TRANSFER_ID))
+                    throw new IOException("Malformed session frame from client " + id);
+                String fileName = frame.getName();
+                long lengthOfFile = frame.getLength();
+                SwingUtilities.invokeLater(() -> fsf.updateLog("Receiving File: " + fileName + " Length: " + lengthOfFile));
+                // The session holds a slot, every frame reserves its own space as it comes
+                if (!AdmissionController.getInstance().reserve(lengthOfFile)) {
+                    // The frame is on its way already, read past it and let the client send it again later unless
+                    // it can never fit
+                    discard(is, lengthOfFile);
+                    boolean couldFit = AdmissionController.getInstance().couldFit(lengthOfFile);
+                    ackWriter.acknowledge(frame.getTransferId(),
+                            couldFit ? FTProtocol.STATUS_RETRY_AFTER : FTProtocol.STATUS_NO_SPACE);
+                    SwingUtilities.invokeLater(() -> fsf.updateLog(couldFit
+                            ? "Server at capacity, client " + id + " told to retry " + fileName + " later."
+                            : "Not enough disk space for " + fileName + ", client " + id + " refused for good."));
+                    continue;
+                }
+                try {
+                    receiveAndSaveFileData(is, targetFile(fileName), lengthOfFile);
+                } finally {
+                    AdmissionController.getInstance().unreserve(lengthOfFile);
+                }
+                ackWriter.acknowledge(frame.getTransferId(), FTProtocol.STATUS_OK);
+                metrics.transferCompleted(System.nanoTime() - frameReadAt);
+                frames++;
+            }
+        } finally {
+            ackWriter.finish();
+        }
+        socket.close();
+        int receivedFrames = frames;
+        SwingUtilities.invokeLater(() -> fsf.updateLog("Session with client " + id + " closed after " + receivedFrames + " files."));
+    }
+
+    // Compare the manifest of a client's directory tree with the copy under uploads and answer with the entries that
+    // are missing or differ. The client uploads those next, named by their relative paths
+    private void processSync(InputStream is, OutputStream os, FTHeader header) throws IOException {
+        String directoryName = header.getName();
+        if (!SyncManifest.isSafePath(directoryName) || header.getLength() > FTConfig.maxManifestLength)
+            throw new IOException("Client " + id + " sent an illegal sync of " + directoryName);
+        byte encoded[] = new byte[(int) header.getLength()];
+        FTProtocol.readFully(is, encoded, encoded.length);
+        ArrayList<ManifestEntry> entries = SyncManifest.read(encoded).getEntries();
+        File directory = targetFile(directoryName);
+        directory.mkdirs();
+        int needed[] = SyncDigestCache.findChangedEntries(directory, entries);
+
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(os));
+        dos.writeByte(FTProtocol.STATUS_OK);
+        dos.writeInt(needed.length);
+        for (int index : needed) {
+            dos.writeInt(index);
+        }
+        dos.flush();
+        headerAnswered();
+        socket.close();
+        SwingUtilities.invokeLater(() -> fsf.updateLog("Sync of " + directoryName + " by client " + id + ": "
+                + needed.length + " of " + entries.size() + " files changed."));
+    }
+
+    // Send a file or a range of it from uploads. Hot small files come from memory, the others go from the page cache to
+    // the socket with transferTo. The reply carries the file's length and version so clients fetching ranges in
+    // parallel or resuming can tell whether the file changed under them
+    private void processDownload(OutputStream os, FTHeader header) throws IOException {
+        String fileName = header.getName();
+        File file = Storage.getInstance().locate(fileName);
+        if (file == null || !file.isFile()) {
+            FTProtocol.writeStatus(os, FTProtocol.STATUS_NOT_FOUND);
+            headerAnswered();
+            socket.close();
+            SwingUtilities.invokeLater(() -> fsf.updateLog("Client " + id + " asked for missing file " + fileName));
+            return;
+        }
+        WritableByteChannel channel = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(os);
+        Throttle throttle = getThrottle();
+        long offset = header.hasFlag(FTHeader.FLAG_RANGE) ? header.getOffset() : 0;
+        long wanted = header.hasFlag(FTHeader.FLAG_RANGE) ? header.getLength() : Long.MAX_VALUE;
+        // Probes for the length do not count as requests of the file
+        HotFileCache.CachedFile cached = wanted > 0 ? HotFileCache.getInstance().get(file) : null;
+        long sent = 0;
+        if (cached != null) {
+            // The length and version are those of the cached content, the file may have changed since
+            ByteBuffer content = cached.content;
+            long count = Math.max(0, Math.min(wanted, cached.length - offset));
+            writeDownloadStatus(os, cached.length, cached.lastModified);
+            content.position((int) Math.min(offset, cached.length)).limit((int) (content.position() + count));
+            while (content.hasRemaining()) {
+                int bytesWritten = channel.write(content);
+                throttle.acquire(bytesWritten);
+                metrics.bytesSent(bytesWritten);
+                sent += bytesWritten;
+            }
+        } else {
+            try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long lengthOfFile = fileChannel.size();
+                long count = Math.max(0, Math.min(wanted, lengthOfFile - offset));
+                writeDownloadStatus(os, lengthOfFile, file.lastModified());
+                while (sent < count) {
+                    long chunk = Math.min(Math.min(FTConfig.zeroCopyChunkSize, throttle.getChunkLimit()), count - sent);
+                    long bytesSent = fileChannel.transferTo(offset + sent, chunk, channel);
+                    if (bytesSent <= 0) throw new EOFException(fileName + " shrank while it was sent");
+                    throttle.acquire(bytesSent);
+                    metrics.bytesSent(bytesSent);
+                    sent += bytesSent;
+                }
+            }
+        }
+        // Probes for the length are not transfers
+        if (wanted > 0) metrics.transferCompleted(System.nanoTime() - headerReadAt);
+        socket.close();
+        long sentBytes = sent;
+        SwingUtilities.invokeLater(() -> fsf.updateLog("Sent " + sentBytes + " bytes of " + fileName + " from "
+                + offset + (cached != null ? " from memory" : "") + " to client " + id));
+    }
+
+    private void writeDownloadStatus(OutputStream os, long lengthOfFile, long version) throws IOException {
+        os.write(ByteBuffer.allocate(17).put(FTProtocol.STATUS_OK).putLong(lengthOfFile).putLong(version).array());
+        os.flush();
+        headerAnswered();
+    }
+
+    // Read the magic of the next session frame, false when the client ended the session
+    private boolean readFrameStart(InputStream is, byte magic[]) throws IOException {
+        int bytesReadCount = is.read(magic, 0, magic.length);
+        if (bytesReadCount == -1) return false;
+        while (bytesReadCount < magic.length) {
+            int n = is.read(magic, bytesReadCount, magic.length - bytesReadCount);
+            if (n == -1) throw new EOFException("Client closed the connection inside a session frame");
+            bytesReadCount += n;
+        }
+        return true;
+    }
+
+    // Read the rest of the legacy header data from the client
+    private int readHeaderData(InputStream is, byte[] header, int i) throws IOException {
+        int bytesReadCount;
+        while (i < header.length) {
+            bytesReadCount = is.read(header, i, header.length - i);
+            if (bytesReadCount == -1) throw new EOFException("Client closed the connection while sending the header");
+            i += bytesReadCount;
+        }
+
+        return i;
+    }
+
+    // Extract the length of the file from the legacy header, one decimal digit per byte, least significant first. -1
+    // when the header holds no ',' or anything but digits before it, or more digits than a long takes without overflow
+    static long getLengthOfFile(byte[] header) {
+        long lengthOfFile = 0;
+        int i = 0;
+        long j = 1;
+
+        while (i < header.length && header[i] != ',') {
+            if (header[i] < 0 || header[i] > 9 || i == MAX_LEGACY_DIGITS) return -1;
+            lengthOfFile = lengthOfFile + (header[i] * j);
+            j = j * 10;
+            i++;
+        }
+
+        return i < header.length ? lengthOfFile : -1;
+    }
+
+    // Extract the file name that follows the ',' of the legacy header
+    static String getFileName(byte[] header) {
+        int i = 0;
+
+        while (i < header.length && header[i] != ',') {
+            i++;
+        }
+        StringBuffer sb = new StringBuffer();
+        for (int j = i + 1; j < header.length; j++) {
+            sb.append((char) (header[j] & 0xFF));
+        }
+
+        return sb.toString().trim();
+    }
+
+    // The file a name stands for on the volume the storage places it on, an upload replaces it only when its data is
+    // complete. Sync uploads name files by their relative path, the directories are created on the way
+    static File targetFile(String fileName) throws IOException {
+        return Storage.getInstance().place(fileName);
+    }
+
+    // Send acknowledgment to the client
+    private void sendAck(OutputStream os) throws IOException {
+        FTProtocol.writeStatus(os, FTProtocol.STATUS_OK);
+    }
+
+    // Send the final acknowledgment, with the checksum of the received body when the client asked for it
+    private void sendFinalAck(OutputStream os) throws IOException {
+        if (checksum == null) {
+            sendAck(os);
+        } else {
+            FTProtocol.writeStatus(os, FTProtocol.STATUS_OK, checksum.getValue());
+        }
+    }
+
+    // Receive and save file data, the channel is readable too so a checksum can read zero-copied bytes back. The data
+    // goes to a temporary file sized up front, which lets the file system lay it out in one piece where it allocates
+    // eagerly, and replaces the target only once it is complete and as durable as configured
+    private void receiveAndSaveFileData(InputStream is, File file, long lengthOfFile) throws IOException {
+        File temporary = Durability.temporaryFile(file);
+        RandomAccessFile raf = new RandomAccessFile(temporary, "rw");
+        try {
+            raf.setLength(lengthOfFile);
+            receiveFileData(is, raf.getChannel(), 0, lengthOfFile, Storage.getInstance().volumeOf(file));
+            long commitStartedAt = System.nanoTime();
+            Durability.commit(raf.getChannel(), temporary, file);
+            metrics.diskStall(System.nanoTime() - commitStartedAt);
+        } finally {
+            raf.close();
+            // Only left over when the upload failed
+            temporary.delete();
+        }
+    }
+
+    // The rate limits of this connection, taken from the shaper when the first body arrives
+    private Throttle getThrottle() {
+        if (throttle == null) throttle = BandwidthShaper.getInstance().open(socket.getInetAddress());
+        return throttle;
+    }
+
+    // Receive file data into the channel starting at the given position, used for whole files and ranges alike. The
+    // data counts towards the load of its volume while it arrives
+    private void receiveFileData(InputStream is, FileChannel fileChannel, long position, long lengthOfData,
+            Volume volume) throws IOException {
+        volume.writeStarted(lengthOfData);
+        try {
+            receiveFileData(is, fileChannel, position, lengthOfData, volume.getWriteStage());
+        } finally {
+            volume.writeFinished(lengthOfData);
+        }
+    }
+
+    private void receiveFileData(InputStream is, FileChannel fileChannel, long position, long lengthOfData,
+            WriteBehindStage writeStage) throws IOException {
+        if (compressedBody != null) {
+            compressedBody.read(fileChannel, position, lengthOfData, checksum);
+            return;
+        }
+        if (FTConfig.zeroCopy && socket.getChannel() != null) {
+            receiveFileDataZeroCopy(socket.getChannel(), fileChannel, position, lengthOfData);
+            return;
+        }
+        if (FTConfig.writeBehind && socket.getChannel() != null) {
+            receiveFileDataStaged(socket.getChannel(), fileChannel, position, lengthOfData, writeStage);
+            return;
+        }
+        Throttle throttle = getThrottle();
+        TransferTuner tuner = getTuner();
+        byte bytes[] = new byte[tuner.getChunkSize()];
+        long m = 0;
+
+        while (m < lengthOfData) {
+            int chunkSize = tuner.getChunkSize();
+            if (bytes.length < chunkSize) bytes = new byte[chunkSize];
+            int bytesReadCount = is.read(bytes, 0, (int) Math.min(chunkSize, lengthOfData - m));
+            if (bytesReadCount == -1) throw new EOFException("Client closed the connection after " + m + " bytes");
+            bodyArrived(tuner);
+            throttle.acquire(bytesReadCount);
+            metrics.bytesReceived(bytesReadCount);
+            tuner.transferred(bytesReadCount);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, bytesReadCount);
+            long writeStartedAt = System.nanoTime();
+            while (buffer.hasRemaining()) {
+                fileChannel.write(buffer, position + m + buffer.position());
+            }
+            metrics.diskStall(System.nanoTime() - writeStartedAt);
+            if (checksum != null) checksum.update(bytes, 0, bytesReadCount);
+            m += bytesReadCount;
+        }
+    }
+
+    // Receive file data into pooled direct buffers and hand each full buffer to the write-behind stage of the volume,
+    // so the next network read overlaps the disk write. Returns once every write landed, the caller may then ack or
+    // close the file
+    private void receiveFileDataStaged(SocketChannel socketChannel, FileChannel fileChannel, long position,
+            long lengthOfData, WriteBehindStage writeStage) throws IOException {
+        BufferPool bufferPool = BufferPool.getInstance();
+        Throttle throttle = getThrottle();
+        // The pooled buffers have a fixed size, the tuning only sizes the socket's receive buffer here
+        TransferTuner tuner = getTuner();
+        long m = 0;
+        try {
+            while (m < lengthOfData) {
+                // Blocks while every pooled buffer is queued for the disk, which slows the clients down
+                long waitStartedAt = System.nanoTime();
+                PooledBuffer pooledBuffer = bufferPool.acquire();
+                metrics.diskStall(System.nanoTime() - waitStartedAt);
+                ByteBuffer buffer = pooledBuffer.getBuffer();
+                buffer.clear();
+                buffer.limit((int) Math.min(Math.min(buffer.capacity(), throttle.getChunkLimit()), lengthOfData - m));
+                while (buffer.hasRemaining()) {
+                    if (socketChannel.read(buffer) == -1) {
+                        bufferPool.release(pooledBuffer);
+                        throw new EOFException("Client closed the connection after " + (m + buffer.position())
+                                + " bytes");
+                    }
+                }
+                buffer.flip();
+                bodyArrived(tuner);
+                if (checksum != null) {
+                    checksum.update(buffer);
+                    buffer.rewind();
+                }
+                int length = buffer.remaining();
+                throttle.acquire(length);
+                metrics.bytesReceived(length);
+                tuner.transferred(length);
+                writeStage.submit(pooledBuffer, fileChannel, position + m, pendingWrites);
+                m += length;
+            }
+        } finally {
+            long waitStartedAt = System.nanoTime();
+            pendingWrites.await();
+            metrics.diskStall(System.nanoTime() - waitStartedAt);
+        }
+        pendingWrites.rethrow();
+    }
+
+    // Receive file data with FileChannel.transferFrom, one chunk per call. The bytes never pass through a buffer, so a
+    // checksum reads each chunk back from the page cache on a pool thread while the next chunk arrives
+    private void receiveFileDataZeroCopy(SocketChannel socketChannel, FileChannel fileChannel, long position,
+            long lengthOfData) throws IOException {
+        CompletableFuture<Void> checksummed = CompletableFuture.completedFuture(null);
+        Throttle throttle = getThrottle();
+        TransferTuner tuner = getTuner();
+        long m = 0;
+        while (m < lengthOfData) {
+            long count = Math.min(Math.min(tuner.getChunkSize(), throttle.getChunkLimit()), lengthOfData - m);
+            long bytesTransferred = fileChannel.transferFrom(socketChannel, position + m, count);
+            if (bytesTransferred == 0) {
+                // transferFrom reports end of stream as 0 bytes, a plain read tells the two apart
+                ByteBuffer probe = ByteBuffer.allocate(1);
+                if (socketChannel.read(probe) == -1)
+                    throw new EOFException("Client closed the connection after " + m + " bytes");
+                probe.flip();
+                bytesTransferred = fileChannel.write(probe, position + m);
+            }
+            bodyArrived(tuner);
+            throttle.acquire(bytesTransferred);
+            metrics.bytesReceived(bytesTransferred);
+            tuner.transferred(bytesTransferred);
+            if (checksum != null) {
+                long chunkPosition = position + m;
+                long chunkLength = bytesTransferred;
+                checksummed = checksummed.thenRunAsync(() -> {
+                    try {
+                        checksum.update(fileChannel, chunkPosition, chunkLength);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                });
+            }
+            m += bytesTransferred;
+        }
+        try {
+            checksummed.join();
+        } catch (CompletionException e) {
+            throw new IOException("Checksum of the received data failed", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,56 @@
+import java.io.*;
+
+/**
+ * The RetryAfterException class reports that the server is at capacity and
+ * turned the upload away before accepting any of it. The scheduler queues the
+ * upload again after the delay the server asked for.
+ */
+class RetryAfterException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private long delay;
+
+    RetryAfterException(String message, long delay) {
+        super(message);
+        this.delay = delay;
+    }
+
+    /**
+     * Returns the number of milliseconds the server asked the client to wait.
+     *
+     * @return The delay in milliseconds.
+     */
+    long getDelay() {
+        return this.delay;
+    }
+
+    /**
+     * Throws when the status is {@link FTProtocol#STATUS_RETRY_AFTER}, after
+     * reading the delay that follows it.
+     *
+     * @param status The status read from the server.
+     * @param is     The stream positioned right after the status.
+     * @param name   The name of the file, for the message.
+     */
+    static void check(byte status, InputStream is, String name) throws IOException {
+        if (status != FTProtocol.STATUS_RETRY_AFTER)
+            return;
+        long delay = FTProtocol.readLong(is);
+        throw new RetryAfterException("Server at capacity, " + name + " can retry in " + delay + " ms", delay);
+    }
+
+    /**
+     * Finds a RetryAfterException in the causes of an exception, striped
+     * uploads report it wrapped by the range that was turned away.
+     *
+     * @param e The exception an upload failed with.
+     * @return The exception found, or null.
+     */
+    static RetryAfterException find(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof RetryAfterException)
+                return (RetryAfterException) cause;
+        }
+        return null;
+    }
+}
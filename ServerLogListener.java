@@ -0,0 +1,4 @@
+// ServerLogListener Interface: Receives the log lines produced while serving clients
+interface ServerLogListener {
+    void updateLog(String message);
+}
@@ -0,0 +1,48 @@
+import java.util.concurrent.*;
+import java.io.*;
+
+// SessionAckWriter Class: Sends the acknowledgments of a session's frames without blocking the frame reader
+class SessionAckWriter extends Thread {
+    // Each queued ack packs the status in the high and the transfer id in the low 32 bits
+    private static final long END_OF_SESSION = Long.MIN_VALUE;
+
+    private DataOutputStream dos;
+    private LinkedBlockingQueue<Long> acks;
+
+    SessionAckWriter(OutputStream os, String sessionId) {
+        super("session-acks-" + sessionId);
+        this.dos = new DataOutputStream(new BufferedOutputStream(os));
+        this.acks = new LinkedBlockingQueue<>();
+    }
+
+    public void acknowledge(int transferId, byte status) {
+        acks.add(((long) status << 32) | (transferId & 0xFFFFFFFFL));
+    }
+
+    // Flush the remaining acks and wait for the writer to stop
+    public void finish() throws InterruptedException {
+        acks.add(END_OF_SESSION);
+        join();
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                long ack = acks.take();
+                // Write everything already queued and flush once
+                while (ack != END_OF_SESSION) {
+                    dos.writeByte((int) (ack >> 32));
+                    dos.writeInt((int) ack);
+                    Long next = acks.poll();
+                    if (next == null) break;
+                    ack = next;
+                }
+                dos.flush();
+                if (ack == END_OF_SESSION) return;
+            }
+        } catch (Exception e) {
+            // Handle exceptions by printing to console
+            System.out.println(e);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+import java.util.*;
+
+/**
+ * The SizeDistribution class draws the file sizes of the load generator.
+ */
+abstract class SizeDistribution {
+    private String spec;
+
+    SizeDistribution(String spec) {
+        this.spec = spec;
+    }
+
+    /**
+     * Draws the size of the next upload.
+     *
+     * @param random The random numbers of the calling client.
+     * @return The size in bytes, at least 0.
+     */
+    abstract long next(SplittableRandom random);
+
+    public String toString() {
+        return "sizes " + spec;
+    }
+
+    /**
+     * Parses a distribution: fixed:SIZE, uniform:MIN:MAX,
+     * lognormal:MEDIAN:SIGMA or mix:SIZE@WEIGHT,SIZE@WEIGHT,...
+     *
+     * @param spec The specification.
+     * @return The distribution.
+     */
+    static SizeDistribution parse(String spec) {
+        String parts[] = spec.split(":");
+        try {
+            switch (parts[0]) {
+            case "fixed": {
+                long size = parseSize(parts[1]);
+                return new SizeDistribution(spec) {
+                    long next(SplittableRandom random) {
+                        return size;
+                    }
+                };
+            }
+            case "uniform": {
+                long min = parseSize(parts[1]);
+                long max = parseSize(parts[2]);
+                if (max < min)
+                    throw new IllegalArgumentException("Empty range in " + spec);
+                return new SizeDistribution(spec) {
+                    long next(SplittableRandom random) {
+                        return min + random.nextLong(max - min + 1);
+                    }
+                };
+            }
+            case "lognormal": {
+                double mu = Math.log(parseSize(parts[1]));
+                double sigma = Double.parseDouble(parts[2]);
+                return new SizeDistribution(spec) {
+                    long next(SplittableRandom random) {
+                        return Math.round(Math.exp(mu + sigma * gaussian(random)));
+                    }
+                };
+            }
+            case "mix": {
+                String choices[] = parts[1].split(",");
+                long choiceSizes[] = new long[choices.length];
+                double cumulative[] = new double[choices.length];
+                double total = 0;
+                for (int i = 0; i < choices.length; i++) {
+                    String choice[] = choices[i].split("@");
+                    choiceSizes[i] = parseSize(choice[0]);
+                    total += choice.length > 1 ? Double.parseDouble(choice[1]) : 1;
+                    cumulative[i] = total;
+                }
+                double weights = total;
+                return new SizeDistribution(spec) {
+                    long next(SplittableRandom random) {
+                        double x = random.nextDouble() * weights;
+                        for (int i = 0; i < cumulative.length; i++) {
+                            if (x < cumulative[i])
+                                return choiceSizes[i];
+                        }
+                        return choiceSizes[choiceSizes.length - 1];
+                    }
+                };
+            }
+            default:
+                throw new IllegalArgumentException("Unknown size distribution " + spec);
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed size distribution " + spec);
+        }
+    }
+
+    /**
+     * Parses a size in bytes with an optional K, M or G suffix.
+     *
+     * @param text The size, e.g. 64K.
+     * @return The size in bytes.
+     */
+    static long parseSize(String text) {
+        text = text.trim().toUpperCase();
+        long unit = 1;
+        if (text.endsWith("K")) {
+            unit = 1024;
+        } else if (text.endsWith("M")) {
+            unit = 1024 * 1024;
+        } else if (text.endsWith("G")) {
+            unit = 1024 * 1024 * 1024;
+        }
+        if (unit > 1)
+            text = text.substring(0, text.length() - 1);
+        return Math.round(Double.parseDouble(text) * unit);
+    }
+
+    // A standard normal number from two uniform ones (Box-Muller)
+    private static double gaussian(SplittableRandom random) {
+        return Math.sqrt(-2 * Math.log(1 - random.nextDouble())) * Math.cos(2 * Math.PI * random.nextDouble());
+    }
+}
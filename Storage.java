@@ -0,0 +1,136 @@
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.io.*;
+
+// Storage Class: Spreads the uploads over the volumes and finds them again. A name goes to a volume by its first path
+// segment, so the files of a synced directory stay together, chosen either on a consistent hash ring, where adding a
+// volume moves only its share of new names, or as the volume with the fewest bytes being written. Every placement is
+// kept in an in-memory index, rebuilt from the top level of each volume at startup, and lookups go through the index
+// instead of probing the volumes
+class Storage {
+    static final String HASH = "hash";
+    static final String LEAST_LOADED = "least-loaded";
+    private static final int VIRTUAL_NODES = 128;
+    private static Storage instance;
+
+    private Volume volumes[];
+    private String placement;
+    private TreeMap<Long, Volume> ring = new TreeMap<>();
+    private ConcurrentHashMap<String, Volume> index = new ConcurrentHashMap<>();
+    private AtomicInteger nextVolume = new AtomicInteger();
+
+    Storage(String roots[], String placement) {
+        if (!HASH.equals(placement) && !LEAST_LOADED.equals(placement))
+            throw new IllegalArgumentException("Unknown placement: " + placement);
+        this.placement = placement;
+        volumes = new Volume[roots.length];
+        for (int i = 0; i < roots.length; i++) {
+            volumes[i] = new Volume(String.valueOf(i), new File(roots[i]));
+            for (int j = 0; j < VIRTUAL_NODES; j++) {
+                ring.put(hash(roots[i] + "#" + j), volumes[i]);
+            }
+        }
+        for (Volume volume : volumes) {
+            String names[] = volume.getRoot().list();
+            if (names == null) continue;
+            for (String name : names) {
+                // Journals, blobs, manifests and files still being written start with a dot
+                if (name.startsWith(".")) continue;
+                Volume previous = index.putIfAbsent(name, volume);
+                if (previous != null) {
+                    System.out.println(name + " is on volumes " + previous.getRoot() + " and " + volume.getRoot()
+                            + ", serving the first");
+                }
+            }
+        }
+    }
+
+    static synchronized Storage getInstance() {
+        if (instance == null) {
+            ArrayList<String> roots = new ArrayList<>();
+            for (String root : FTConfig.volumes.split(",")) {
+                if (!root.trim().isEmpty()) roots.add(root.trim());
+            }
+            if (roots.isEmpty()) roots.add("uploads");
+            instance = new Storage(roots.toArray(new String[0]), FTConfig.placement);
+        }
+        return instance;
+    }
+
+    Volume[] getVolumes() {
+        return volumes;
+    }
+
+    // The file an upload of the name is written to, its volume is fixed from now on. The directories are created on
+    // the way
+    File place(String fileName) throws IOException {
+        if (!SyncManifest.isSafePath(fileName)) throw new IOException("Illegal file name: " + fileName);
+        Volume volume = index.computeIfAbsent(topLevel(fileName), this::chooseVolume);
+        File file = volume.resolve(fileName);
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) throw new IOException("Cannot create " + parent);
+        return file;
+    }
+
+    // The file of a stored name, null when the name was never placed
+    File locate(String fileName) {
+        if (!SyncManifest.isSafePath(fileName)) return null;
+        Volume volume = index.get(topLevel(fileName));
+        return volume == null ? null : volume.resolve(fileName);
+    }
+
+    // The volume holding a file returned by place or locate
+    Volume volumeOf(File file) {
+        if (volumes.length == 1) return volumes[0];
+        String path = file.getAbsolutePath();
+        for (Volume volume : volumes) {
+            String root = volume.getRoot().getAbsolutePath() + File.separator;
+            if (path.startsWith(root)) return volume;
+        }
+        return volumes[0];
+    }
+
+    // The free space of all volumes together
+    long getUsableSpace() {
+        long usableSpace = 0;
+        for (Volume volume : volumes) {
+            usableSpace += volume.getUsableSpace();
+        }
+        return usableSpace;
+    }
+
+    private Volume chooseVolume(String topLevel) {
+        if (volumes.length == 1) return volumes[0];
+        if (HASH.equals(placement)) {
+            Map.Entry<Long, Volume> entry = ring.ceilingEntry(hash(topLevel));
+            return (entry != null ? entry : ring.firstEntry()).getValue();
+        }
+        // Start the scan at a rotating volume, so idle volumes take turns instead of the first one taking every name
+        int start = Math.floorMod(nextVolume.getAndIncrement(), volumes.length);
+        Volume chosen = null;
+        for (int i = 0; i < volumes.length; i++) {
+            Volume volume = volumes[(start + i) % volumes.length];
+            if (chosen == null || volume.getPendingBytes() < chosen.getPendingBytes()) chosen = volume;
+        }
+        return chosen;
+    }
+
+    private static String topLevel(String fileName) {
+        int slash = fileName.indexOf('/');
+        return slash < 0 ? fileName : fileName.substring(0, slash);
+    }
+
+    // 64-bit FNV-1a with a final mix, so similar names land far apart on the ring
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,138 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.*;
+import java.util.zip.CRC32C;
+
+/**
+ * The StreamChecksum class computes the checksum of a body incrementally, as
+ * its bytes stream through the client or the server. CRC32C is the default,
+ * the JDK implementation uses the CPU's CRC instructions and keeps up with
+ * loopback transfers; SHA-256 is the stronger and slower option.
+ */
+class StreamChecksum {
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private byte algorithm;
+    private CRC32C crc;
+    private MessageDigest messageDigest;
+    private ByteBuffer buffer;
+
+    StreamChecksum(byte algorithm) throws IOException {
+        this.algorithm = algorithm;
+        if (algorithm == FTProtocol.CHECKSUM_CRC32C) {
+            crc = new CRC32C();
+        } else if (algorithm == FTProtocol.CHECKSUM_SHA256) {
+            try {
+                messageDigest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+        } else {
+            throw new IOException("Unknown checksum algorithm " + algorithm);
+        }
+    }
+
+    /**
+     * Tells whether this side can compute a checksum algorithm a header asks
+     * for.
+     *
+     * @param algorithm The algorithm byte of the header.
+     * @return true for {@link FTProtocol#CHECKSUM_CRC32C} and
+     *         {@link FTProtocol#CHECKSUM_SHA256}.
+     */
+    static boolean isSupported(byte algorithm) {
+        return algorithm == FTProtocol.CHECKSUM_CRC32C || algorithm == FTProtocol.CHECKSUM_SHA256;
+    }
+
+    /**
+     * Parses the name of a checksum algorithm.
+     *
+     * @param name "crc32c", "sha256" or "none".
+     * @return One of the FTProtocol.CHECKSUM_* algorithms.
+     */
+    static byte algorithm(String name) {
+        if (name.equalsIgnoreCase("sha256"))
+            return FTProtocol.CHECKSUM_SHA256;
+        if (name.equalsIgnoreCase("none"))
+            return FTProtocol.CHECKSUM_NONE;
+        return FTProtocol.CHECKSUM_CRC32C;
+    }
+
+    public byte getAlgorithm() {
+        return algorithm;
+    }
+
+    public void update(byte bytes[], int offset, int length) {
+        if (crc != null)
+            crc.update(bytes, offset, length);
+        else
+            messageDigest.update(bytes, offset, length);
+    }
+
+    public void update(ByteBuffer bytes) {
+        if (crc != null)
+            crc.update(bytes);
+        else
+            messageDigest.update(bytes);
+    }
+
+    /**
+     * Reads a region of a file back and adds it, for bytes that were moved
+     * with zero-copy calls and never passed through a buffer. The region was
+     * just written, so the reads are served from the page cache.
+     *
+     * @param channel  The file the bytes were written to.
+     * @param position The start of the region.
+     * @param length   The length of the region.
+     */
+    public void update(FileChannel channel, long position, long length) throws IOException {
+        if (buffer == null)
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        long m = 0;
+        while (m < length) {
+            buffer.clear().limit((int) Math.min(BUFFER_SIZE, length - m));
+            int bytesReadCount = channel.read(buffer, position + m);
+            if (bytesReadCount == -1)
+                throw new EOFException("File ended after " + m + " of " + length + " bytes");
+            buffer.flip();
+            update(buffer);
+            m += bytesReadCount;
+        }
+    }
+
+    /**
+     * Gets the checksum, CRC32C as 4 big-endian bytes or the 32 byte digest.
+     *
+     * @return The checksum of the bytes added so far.
+     */
+    public byte[] getValue() {
+        if (crc != null)
+            return ByteBuffer.allocate(4).putInt((int) crc.getValue()).array();
+        return messageDigest.digest();
+    }
+
+    /**
+     * Computes the checksum of a file from an offset to its end on a pool
+     * thread, so the sender can start streaming right away.
+     *
+     * @param file      The file to read.
+     * @param offset    The position the body starts at.
+     * @param algorithm One of the FTProtocol.CHECKSUM_* algorithms.
+     * @return The future checksum.
+     */
+    static CompletableFuture<byte[]> computeAsync(File file, long offset, byte algorithm) {
+        return CompletableFuture.supplyAsync(() -> {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                StreamChecksum checksum = new StreamChecksum(algorithm);
+                checksum.update(channel, offset, channel.size() - offset);
+                return checksum.getValue();
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+}
@@ -0,0 +1,149 @@
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+
+// StripedFile Class: Target of a striped upload whose ranges arrive over several connections at once. The client
+// retries a failed upload under a new id, so a failed range abandons the upload, and a reaper abandons uploads no
+// range arrived for within the idle timeout, before their preallocated temporary files pile up
+class StripedFile {
+    private static final ConcurrentHashMap<UUID, StripedFile> openFiles = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "striped-file-reaper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        long period = Math.max(1000, FTConfig.stripeIdleTimeout / 4);
+        reaper.scheduleWithFixedDelay(StripedFile::abortIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private UUID uploadId;
+    private File file;
+    private File temporary;
+    private FileChannel channel;
+    private long totalLength;
+    // The ranges received or arriving, by offset with their end, they never overlap
+    private TreeMap<Long, Long> ranges = new TreeMap<>();
+    private long receivedLength;
+    private int activeRanges;
+    private long lastActivity = System.nanoTime();
+    private boolean closed;
+
+    private StripedFile(UUID uploadId, File file, long totalLength) throws IOException {
+        this.uploadId = uploadId;
+        this.file = file;
+        this.temporary = Durability.temporaryFile(file);
+        this.totalLength = totalLength;
+        RandomAccessFile raf = new RandomAccessFile(temporary, "rw");
+        // Preallocate so every range can be written at its position independently
+        raf.setLength(totalLength);
+        this.channel = raf.getChannel();
+    }
+
+    // Return the target of the upload, creating it when the first range arrives, with the range counted as active.
+    // A range that does not fit the file or overlaps one received or arriving is refused. The file reserves the disk
+    // space it preallocates until it is committed or abandoned, null when the server has no room for it
+    static StripedFile open(UUID uploadId, String fileName, long offset, long lengthOfRange, long totalLength)
+            throws IOException {
+        while (true) {
+            StripedFile stripedFile;
+            try {
+                stripedFile = openFiles.computeIfAbsent(uploadId, key -> {
+                    if (!AdmissionController.getInstance().reserve(totalLength)) return null;
+                    try {
+                        return new StripedFile(key, RequestProcessor.targetFile(fileName), totalLength);
+                    } catch (IOException e) {
+                        AdmissionController.getInstance().unreserve(totalLength);
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            if (stripedFile == null) return null;
+            if (stripedFile.rangeStarted(offset, lengthOfRange, totalLength)) return stripedFile;
+            // Abandoned in the meantime, its entry is gone and the next round starts the upload afresh
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    private synchronized boolean rangeStarted(long offset, long lengthOfRange, long totalLength) throws IOException {
+        if (closed) return false;
+        if (totalLength != this.totalLength || offset < 0 || lengthOfRange <= 0
+                || lengthOfRange > totalLength - offset)
+            throw new IOException("Range " + offset + "+" + lengthOfRange + " of " + totalLength + " bytes does not fit "
+                    + file + " of " + this.totalLength + " bytes");
+        Map.Entry<Long, Long> before = ranges.floorEntry(offset);
+        Map.Entry<Long, Long> after = ranges.ceilingEntry(offset);
+        if (before != null && before.getValue() > offset || after != null && after.getKey() < offset + lengthOfRange)
+            throw new IOException("Range " + offset + "+" + lengthOfRange + " of " + file
+                    + " overlaps a range already sent");
+        ranges.put(offset, offset + lengthOfRange);
+        activeRanges++;
+        lastActivity = System.nanoTime();
+        return true;
+    }
+
+    // Account for the completely received range at the offset, commits the file once the ranges cover all of it
+    public boolean rangeReceived(long offset) throws IOException {
+        synchronized (this) {
+            if (closed) throw new IOException("Striped upload of " + file + " was abandoned");
+            activeRanges--;
+            lastActivity = System.nanoTime();
+            receivedLength += ranges.get(offset) - offset;
+            if (receivedLength < totalLength) return false;
+            closed = true;
+        }
+        openFiles.remove(uploadId, this);
+        try {
+            Durability.commit(channel, temporary, file);
+        } finally {
+            channel.close();
+            // Only left over when the commit failed
+            temporary.delete();
+            AdmissionController.getInstance().unreserve(totalLength);
+        }
+        return true;
+    }
+
+    // Abandon the upload: close and delete the partial file, ranges still arriving fail on the closed channel
+    public void abort() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+        }
+        openFiles.remove(uploadId, this);
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println(e);
+        }
+        temporary.delete();
+        AdmissionController.getInstance().unreserve(totalLength);
+    }
+
+    private static void abortIdle() {
+        long now = System.nanoTime();
+        for (StripedFile stripedFile : openFiles.values()) {
+            boolean idle;
+            synchronized (stripedFile) {
+                idle = stripedFile.activeRanges == 0
+                        && now - stripedFile.lastActivity > TimeUnit.MILLISECONDS.toNanos(FTConfig.stripeIdleTimeout);
+            }
+            if (idle) {
+                System.out.println("Abandoning striped upload of " + stripedFile.file + ", no range arrived for "
+                        + FTConfig.stripeIdleTimeout + " ms");
+                stripedFile.abort();
+            }
+        }
+    }
+}
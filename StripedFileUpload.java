@@ -0,0 +1,147 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/**
+ * The StripedFileUpload class uploads one large file over several parallel
+ * connections to make use of links with a high bandwidth-delay product. The
+ * file is split into equal ranges and every range is sent with a
+ * {@link FTHeader#FLAG_RANGE} header tagged with the id of the upload, so the
+ * server can write it straight to its position in the target.
+ */
+class StripedFileUpload {
+    // A range the server refuses for now is retried on its own, the ranges it already has stay in place
+    private static final int MAX_RANGE_RETRIES = 8;
+
+    private FileUploadThread upload;
+    private String host;
+    private int portNumber;
+    private int stripeCount;
+    private AtomicLong numberOfBytesUploaded;
+
+    StripedFileUpload(FileUploadThread upload, String host, int portNumber, int stripeCount) {
+        this.upload = upload;
+        this.host = host;
+        this.portNumber = portNumber;
+        this.stripeCount = stripeCount;
+        this.numberOfBytesUploaded = new AtomicLong();
+    }
+
+    /**
+     * Sends all ranges in parallel and waits until the server acknowledged
+     * each of them.
+     */
+    public void upload() throws Exception {
+        long lengthOfFile = upload.getFile().length();
+        UUID uploadId = UUID.randomUUID();
+        long lengthOfRange = (lengthOfFile + stripeCount - 1) / stripeCount;
+        ExecutorService executor = TransferExecutors.newExecutor(FTConfig.executorMode);
+        // Ranges are collected as they finish, so the first that fails is seen while the others still run
+        CompletionService<Void> ranges = new ExecutorCompletionService<>(executor);
+        int rangeCount = 0;
+        boolean sent = false;
+        try {
+            for (long offset = 0; offset < lengthOfFile; offset += lengthOfRange) {
+                long rangeOffset = offset;
+                long rangeLength = Math.min(lengthOfRange, lengthOfFile - offset);
+                ranges.submit(() -> {
+                    retryRange(uploadId, rangeOffset, rangeLength, lengthOfFile);
+                    return null;
+                });
+                rangeCount++;
+            }
+            for (int i = 0; i < rangeCount; i++) {
+                ranges.take().get();
+            }
+            sent = true;
+        } finally {
+            // The upload fails with its first range, the others are stopped rather than sent for nothing
+            if (sent) {
+                executor.shutdown();
+            } else {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private void retryRange(UUID uploadId, long offset, long lengthOfRange, long lengthOfFile) throws Exception {
+        for (int retries = 0;; retries++) {
+            try {
+                sendRange(uploadId, offset, lengthOfRange, lengthOfFile);
+                return;
+            } catch (RetryAfterException e) {
+                if (retries >= MAX_RANGE_RETRIES)
+                    throw e;
+                Thread.sleep(e.getDelay());
+            }
+        }
+    }
+
+    private void sendRange(UUID uploadId, long offset, long lengthOfRange, long lengthOfFile) throws IOException {
+        File file = upload.getFile();
+        TransferMetrics metrics = TransferMetrics.client();
+        try (SocketChannel socketChannel = SocketChannel.open(new InetSocketAddress(host, portNumber));
+                TransferMetrics.Connection connection = metrics.open();
+                FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            Socket socket = socketChannel.socket();
+            // Ranges wait for the header ack, a server at capacity answers it with the retry delay instead of
+            // cutting the range off
+            FTHeader header = new FTHeader(FTHeader.OP_UPLOAD, FTHeader.FLAG_ACK_HEADER, lengthOfRange,
+                    upload.getRemoteName());
+            header.setUploadId(uploadId);
+            header.setRange(offset, lengthOfFile);
+            TransferTuner tuner = new TransferTuner(socket, true,
+                    FTConfig.zeroCopy ? FileUploadThread.initialChunkSize() : 4096);
+            long headerSentAt = System.nanoTime();
+            header.write(socket.getOutputStream());
+            byte headerStatus = FTProtocol.readStatus(socket.getInputStream());
+            tuner.roundTrip(System.nanoTime() - headerSentAt);
+            connection.firstAck();
+            RetryAfterException.check(headerStatus, socket.getInputStream(), file.getName());
+            NoSpaceException.check(headerStatus, file.getName());
+            if (headerStatus != FTProtocol.STATUS_OK)
+                throw new IOException("Server rejected range " + offset + " of " + file.getName() + " with status "
+                        + headerStatus);
+            long sent = 0;
+            ByteBuffer buffer = FTConfig.zeroCopy ? null : ByteBuffer.allocate(tuner.getChunkSize());
+            while (sent < lengthOfRange) {
+                long count = Math.min(Math.min(tuner.getChunkSize(), FileUploadThread.uploadLimit.getBurst()),
+                        lengthOfRange - sent);
+                long bytesSent;
+                if (FTConfig.zeroCopy) {
+                    bytesSent = fileChannel.transferTo(offset + sent, count, socketChannel);
+                    if (bytesSent == 0)
+                        throw new EOFException(file.getName() + " shrank during the upload");
+                } else {
+                    if (buffer.capacity() < count)
+                        buffer = ByteBuffer.allocate(tuner.getChunkSize());
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), count));
+                    if (fileChannel.read(buffer, offset + sent) == -1)
+                        throw new EOFException(file.getName() + " shrank during the upload");
+                    buffer.flip();
+                    bytesSent = buffer.remaining();
+                    while (buffer.hasRemaining()) {
+                        socketChannel.write(buffer);
+                    }
+                }
+                FileUploadThread.uploadLimit.acquire(bytesSent);
+                metrics.bytesSent(bytesSent);
+                tuner.transferred(bytesSent);
+                sent += bytesSent;
+                upload.setBytesUploaded(numberOfBytesUploaded.addAndGet(bytesSent));
+            }
+            byte status = FTProtocol.readStatus(socket.getInputStream());
+            RetryAfterException.check(status, socket.getInputStream(), file.getName());
+            NoSpaceException.check(status, file.getName());
+            if (status != FTProtocol.STATUS_OK)
+                throw new IOException("Server rejected range " + offset + " of " + file.getName() + " with status "
+                        + status);
+        }
+    }
+}
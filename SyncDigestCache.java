@@ -0,0 +1,80 @@
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+
+// SyncDigestCache Class: Remembers the digest of every file of a synced directory in its .ftmanifest file, with the
+// length and modification time the file had when it was hashed. A sync only hashes the files whose length matches the
+// client's but that changed since the last sync, the others are answered from the cache
+class SyncDigestCache {
+    private static final ConcurrentHashMap<String, Object> locks = new ConcurrentHashMap<>();
+
+    private File cacheFile;
+    private ConcurrentHashMap<String, ManifestEntry> entries = new ConcurrentHashMap<>();
+    private volatile boolean changed;
+
+    private SyncDigestCache(File directory) {
+        this.cacheFile = new File(directory, SyncManifest.CACHE_FILE_NAME);
+        if (!cacheFile.isFile()) return;
+        try {
+            for (ManifestEntry entry : SyncManifest.read(Files.readAllBytes(cacheFile.toPath())).getEntries()) {
+                entries.put(entry.getPath(), entry);
+            }
+        } catch (IOException e) {
+            // A damaged cache only costs hashing the files again
+            System.out.println("Ignoring " + cacheFile + ": " + e);
+            entries.clear();
+        }
+    }
+
+    // Return the indexes of the entries whose file is missing or differs, one sync of a directory at a time
+    static int[] findChangedEntries(File directory, ArrayList<ManifestEntry> clientEntries) throws IOException {
+        Object lock = locks.computeIfAbsent(directory.getCanonicalPath(), key -> new Object());
+        synchronized (lock) {
+            SyncDigestCache cache = new SyncDigestCache(directory);
+            int needed[];
+            try {
+                needed = java.util.stream.IntStream.range(0, clientEntries.size()).parallel()
+                        .filter(i -> cache.differs(directory, clientEntries.get(i))).toArray();
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            if (cache.changed) cache.save();
+            return needed;
+        }
+    }
+
+    private boolean differs(File directory, ManifestEntry clientEntry) {
+        File file = new File(directory, clientEntry.getPath().replace('/', File.separatorChar));
+        if (!file.isFile() || file.length() != clientEntry.getLength()) return true;
+        return !Arrays.equals(digest(file, clientEntry.getPath()), clientEntry.getDigest());
+    }
+
+    // The digest of a file, hashed again only when it changed since it was cached
+    private byte[] digest(File file, String path) {
+        long length = file.length();
+        long lastModified = file.lastModified();
+        ManifestEntry cached = entries.get(path);
+        if (cached != null && cached.getLength() == length && cached.getLastModified() == lastModified)
+            return cached.getDigest();
+        try {
+            byte digest[] = FTProtocol.sha256(file);
+            entries.put(path, new ManifestEntry(path, length, lastModified, digest));
+            changed = true;
+            return digest;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Replace the cache file in one rename, a crash leaves the old one
+    private void save() throws IOException {
+        ArrayList<ManifestEntry> sorted = new ArrayList<>(entries.values());
+        sorted.sort(Comparator.comparing(ManifestEntry::getPath));
+        File temporary = new File(cacheFile.getPath() + ".tmp");
+        Files.write(temporary.toPath(), new SyncManifest(sorted).toByteArray());
+        Files.move(temporary.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+}
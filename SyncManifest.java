@@ -0,0 +1,222 @@
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * The SyncManifest class lists the files of a directory tree for a sync: the
+ * relative path, length, modification time and SHA-256 digest of every
+ * regular file. It travels as the body of an {@link FTHeader#OP_SYNC} header,
+ * deflated, since the paths of a tree repeat their prefixes over and over:
+ *
+ * <pre>
+ * count    4 bytes
+ * entries  count times: path (modified UTF-8), length 8 bytes, mtime 8 bytes, digest 32 bytes
+ * </pre>
+ */
+class SyncManifest {
+    /**
+     * The name of the digest cache the server keeps in every synced
+     * directory, never part of a manifest.
+     */
+    static final String CACHE_FILE_NAME = ".ftmanifest";
+
+    /**
+     * The most entries and decoded bytes a manifest may have, a small
+     * deflated body must not make the reader allocate without bound.
+     */
+    static final int MAX_ENTRIES = 1 << 20;
+    static final long MAX_DECODED_LENGTH = 64L * 1024 * 1024;
+
+    private ArrayList<ManifestEntry> entries;
+
+    SyncManifest(ArrayList<ManifestEntry> entries) {
+        this.entries = entries;
+    }
+
+    public ArrayList<ManifestEntry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Walks a directory tree and hashes its files in parallel on a fork/join
+     * pool. Every directory is a task that forks one task per subdirectory
+     * and hashes its own files, so large trees and large files keep every
+     * core busy.
+     *
+     * @param root The directory to list.
+     * @return The manifest, sorted by path.
+     */
+    static SyncManifest build(File root) throws IOException {
+        try {
+            ArrayList<ManifestEntry> entries = ForkJoinPool.commonPool()
+                    .invoke(new DirectoryTask(root.toPath(), root.toPath()));
+            entries.sort(Comparator.comparing(ManifestEntry::getPath));
+            return new SyncManifest(entries);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Encodes the manifest, deflated.
+     *
+     * @return The encoded manifest.
+     */
+    public byte[] toByteArray() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DeflaterOutputStream dos = new DeflaterOutputStream(baos, new Deflater(Deflater.BEST_SPEED));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(dos));
+        out.writeInt(entries.size());
+        for (ManifestEntry entry : entries) {
+            out.writeUTF(entry.getPath());
+            out.writeLong(entry.getLength());
+            out.writeLong(entry.getLastModified());
+            out.write(entry.getDigest());
+        }
+        out.close();
+        return baos.toByteArray();
+    }
+
+    /**
+     * Decodes a manifest. Paths that could leave the synced directory are
+     * rejected, and so are manifests with more than {@link #MAX_ENTRIES}
+     * entries or {@link #MAX_DECODED_LENGTH} bytes once inflated.
+     *
+     * @param bytes The encoded manifest.
+     * @return The manifest.
+     */
+    static SyncManifest read(byte bytes[]) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new InflaterInputStream(new ByteArrayInputStream(bytes), inflater)));
+            int count = in.readInt();
+            if (count < 0 || count > MAX_ENTRIES)
+                throw new IOException("Malformed manifest with " + count + " entries");
+            ArrayList<ManifestEntry> entries = new ArrayList<>(Math.min(count, 1 << 16));
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                if (!isSafePath(path))
+                    throw new IOException("Illegal path in manifest: " + path);
+                long length = in.readLong();
+                long lastModified = in.readLong();
+                byte digest[] = new byte[32];
+                in.readFully(digest);
+                entries.add(new ManifestEntry(path, length, lastModified, digest));
+                // Checked per entry, a single entry is at most a 64 KB path and 50 bytes besides
+                if (inflater.getBytesWritten() > MAX_DECODED_LENGTH)
+                    throw new IOException("Manifest inflates to more than " + MAX_DECODED_LENGTH + " bytes");
+            }
+            return new SyncManifest(entries);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Tells whether a relative path, with '/' separators, stays inside the
+     * directory it is resolved against and keeps clear of the server's own
+     * files.
+     *
+     * @param path The path to check.
+     * @return true for a relative path without empty, "." or ".." segments
+     *         and without reserved names.
+     */
+    static boolean isSafePath(String path) {
+        if (path.isEmpty() || path.startsWith("/") || path.indexOf('\\') >= 0 || path.indexOf('\0') >= 0)
+            return false;
+        for (String segment : path.split("/", -1)) {
+            if (segment.isEmpty() || segment.equals(".") || segment.equals("..") || isReservedName(segment))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Tells whether a file name belongs to the server: the blob store, the
+     * upload journals, the digest cache and its replacement, and the
+     * temporary files uploads are written to before they are committed.
+     *
+     * @param name A single path segment.
+     * @return true when the name is reserved.
+     */
+    static boolean isReservedName(String name) {
+        return name.equals(BlobStore.DIRECTORY_NAME) || name.equals(UploadJournal.DIRECTORY_NAME)
+                || name.startsWith(CACHE_FILE_NAME) || Durability.isTemporaryName(name);
+    }
+
+    // Lists one directory: forks a task per subdirectory and hashes the files of its own level
+    private static class DirectoryTask extends RecursiveTask<ArrayList<ManifestEntry>> {
+        private static final long serialVersionUID = 1L;
+
+        private Path root;
+        private Path directory;
+
+        DirectoryTask(Path root, Path directory) {
+            this.root = root;
+            this.directory = directory;
+        }
+
+        protected ArrayList<ManifestEntry> compute() {
+            ArrayList<DirectoryTask> subdirectories = new ArrayList<>();
+            ArrayList<FileTask> files = new ArrayList<>();
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(directory)) {
+                for (Path child : children) {
+                    BasicFileAttributes attributes = Files.readAttributes(child, BasicFileAttributes.class,
+                            LinkOption.NOFOLLOW_LINKS);
+                    if (attributes.isDirectory()) {
+                        if (!isReservedName(child.getFileName().toString()))
+                            subdirectories.add(new DirectoryTask(root, child));
+                    } else if (attributes.isRegularFile() && !isReservedName(child.getFileName().toString())) {
+                        files.add(new FileTask(root, child, attributes));
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            invokeAll(subdirectories);
+            invokeAll(files);
+            ArrayList<ManifestEntry> entries = new ArrayList<>();
+            for (FileTask file : files) {
+                entries.add(file.join());
+            }
+            for (DirectoryTask subdirectory : subdirectories) {
+                entries.addAll(subdirectory.join());
+            }
+            return entries;
+        }
+    }
+
+    // Hashes one file
+    private static class FileTask extends RecursiveTask<ManifestEntry> {
+        private static final long serialVersionUID = 1L;
+
+        private Path root;
+        private Path file;
+        private BasicFileAttributes attributes;
+
+        FileTask(Path root, Path file, BasicFileAttributes attributes) {
+            this.root = root;
+            this.file = file;
+            this.attributes = attributes;
+        }
+
+        protected ManifestEntry compute() {
+            StringBuilder path = new StringBuilder();
+            for (Path segment : root.relativize(file)) {
+                if (path.length() > 0)
+                    path.append('/');
+                path.append(segment);
+            }
+            try {
+                return new ManifestEntry(path.toString(), attributes.size(),
+                        attributes.lastModifiedTime().toMillis(), FTProtocol.sha256(file.toFile()));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+import java.net.*;
+import java.io.*;
+
+// Throttle Class: The rate limits of one connection, its own bucket and those of its address and the server
+class Throttle {
+    private BandwidthShaper shaper;
+    private InetAddress address;
+    private TokenBucket global;
+    private TokenBucket addressBucket;
+    private TokenBucket transferBucket;
+
+    Throttle(BandwidthShaper shaper, InetAddress address, TokenBucket global, TokenBucket addressBucket,
+            TokenBucket transferBucket) {
+        this.shaper = shaper;
+        this.address = address;
+        this.global = global;
+        this.addressBucket = addressBucket;
+        this.transferBucket = transferBucket;
+    }
+
+    // Take the bytes just received from every level and wait for the one that is furthest behind
+    void acquire(long bytes) throws InterruptedIOException {
+        TokenBucket.pause(reserve(bytes));
+    }
+
+    // Take the bytes from every level without waiting, returns the nanoseconds until the next bytes may move. The
+    // NIO engine cannot block its event loop, it stops reading from the connection for that long instead
+    long reserve(long bytes) {
+        return Math.max(global.reserve(bytes), Math.max(addressBucket.reserve(bytes), transferBucket.reserve(bytes)));
+    }
+
+    // The largest read that keeps the stream smooth under the tightest limit
+    long getChunkLimit() {
+        return Math.min(global.getBurst(), Math.min(addressBucket.getBurst(), transferBucket.getBurst()));
+    }
+
+    InetAddress getAddress() {
+        return address;
+    }
+
+    TokenBucket getTransferBucket() {
+        return transferBucket;
+    }
+
+    void close() {
+        shaper.close(this);
+    }
+}
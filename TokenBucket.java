@@ -0,0 +1,112 @@
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The TokenBucket class limits the rate of a byte stream. Tokens accrue at
+ * the configured rate up to the burst size, and every transfer takes as many
+ * tokens as it moved bytes. A transfer may take more tokens than the bucket
+ * holds: the balance goes negative and the caller waits until it is paid
+ * back. Because waiting is computed from the balance rather than slept per
+ * call, a late wake-up is credited to the next transfer and the long term
+ * rate stays exact from a few KB/s up to several GB/s.
+ */
+class TokenBucket {
+    /**
+     * The burst is the number of bytes the rate allows in this many
+     * nanoseconds, but never less than {@link #MIN_BURST}.
+     */
+    private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long MIN_BURST = 64 * 1024;
+
+    private volatile long rate;
+    private long burst;
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+
+    /**
+     * Creates a bucket.
+     *
+     * @param rate The rate in bytes per second, 0 for unlimited.
+     */
+    TokenBucket(long rate) {
+        setRate(rate);
+    }
+
+    /**
+     * Changes the rate, takes effect for the next transfer. Tokens already
+     * accrued are kept up to the new burst size.
+     *
+     * @param rate The rate in bytes per second, 0 for unlimited.
+     */
+    synchronized void setRate(long rate) {
+        refill(System.nanoTime());
+        this.rate = Math.max(0, rate);
+        this.burst = Math.max(MIN_BURST, (long) ((double) this.rate * BURST_NANOS / 1e9));
+        tokens = Math.min(tokens, burst);
+    }
+
+    public long getRate() {
+        return rate;
+    }
+
+    /**
+     * Returns the largest number of bytes a single transfer should move, so
+     * the stream does not alternate between long bursts and long pauses.
+     *
+     * @return The burst size, Long.MAX_VALUE when unlimited.
+     */
+    synchronized long getBurst() {
+        return rate == 0 ? Long.MAX_VALUE : burst;
+    }
+
+    /**
+     * Takes the tokens for a transfer without waiting.
+     *
+     * @param bytes The number of bytes moved.
+     * @return The nanoseconds the caller has to wait before moving more data.
+     */
+    long reserve(long bytes) {
+        if (rate == 0)
+            return 0;
+        synchronized (this) {
+            if (rate == 0)
+                return 0;
+            long now = System.nanoTime();
+            refill(now);
+            tokens -= bytes;
+            return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / rate);
+        }
+    }
+
+    /**
+     * Takes the tokens for a transfer and waits until the balance allows it.
+     *
+     * @param bytes The number of bytes moved.
+     */
+    void acquire(long bytes) throws InterruptedIOException {
+        pause(reserve(bytes));
+    }
+
+    /**
+     * Waits for the nanoseconds returned by {@link #reserve(long)}, used when
+     * a transfer takes tokens from several buckets and waits for the longest.
+     *
+     * @param nanos The time to wait.
+     */
+    static void pause(long nanos) throws InterruptedIOException {
+        long deadline = System.nanoTime() + nanos;
+        while (nanos > 0) {
+            LockSupport.parkNanos(nanos);
+            if (Thread.interrupted())
+                throw new InterruptedIOException("Interrupted while rate limited");
+            nanos = deadline - System.nanoTime();
+        }
+    }
+
+    private void refill(long now) {
+        if (rate > 0)
+            tokens = Math.min(burst, tokens + (now - refilledAt) * (rate / 1e9));
+        refilledAt = now;
+    }
+}
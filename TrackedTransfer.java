@@ -0,0 +1,26 @@
+import java.io.*;
+
+/**
+ * The TrackedTransfer interface is what the {@link UploadTableModel} polls to
+ * show a transfer, an upload or a download.
+ */
+interface TrackedTransfer {
+    public String getId();
+
+    /**
+     * Gets the local file, the source of an upload or the target of a
+     * download.
+     *
+     * @return The local file.
+     */
+    public File getFile();
+
+    /**
+     * Gets the length of the transfer.
+     *
+     * @return The length in bytes, -1 while it is not known yet.
+     */
+    public long getLength();
+
+    public long getBytesTransferred();
+}
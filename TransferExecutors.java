@@ -0,0 +1,55 @@
+import java.util.concurrent.*;
+
+/**
+ * The TransferExecutors class creates the executors that run the server's
+ * request processors and the client's upload tasks. The platform mode keeps
+ * the original one thread per transfer behaviour, the virtual mode runs every
+ * transfer on its own virtual thread so blocking stream code stays cheap even
+ * with tens of thousands of slow connections.
+ */
+class TransferExecutors {
+    static final String PLATFORM = "platform";
+    static final String VIRTUAL = "virtual";
+
+    private TransferExecutors() {
+    }
+
+    /**
+     * Creates an executor that starts a new thread for every submitted task.
+     *
+     * @param mode The execution mode, platform or virtual.
+     * @return The executor for the requested mode.
+     */
+    static ExecutorService newExecutor(String mode) {
+        if (VIRTUAL.equalsIgnoreCase(mode)) {
+            ExecutorService executor = newVirtualThreadPerTaskExecutor();
+            if (executor != null)
+                return executor;
+            System.out.println("Virtual threads need Java 21 or later, falling back to platform threads.");
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Tells whether the running JVM supports virtual threads.
+     *
+     * @return true when virtual threads are available.
+     */
+    static boolean isVirtualThreadSupported() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    // Looked up reflectively so the sources still compile and run on Java 17
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,300 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+/**
+ * The TransferMetrics class counts what one side of the application does:
+ * connections, transfers, bytes in each direction, the time until a header
+ * is answered, the time a whole transfer takes and the time the transfer
+ * threads wait for the disk. The server and the client each have one
+ * instance, registered as the MBeans
+ * {@code FileTransfer:type=TransferMetrics,side=server} and
+ * {@code side=client}.
+ *
+ * Recording is lock-free: every counter and histogram bucket is a
+ * {@link LongAdder}, which spreads contended updates over cells, so the
+ * transfer threads never wait for each other or for a reader. A daemon
+ * thread derives the per-second rates and, with {@link FTConfig#metricsFile}
+ * set, writes a JSON snapshot of both sides every
+ * {@link FTConfig#metricsInterval} milliseconds.
+ */
+class TransferMetrics implements TransferMetricsMBean {
+    private static final TransferMetrics server = new TransferMetrics("server");
+    private static final TransferMetrics client = new TransferMetrics("client");
+    private static final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "transfer-metrics");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        ticker.scheduleAtFixedRate(() -> {
+            server.tick();
+            client.tick();
+        }, 1, 1, TimeUnit.SECONDS);
+        if (FTConfig.metricsFile != null) {
+            long interval = Math.max(100, FTConfig.metricsInterval);
+            ticker.scheduleAtFixedRate(() -> writeSnapshot(Paths.get(FTConfig.metricsFile)), interval, interval,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private String side;
+    private LongAdder activeConnections = new LongAdder();
+    private LongAdder connections = new LongAdder();
+    private LongAdder transfers = new LongAdder();
+    private LongAdder failures = new LongAdder();
+    private LongAdder bytesReceived = new LongAdder();
+    private LongAdder bytesSent = new LongAdder();
+    private LatencyHistogram firstAck = new LatencyHistogram();
+    private LatencyHistogram transferTime = new LatencyHistogram();
+    private LatencyHistogram diskStalls = new LatencyHistogram();
+
+    // Written by the ticker only
+    private long lastBytesReceived;
+    private long lastBytesSent;
+    private long lastTick = System.nanoTime();
+    private volatile long receiveRate;
+    private volatile long sendRate;
+
+    private TransferMetrics(String side) {
+        this.side = side;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("FileTransfer:type=TransferMetrics,side=" + side));
+        } catch (JMException e) {
+            // Another class loader registered the name first, the metrics still count
+            System.out.println(e);
+        }
+    }
+
+    /**
+     * Returns the metrics of the server side.
+     *
+     * @return The metrics recorded by RequestProcessor.
+     */
+    static TransferMetrics server() {
+        return server;
+    }
+
+    /**
+     * Returns the metrics of the client side.
+     *
+     * @return The metrics recorded by the uploads and downloads.
+     */
+    static TransferMetrics client() {
+        return client;
+    }
+
+    /**
+     * Counts a new connection as active until the returned scope is closed,
+     * meant for a try-with-resources statement.
+     *
+     * @return The scope of the connection.
+     */
+    Connection open() {
+        connectionOpened();
+        return new Connection(this);
+    }
+
+    void connectionOpened() {
+        activeConnections.increment();
+        connections.increment();
+    }
+
+    void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    /**
+     * Records a completed transfer: a whole file, a range of a striped file
+     * or a download.
+     *
+     * @param nanos The time from the header to the last byte.
+     */
+    void transferCompleted(long nanos) {
+        transfers.increment();
+        transferTime.record(nanos);
+    }
+
+    void transferFailed() {
+        failures.increment();
+    }
+
+    void bytesReceived(long bytes) {
+        bytesReceived.add(bytes);
+    }
+
+    void bytesSent(long bytes) {
+        bytesSent.add(bytes);
+    }
+
+    /**
+     * Records the time until the other side answered a header, or until
+     * this side answered one on the server.
+     *
+     * @param nanos The time since the connection was opened or accepted.
+     */
+    void firstAck(long nanos) {
+        firstAck.record(nanos);
+    }
+
+    /**
+     * Records a time a transfer thread spent waiting for the disk: a write,
+     * a sync, or a wait for buffers that are queued for the disk.
+     *
+     * @param nanos The time waited.
+     */
+    void diskStall(long nanos) {
+        diskStalls.record(nanos);
+    }
+
+    public long getActiveConnections() {
+        return activeConnections.sum();
+    }
+
+    public long getConnections() {
+        return connections.sum();
+    }
+
+    public long getTransfers() {
+        return transfers.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    public long getReceiveBytesPerSecond() {
+        return receiveRate;
+    }
+
+    public long getSendBytesPerSecond() {
+        return sendRate;
+    }
+
+    public long getFirstAckP50Micros() {
+        return firstAck.percentile(0.5) / 1000;
+    }
+
+    public long getFirstAckP99Micros() {
+        return firstAck.percentile(0.99) / 1000;
+    }
+
+    public long getFirstAckMaxMicros() {
+        return firstAck.max() / 1000;
+    }
+
+    public long getTransferP50Micros() {
+        return transferTime.percentile(0.5) / 1000;
+    }
+
+    public long getTransferP99Micros() {
+        return transferTime.percentile(0.99) / 1000;
+    }
+
+    public long getTransferMaxMicros() {
+        return transferTime.max() / 1000;
+    }
+
+    public long getDiskStallCount() {
+        return diskStalls.count();
+    }
+
+    public long getDiskStallP99Micros() {
+        return diskStalls.percentile(0.99) / 1000;
+    }
+
+    public long getDiskStallMaxMicros() {
+        return diskStalls.max() / 1000;
+    }
+
+    public void resetHistograms() {
+        firstAck.reset();
+        transferTime.reset();
+        diskStalls.reset();
+    }
+
+    // Derive the rates from the bytes counted since the previous tick
+    private void tick() {
+        long now = System.nanoTime();
+        long received = bytesReceived.sum();
+        long sent = bytesSent.sum();
+        double seconds = Math.max(1, now - lastTick) / 1e9;
+        receiveRate = (long) ((received - lastBytesReceived) / seconds);
+        sendRate = (long) ((sent - lastBytesSent) / seconds);
+        lastBytesReceived = received;
+        lastBytesSent = sent;
+        lastTick = now;
+    }
+
+    /**
+     * Describes this side as a JSON object, with every histogram's count,
+     * mean, p50, p99, p99.9 and maximum in microseconds.
+     *
+     * @return The JSON text.
+     */
+    String toJson() {
+        return "{\"activeConnections\":" + getActiveConnections()
+                + ",\"connections\":" + getConnections()
+                + ",\"transfers\":" + getTransfers()
+                + ",\"failures\":" + getFailures()
+                + ",\"bytesReceived\":" + getBytesReceived()
+                + ",\"bytesSent\":" + getBytesSent()
+                + ",\"receiveBytesPerSecond\":" + receiveRate
+                + ",\"sendBytesPerSecond\":" + sendRate
+                + ",\"firstAckMicros\":" + firstAck.toJson()
+                + ",\"transferMicros\":" + transferTime.toJson()
+                + ",\"diskStallMicros\":" + diskStalls.toJson() + "}";
+    }
+
+    // Replace the snapshot file, through a temporary file so readers never see half of it
+    private static void writeSnapshot(Path path) {
+        String json = "{\"time\":" + System.currentTimeMillis() + ",\"server\":" + server.toJson() + ",\"client\":"
+                + client.toJson() + "}\n";
+        try {
+            Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+            Files.write(temporary, json.getBytes(StandardCharsets.UTF_8));
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Cannot write metrics snapshot: " + e);
+        }
+    }
+
+    /**
+     * The Connection class keeps a connection counted as active while it is
+     * open, see {@link TransferMetrics#open()}, and times its first ack.
+     */
+    static class Connection implements Closeable {
+        private TransferMetrics metrics;
+        private long openedAt = System.nanoTime();
+
+        Connection(TransferMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        /**
+         * Records the time from opening the connection to now as the time to
+         * the first ack.
+         */
+        void firstAck() {
+            metrics.firstAck(System.nanoTime() - openedAt);
+        }
+
+        public void close() {
+            metrics.connectionClosed();
+        }
+    }
+}
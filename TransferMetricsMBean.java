@@ -0,0 +1,48 @@
+/**
+ * The TransferMetricsMBean interface is the management view of
+ * {@link TransferMetrics}. JMX only introspects public interfaces, which is
+ * why this one lives in its own file. Rates are averaged over the last
+ * second, latencies are in microseconds and read from histograms whose
+ * buckets are a quarter of a power of two wide, so a percentile is exact to
+ * within 25%.
+ */
+public interface TransferMetricsMBean {
+    long getActiveConnections();
+
+    long getConnections();
+
+    long getTransfers();
+
+    long getFailures();
+
+    long getBytesReceived();
+
+    long getBytesSent();
+
+    long getReceiveBytesPerSecond();
+
+    long getSendBytesPerSecond();
+
+    long getFirstAckP50Micros();
+
+    long getFirstAckP99Micros();
+
+    long getFirstAckMaxMicros();
+
+    long getTransferP50Micros();
+
+    long getTransferP99Micros();
+
+    long getTransferMaxMicros();
+
+    long getDiskStallCount();
+
+    long getDiskStallP99Micros();
+
+    long getDiskStallMaxMicros();
+
+    /**
+     * Empties the histograms, the counters keep counting.
+     */
+    void resetHistograms();
+}
@@ -0,0 +1,195 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The TransferTuner class adapts the chunk size and the socket buffer of one
+ * transfer to the path it runs over, when {@link FTConfig#autoTune} is set.
+ * The round trip time comes from the header ack, keeping the smallest sample
+ * as queueing only adds to it, and the goodput from the bytes moved in each
+ * interval of a few round trips.
+ *
+ * The chunk size climbs: a probe doubles it and is kept unless the goodput
+ * drops, as larger chunks cost fewer system calls even when they are not
+ * faster; a drop undoes the probe and the next probes halve it instead,
+ * which is only kept when it helps. The socket buffer, the send buffer of a
+ * sender and the receive buffer of a receiver, is sized to twice the
+ * bandwidth-delay product. It only ever grows, and only past what the
+ * kernel would grow it to itself: Linux tunes its buffers up to the maximum
+ * of tcp_wmem/tcp_rmem, caps explicit sizes at wmem_max/rmem_max and stops
+ * tuning a buffer once it is set.
+ *
+ * A tuner belongs to one connection and is not thread-safe.
+ */
+class TransferTuner {
+    static final int MIN_CHUNK_SIZE = 4096;
+    private static final long MIN_INTERVAL = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int INTERVAL_ROUND_TRIPS = 4;
+    private static final int HOLD_INTERVALS = 8;
+    private static final double TOLERANCE = 0.05;
+
+    private static final long SEND_AUTOTUNE_LIMIT = sysctl("/proc/sys/net/ipv4/tcp_wmem", 2);
+    private static final long RECEIVE_AUTOTUNE_LIMIT = sysctl("/proc/sys/net/ipv4/tcp_rmem", 2);
+    private static final long SEND_BUFFER_LIMIT = sysctl("/proc/sys/net/core/wmem_max", 0);
+    private static final long RECEIVE_BUFFER_LIMIT = sysctl("/proc/sys/net/core/rmem_max", 0);
+
+    private Socket socket;
+    private boolean sending;
+    private boolean enabled = FTConfig.autoTune;
+    private int chunkSize;
+    private int maxChunkSize;
+    private long minRtt = Long.MAX_VALUE;
+    private long intervalStartedAt;
+    private long intervalBytes;
+    private double goodput;
+    private double maxGoodput;
+    private double lastGoodput;
+    // The probe made at the end of the last interval: 1 doubled the chunk size, -1 halved it, 0 none
+    private int lastProbe;
+    private int direction = 1;
+    private int holdIntervals;
+    private int bufferSize;
+
+    /**
+     * Creates the tuner of a connection.
+     *
+     * @param socket    The socket of the connection.
+     * @param sending   Whether this side sends the body, which decides the
+     *                  buffer that is tuned.
+     * @param chunkSize The chunk size to start from, kept as it is unless
+     *                  tuning is enabled.
+     */
+    TransferTuner(Socket socket, boolean sending, int chunkSize) {
+        this.socket = socket;
+        this.sending = sending;
+        this.chunkSize = Math.max(1, chunkSize);
+        this.maxChunkSize = Math.max(this.chunkSize, FTConfig.tuneMaxChunkSize);
+    }
+
+    /**
+     * Returns the number of bytes the next read or write should move.
+     *
+     * @return The current chunk size.
+     */
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Records a round trip, for example from sending a header to reading its
+     * ack.
+     *
+     * @param nanos The time the round trip took.
+     */
+    void roundTrip(long nanos) {
+        if (enabled && nanos > 0)
+            minRtt = Math.min(minRtt, nanos);
+    }
+
+    /**
+     * Counts the bytes of a chunk and adapts the chunk size and the socket
+     * buffer at the end of each interval.
+     *
+     * @param bytes The bytes the chunk moved.
+     */
+    void transferred(long bytes) {
+        if (!enabled)
+            return;
+        long now = System.nanoTime();
+        if (intervalStartedAt == 0) {
+            // The first chunk only starts the clock, it may have waited for the connection to open up
+            intervalStartedAt = now;
+            return;
+        }
+        intervalBytes += bytes;
+        long elapsed = now - intervalStartedAt;
+        long interval = minRtt == Long.MAX_VALUE ? MIN_INTERVAL
+                : Math.max(MIN_INTERVAL, INTERVAL_ROUND_TRIPS * minRtt);
+        if (elapsed < interval)
+            return;
+        goodput = intervalBytes * 1e9 / elapsed;
+        maxGoodput = Math.max(maxGoodput, goodput);
+        intervalStartedAt = now;
+        intervalBytes = 0;
+        adaptChunkSize();
+        adaptBufferSize();
+    }
+
+    private void adaptChunkSize() {
+        boolean kept = lastProbe > 0 ? goodput >= lastGoodput * (1 - TOLERANCE)
+                : lastProbe < 0 ? goodput > lastGoodput * (1 + TOLERANCE) : true;
+        if (!kept) {
+            // Undo the probe, stay there for a while and then try the other way
+            chunkSize = lastProbe > 0 ? chunkSize / 2 : chunkSize * 2;
+            direction = -lastProbe;
+            lastProbe = 0;
+            holdIntervals = HOLD_INTERVALS;
+            return;
+        }
+        lastGoodput = goodput;
+        lastProbe = 0;
+        if (holdIntervals > 0) {
+            holdIntervals--;
+            return;
+        }
+        int next = direction > 0 ? chunkSize * 2 : chunkSize / 2;
+        if (next < MIN_CHUNK_SIZE || next > maxChunkSize) {
+            // Nothing left to probe that way, a larger chunk is the better guess when the goodput is flat
+            direction = 1;
+            holdIntervals = HOLD_INTERVALS;
+            return;
+        }
+        chunkSize = next;
+        lastProbe = direction;
+    }
+
+    private void adaptBufferSize() {
+        if (minRtt == Long.MAX_VALUE)
+            return;
+        long target = Math.min(FTConfig.tuneMaxSocketBuffer, (long) (2 * maxGoodput * minRtt / 1e9));
+        long limit = sending ? SEND_BUFFER_LIMIT : RECEIVE_BUFFER_LIMIT;
+        long effective = limit > 0 ? Math.min(target, limit) : target;
+        long autotuneLimit = sending ? SEND_AUTOTUNE_LIMIT : RECEIVE_AUTOTUNE_LIMIT;
+        // Grow in steps of at least a quarter, and never below what the kernel would tune the buffer to
+        if (effective <= bufferSize + bufferSize / 4 || effective <= autotuneLimit)
+            return;
+        try {
+            int current = sending ? socket.getSendBufferSize() : socket.getReceiveBufferSize();
+            if (autotuneLimit == 0 && effective <= current)
+                return;
+            if (sending)
+                socket.setSendBufferSize((int) Math.min(Integer.MAX_VALUE, effective));
+            else
+                socket.setReceiveBufferSize((int) Math.min(Integer.MAX_VALUE, effective));
+            bufferSize = (int) effective;
+        } catch (SocketException e) {
+            // The connection is closing, the transfer reports that itself
+            enabled = false;
+        }
+    }
+
+    /**
+     * Describes the state of the tuning, for logs and reports.
+     *
+     * @return The chunk size, round trip time, goodput and socket buffer.
+     */
+    public String toString() {
+        return "chunk " + chunkSize / 1024 + " KB, rtt "
+                + (minRtt == Long.MAX_VALUE ? "unknown" : String.format("%.1f ms", minRtt / 1e6)) + ", goodput "
+                + String.format("%.1f MB/s", goodput / (1024 * 1024)) + ", " + (sending ? "send" : "receive")
+                + " buffer " + (bufferSize == 0 ? "kernel" : bufferSize / 1024 + " KB");
+    }
+
+    // A number from a Linux sysctl file, 0 elsewhere or when unreadable
+    private static long sysctl(String path, int field) {
+        try {
+            String fields[] = new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.US_ASCII).trim()
+                    .split("\\s+");
+            return Long.parseLong(fields[field]);
+        } catch (IOException | RuntimeException e) {
+            return 0;
+        }
+    }
+}
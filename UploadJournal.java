@@ -0,0 +1,117 @@
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+
+// UploadJournal Class: Keeps the partial data of a resumable upload and a journal of the byte ranges committed to it
+class UploadJournal {
+    static final String DIRECTORY_NAME = ".journal";
+
+    private static final Set<UUID> activeUploads = ConcurrentHashMap.newKeySet();
+
+    private UUID uploadId;
+    private File dataFile;
+    private File journalFile;
+    private FileChannel data;
+    private FileChannel journal;
+    private long resumeOffset;
+    private boolean released;
+
+    private UploadJournal(UUID uploadId, Volume volume, long lengthOfFile) throws IOException {
+        this.uploadId = uploadId;
+        File directory = new File(volume.getRoot(), DIRECTORY_NAME);
+        directory.mkdirs();
+        this.dataFile = new File(directory, uploadId + ".part");
+        this.journalFile = new File(directory, uploadId + ".journal");
+        this.resumeOffset = readCommittedPrefix(lengthOfFile);
+        if (resumeOffset == 0) {
+            dataFile.delete();
+            journalFile.delete();
+        }
+        this.data = FileChannel.open(dataFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.journal = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        if (resumeOffset == 0) {
+            // Size the data file up front like any other upload
+            if (lengthOfFile > 0) data.write(ByteBuffer.allocate(1), lengthOfFile - 1);
+            // The journal starts with the length of the file it belongs to
+            journal.write(ByteBuffer.allocate(8).putLong(0, lengthOfFile));
+            journal.force(false);
+        }
+    }
+
+    // Open the journal of an upload, null while another connection is still receiving it
+    static UploadJournal open(UUID uploadId, Volume volume, long lengthOfFile) throws IOException {
+        if (!activeUploads.add(uploadId)) return null;
+        try {
+            return new UploadJournal(uploadId, volume, lengthOfFile);
+        } catch (IOException e) {
+            activeUploads.remove(uploadId);
+            throw e;
+        }
+    }
+
+    // Length of the contiguous committed prefix, 0 when there is no usable journal
+    private long readCommittedPrefix(long lengthOfFile) throws IOException {
+        if (!journalFile.exists() || !dataFile.exists()) return 0;
+        ByteBuffer records = ByteBuffer.wrap(Files.readAllBytes(journalFile.toPath()));
+        if (records.remaining() < 8 || records.getLong() != lengthOfFile) return 0;
+        ArrayList<long[]> ranges = new ArrayList<>();
+        // A record torn by a crash is shorter than 16 bytes and ignored
+        while (records.remaining() >= 16) {
+            ranges.add(new long[] { records.getLong(), records.getLong() });
+        }
+        ranges.sort((a, b) -> Long.compare(a[0], b[0]));
+        long prefix = 0;
+        for (long range[] : ranges) {
+            if (range[0] > prefix) break;
+            prefix = Math.max(prefix, range[0] + range[1]);
+        }
+        return Math.min(prefix, Math.min(lengthOfFile, dataFile.length()));
+    }
+
+    public long getResumeOffset() {
+        return resumeOffset;
+    }
+
+    public FileChannel getChannel() {
+        return data;
+    }
+
+    // Record a received range once its bytes are on disk
+    public void commit(long offset, long length) throws IOException {
+        data.force(false);
+        ByteBuffer record = ByteBuffer.allocate(16).putLong(offset).putLong(length);
+        record.flip();
+        while (record.hasRemaining()) {
+            journal.write(record);
+        }
+        journal.force(false);
+    }
+
+    // Move the completed data to its final name and drop the journal
+    public void complete(File file) throws IOException {
+        journal.close();
+        Durability.commit(data, dataFile, file);
+        journalFile.delete();
+        // Free the upload id before the final ack, the client may upload the same file again right away
+        release();
+    }
+
+    // Close the files, keeping them for the next attempt if the upload did not complete
+    public void release() {
+        if (released) return;
+        released = true;
+        try {
+            data.close();
+            journal.close();
+        } catch (IOException e) {
+            System.out.println(e);
+        }
+        activeUploads.remove(uploadId);
+    }
+}
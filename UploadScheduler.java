@@ -0,0 +1,149 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The UploadScheduler class runs the uploads of a batch with a bounded number
+ * in flight, instead of opening a connection for every selected file at once.
+ * Waiting uploads sit in a priority queue ordered by file size. A failed
+ * upload goes back into the queue after a backoff that doubles with every
+ * attempt, so it does not hold one of the slots while it waits. An upload
+ * the server turns away for now waits the delay it asked for instead, a
+ * limited number of times.
+ */
+class UploadScheduler {
+    static final String SMALL_FIRST = "small-first";
+    static final String LARGE_FIRST = "large-first";
+
+    private static final long MAX_BACKOFF = 60_000;
+
+    private ExecutorService executor;
+    private ScheduledExecutorService retryTimer;
+    private PriorityBlockingQueue<QueuedUpload> queue;
+    private int concurrency;
+    private int maxAttempts;
+    private long backoff;
+    private int maxRetryAfter;
+    private long sequence;
+    private int running;
+    private int outstanding;
+
+    UploadScheduler(ExecutorService executor, int concurrency, String order, int maxAttempts, long backoff,
+            int maxRetryAfter) {
+        this.executor = executor;
+        this.concurrency = Math.max(1, concurrency);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.backoff = backoff;
+        this.maxRetryAfter = maxRetryAfter;
+        Comparator<QueuedUpload> bySize = Comparator.comparingLong(queuedUpload -> queuedUpload.length);
+        if (LARGE_FIRST.equals(order))
+            bySize = bySize.reversed();
+        // Uploads of the same size keep the order they were submitted in
+        this.queue = new PriorityBlockingQueue<>(64, bySize.thenComparingLong(queuedUpload -> queuedUpload.sequence));
+        this.retryTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "upload-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues an upload, it starts as soon as a slot is free. The upload is
+     * pending until then, its listener hears of it when an attempt starts.
+     *
+     * @param upload The upload to run.
+     */
+    public void submit(FileUploadThread upload) {
+        QueuedUpload queuedUpload;
+        synchronized (this) {
+            queuedUpload = new QueuedUpload(upload, upload.getFile().length(), sequence++);
+            outstanding++;
+        }
+        queue.add(queuedUpload);
+        dispatch();
+    }
+
+    /**
+     * Waits until every submitted upload completed or failed for good.
+     */
+    public synchronized void awaitIdle() throws InterruptedException {
+        while (outstanding > 0) {
+            wait();
+        }
+    }
+
+    // Start queued uploads while slots are free
+    private synchronized void dispatch() {
+        while (running < concurrency) {
+            QueuedUpload queuedUpload = queue.poll();
+            if (queuedUpload == null)
+                return;
+            running++;
+            executor.execute(() -> run(queuedUpload));
+        }
+    }
+
+    private void run(QueuedUpload queuedUpload) {
+        FileUploadThread upload = queuedUpload.upload;
+        queuedUpload.attempts++;
+        upload.fireStatus(FileUploadStatus.UPLOADING);
+        try {
+            upload.upload();
+            upload.fireStatus(FileUploadStatus.COMPLETED);
+            finished();
+        } catch (Exception e) {
+            RetryAfterException retryAfter = RetryAfterException.find(e);
+            if (retryAfter != null && queuedUpload.retryAfters < maxRetryAfter) {
+                // The server is busy rather than the upload broken, this does not count as an attempt
+                queuedUpload.retryAfters++;
+                queuedUpload.attempts--;
+                long delay = retryAfter.getDelay();
+                delay += ThreadLocalRandom.current().nextLong(delay / 4 + 1);
+                System.out.println(e + ", retrying " + upload.getFile().getName() + " in " + delay + " ms");
+                upload.fireStatus(FileUploadStatus.RETRYING);
+                retryTimer.schedule(() -> {
+                    queue.add(queuedUpload);
+                    dispatch();
+                }, delay, TimeUnit.MILLISECONDS);
+            } else if (queuedUpload.attempts < maxAttempts && !NoSpaceException.isCause(e)) {
+                long delay = Math.min(backoff << (queuedUpload.attempts - 1), MAX_BACKOFF);
+                // Jitter keeps uploads that failed together from coming back together
+                delay += ThreadLocalRandom.current().nextLong(delay / 4 + 1);
+                System.out.println(e + ", retrying " + upload.getFile().getName() + " in " + delay + " ms");
+                upload.fireStatus(FileUploadStatus.RETRYING);
+                retryTimer.schedule(() -> {
+                    queue.add(queuedUpload);
+                    dispatch();
+                }, delay, TimeUnit.MILLISECONDS);
+            } else {
+                System.out.println(e + ", giving up on " + upload.getFile().getName());
+                upload.fireStatus(FileUploadStatus.FAILED);
+                finished();
+            }
+        } finally {
+            synchronized (this) {
+                running--;
+            }
+            dispatch();
+        }
+    }
+
+    private synchronized void finished() {
+        outstanding--;
+        notifyAll();
+    }
+
+    // An upload waiting in the queue, with the number of attempts and retry-after answers it had so far
+    private static class QueuedUpload {
+        FileUploadThread upload;
+        long length;
+        long sequence;
+        int attempts;
+        int retryAfters;
+
+        QueuedUpload(FileUploadThread upload, long length, long sequence) {
+            this.upload = upload;
+            this.length = length;
+            this.sequence = sequence;
+        }
+    }
+}
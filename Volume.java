@@ -0,0 +1,62 @@
+import java.util.concurrent.atomic.*;
+import java.io.*;
+
+// Volume Class: One root directory of the storage, usually a disk of its own. Each volume has its own write-behind
+// writers and group committer, so a slow disk only holds up the uploads placed on it, and counts the bytes being
+// written to it for least-loaded placement
+class Volume {
+    private String name;
+    private File root;
+    private WriteBehindStage writeStage;
+    private GroupCommitter groupCommitter;
+    private AtomicLong pendingBytes = new AtomicLong();
+
+    Volume(String name, File root) {
+        this.name = name;
+        this.root = root;
+        if (!root.isDirectory() && !root.mkdirs()) System.out.println("Cannot create volume " + root);
+    }
+
+    String getName() {
+        return name;
+    }
+
+    File getRoot() {
+        return root;
+    }
+
+    // The file a name stands for on this volume
+    File resolve(String fileName) {
+        return new File(root, fileName.replace('/', File.separatorChar));
+    }
+
+    synchronized WriteBehindStage getWriteStage() {
+        if (writeStage == null)
+            writeStage = new WriteBehindStage(name, FTConfig.writerThreads, FTConfig.writeQueueLength);
+        return writeStage;
+    }
+
+    synchronized GroupCommitter getGroupCommitter() {
+        if (groupCommitter == null) {
+            groupCommitter = new GroupCommitter(name, FTConfig.groupCommitWindow, FTConfig.groupCommitBatch);
+            groupCommitter.start();
+        }
+        return groupCommitter;
+    }
+
+    void writeStarted(long lengthOfData) {
+        pendingBytes.addAndGet(lengthOfData);
+    }
+
+    void writeFinished(long lengthOfData) {
+        pendingBytes.addAndGet(-lengthOfData);
+    }
+
+    long getPendingBytes() {
+        return pendingBytes.get();
+    }
+
+    long getUsableSpace() {
+        return root.getUsableSpace();
+    }
+}
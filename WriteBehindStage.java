@@ -0,0 +1,63 @@
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+
+// WriteBehindStage Class: A few writer threads per volume that drain filled buffers to disk with positional writes.
+// Each file sticks to one writer, so its writes stay sequential, and each writer's queue is bounded, so a slow disk
+// fills only the queues of its own volume
+class WriteBehindStage {
+    private ArrayList<ArrayBlockingQueue<PooledBuffer>> queues = new ArrayList<>();
+
+    WriteBehindStage(String name, int writers, int queueLength) {
+        for (int i = 0; i < Math.max(1, writers); i++) {
+            ArrayBlockingQueue<PooledBuffer> queue = new ArrayBlockingQueue<>(Math.max(1, queueLength));
+            queues.add(queue);
+            Thread writer = new Thread(() -> drain(queue), "write-behind-" + name + "-" + i);
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    // Queue the flipped buffer for writing at the position, blocks while the writer's queue is full
+    void submit(PooledBuffer pooledBuffer, FileChannel fileChannel, long position, PendingWrites pendingWrites)
+            throws InterruptedIOException {
+        pooledBuffer.fileChannel = fileChannel;
+        pooledBuffer.position = position;
+        pooledBuffer.pendingWrites = pendingWrites;
+        pendingWrites.add();
+        try {
+            queues.get(Math.floorMod(System.identityHashCode(fileChannel), queues.size())).put(pooledBuffer);
+        } catch (InterruptedException e) {
+            pendingWrites.done(null);
+            BufferPool.getInstance().release(pooledBuffer);
+            throw new InterruptedIOException();
+        }
+    }
+
+    private void drain(ArrayBlockingQueue<PooledBuffer> queue) {
+        while (true) {
+            PooledBuffer pooledBuffer;
+            try {
+                pooledBuffer = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            ByteBuffer buffer = pooledBuffer.getBuffer();
+            PendingWrites pendingWrites = pooledBuffer.pendingWrites;
+            IOException failure = null;
+            try {
+                while (buffer.hasRemaining()) {
+                    pooledBuffer.fileChannel.write(buffer, pooledBuffer.position + buffer.position());
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+            pooledBuffer.fileChannel = null;
+            pooledBuffer.pendingWrites = null;
+            BufferPool.getInstance().release(pooledBuffer);
+            pendingWrites.done(failure);
+        }
+    }
+}
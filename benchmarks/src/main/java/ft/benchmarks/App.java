@@ -0,0 +1,152 @@
+package ft.benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * The App class gives the benchmarks access to the application classes.
+ * Those live in the default package and are package-private, so they cannot
+ * be imported from here; they are looked up by name once and called through
+ * method handles, which the JIT inlines like direct calls.
+ */
+final class App {
+    /**
+     * The port the in-process server listens on.
+     */
+    static final int PORT = 5500;
+
+    private App() {
+    }
+
+    /**
+     * Loads an application class.
+     *
+     * @param name The simple name of the class, e.g. "FTHeader".
+     * @return The class.
+     */
+    static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("The application classes are not on the class path", e);
+        }
+    }
+
+    /**
+     * Finds a method of an application class, private or not.
+     *
+     * @param owner      The simple name of the class.
+     * @param name       The name of the method.
+     * @param parameters The parameter types.
+     * @return A handle to the method; instance methods take the receiver first.
+     */
+    static MethodHandle method(String owner, String name, Class<?>... parameters) {
+        try {
+            Method method = type(owner).getDeclaredMethod(name, parameters);
+            method.setAccessible(true);
+            return MethodHandles.lookup().unreflect(method);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot access " + owner + "." + name, e);
+        }
+    }
+
+    /**
+     * Finds a constructor of an application class.
+     *
+     * @param owner      The simple name of the class.
+     * @param parameters The parameter types.
+     * @return A handle to the constructor.
+     */
+    static MethodHandle constructor(String owner, Class<?>... parameters) {
+        try {
+            Constructor<?> constructor = type(owner).getDeclaredConstructor(parameters);
+            constructor.setAccessible(true);
+            return MethodHandles.lookup().unreflectConstructor(constructor);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot access the constructor of " + owner, e);
+        }
+    }
+
+    /**
+     * Reads a static constant of an application class.
+     *
+     * @param owner The simple name of the class.
+     * @param name  The name of the field.
+     * @return The value.
+     */
+    static Object constant(String owner, String name) {
+        try {
+            Field field = type(owner).getDeclaredField(name);
+            field.setAccessible(true);
+            return field.get(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot read " + owner + "." + name, e);
+        }
+    }
+
+    /**
+     * Changes a setting of FTConfig. The benchmarks run in a forked JVM per
+     * parameter combination, so a setting never leaks into another run.
+     *
+     * @param name  The name of the FTConfig field.
+     * @param value The new value, of the field's type.
+     */
+    static void configure(String name, Object value) {
+        try {
+            Field field = type("FTConfig").getDeclaredField(name);
+            field.setAccessible(true);
+            field.set(null, value);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot set FTConfig." + name, e);
+        }
+    }
+
+    /**
+     * Creates a server log listener that drops every line.
+     *
+     * @return The listener.
+     */
+    static Object silentListener() {
+        Class<?> listener = type("ServerLogListener");
+        return Proxy.newProxyInstance(listener.getClassLoader(), new Class<?>[] { listener },
+                (proxy, method, args) -> method.getName().equals("toString") ? "silent" : null);
+    }
+
+    /**
+     * Starts the threaded server in this JVM and waits until it accepts
+     * connections.
+     *
+     * @return The server, a Thread implementing FTServerEngine.
+     */
+    static Thread startServer() throws Throwable {
+        Thread server = (Thread) constructor("FTServerF", type("ServerLogListener")).invoke(silentListener());
+        server.setDaemon(true);
+        server.start();
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("localhost", PORT), 1000);
+                return server;
+            } catch (java.io.IOException e) {
+                if (System.nanoTime() > deadline)
+                    throw new IllegalStateException("The server did not start on port " + PORT, e);
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    /**
+     * Stops a server started by {@link #startServer()}.
+     *
+     * @param server The server.
+     */
+    static void stopServer(Thread server) throws Throwable {
+        method("FTServerEngine", "shutdown").invoke(server);
+    }
+}
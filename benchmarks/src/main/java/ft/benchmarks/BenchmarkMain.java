@@ -0,0 +1,26 @@
+package ft.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The BenchmarkMain class runs the JMH benchmarks of the shaded jar. It takes
+ * the usual JMH options and only changes the default result format to JSON,
+ * written to jmh-result.json, so every run leaves a file that can be kept
+ * and compared with later runs:
+ *
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar
+ * java -jar benchmarks/target/benchmarks.jar HeaderBenchmark -rff headers.json
+ * </pre>
+ */
+public class BenchmarkMain {
+    public static void main(String[] args) throws Exception {
+        ArrayList<String> options = new ArrayList<>(Arrays.asList(args));
+        if (!options.contains("-rf")) {
+            options.add(0, "json");
+            options.add(0, "-rf");
+        }
+        org.openjdk.jmh.Main.main(options.toArray(new String[0]));
+    }
+}
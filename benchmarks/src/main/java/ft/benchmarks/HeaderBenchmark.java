@@ -0,0 +1,85 @@
+package ft.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encodes and parses transfer headers: the legacy 1024 byte header the
+ * client builds in FileUploadThread and the server decodes with
+ * RequestProcessor.getLengthOfFile and getFileName, and the version 2
+ * FTHeader that replaced it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HeaderBenchmark {
+    private static final MethodHandle CREATE_LEGACY_HEADER = App.method("FileUploadThread", "createLegacyHeader",
+            long.class, String.class);
+    private static final MethodHandle GET_LENGTH_OF_FILE = App.method("RequestProcessor", "getLengthOfFile",
+            byte[].class);
+    private static final MethodHandle GET_FILE_NAME = App.method("RequestProcessor", "getFileName", byte[].class);
+    private static final MethodHandle NEW_HEADER = App.constructor("FTHeader", byte.class, int.class, long.class,
+            String.class);
+    private static final MethodHandle TO_BYTE_ARRAY = App.method("FTHeader", "toByteArray");
+    private static final MethodHandle READ = App.method("FTHeader", "read", InputStream.class);
+
+    @Param({ "report.pdf", "photos/2023/holidays/a-rather-long-file-name-from-a-camera-0001.jpg" })
+    public String name;
+
+    @Param({ "1048576", "68719476736" })
+    public long length;
+
+    private byte opUpload;
+    private byte legacyHeader[];
+    private byte header[];
+
+    @Setup
+    public void setup() throws Throwable {
+        opUpload = (Byte) App.constant("FTHeader", "OP_UPLOAD");
+        legacyHeader = (byte[]) CREATE_LEGACY_HEADER.invoke(length, name);
+        header = (byte[]) TO_BYTE_ARRAY.invoke(NEW_HEADER.invoke(opUpload, 0, length, name));
+    }
+
+    @Benchmark
+    public byte[] encodeLegacy() throws Throwable {
+        return (byte[]) CREATE_LEGACY_HEADER.invoke(length, name);
+    }
+
+    @Benchmark
+    public long parseLegacyLength() throws Throwable {
+        return (long) GET_LENGTH_OF_FILE.invoke(legacyHeader);
+    }
+
+    @Benchmark
+    public String parseLegacyName() throws Throwable {
+        return (String) GET_FILE_NAME.invoke(legacyHeader);
+    }
+
+    @Benchmark
+    public byte[] encode() throws Throwable {
+        return (byte[]) TO_BYTE_ARRAY.invoke(NEW_HEADER.invoke(opUpload, 0, length, name));
+    }
+
+    // The server consumes the magic first to tell the two formats apart, the rest is read by FTHeader.read
+    @Benchmark
+    public Object parse() throws Throwable {
+        return READ.invoke(new ByteArrayInputStream(header, 4, header.length - 4));
+    }
+}
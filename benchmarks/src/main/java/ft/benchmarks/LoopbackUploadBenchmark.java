@@ -0,0 +1,93 @@
+package ft.benchmarks;
+
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Uploads a file end to end, from FileUploadThread.upload through the
+ * loopback interface to the threaded server running in the same JVM, with
+ * the default settings otherwise. The small file workload measures the cost
+ * per connection and header, the large ones the streaming throughput; the
+ * bytes counter reports the latter in bytes per second.
+ *
+ * The server writes to uploads/ in the working directory and listens on
+ * port 5500, which must be free.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoopbackUploadBenchmark {
+    private static final MethodHandle NEW_UPLOAD = App.constructor("FileUploadThread", App.type("FileUploadListener"),
+            String.class, File.class, String.class, int.class);
+    private static final MethodHandle UPLOAD = App.method("FileUploadThread", "upload");
+
+    @Param({ "16384", "1048576", "67108864" })
+    public int fileSize;
+
+    @Param({ "true", "false" })
+    public boolean zeroCopy;
+
+    private Thread server;
+    private File directory;
+    private File file;
+
+    /**
+     * The bytes uploaded, reported next to the uploads per second.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws Throwable {
+        App.configure("zeroCopy", zeroCopy);
+        byte data[] = new byte[fileSize];
+        new Random(42).nextBytes(data);
+        directory = Files.createTempDirectory("ft-upload").toFile();
+        file = new File(directory, "upload-" + fileSize + ".bin");
+        Files.write(file.toPath(), data);
+        server = App.startServer();
+    }
+
+    @Benchmark
+    public void upload(Counters counters) throws Throwable {
+        UPLOAD.invoke(NEW_UPLOAD.invoke(null, "benchmark", file, "localhost", App.PORT));
+        counters.bytes += fileSize;
+    }
+
+    @TearDown
+    public void tearDown() throws Throwable {
+        App.stopServer(server);
+        new File("uploads", file.getName()).delete();
+        file.delete();
+        directory.delete();
+    }
+}
@@ -0,0 +1,75 @@
+package ft.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Runs RequestProcessor.receiveAndSaveFileData over an in-memory stream, so
+ * the score is the cost of the server's plain copy loop and of committing
+ * the file, without the network. The processor's socket is not connected and
+ * has no channel, which is the path of a server without zero-copy and
+ * write-behind; the chunk size is FTConfig.receiveChunkSize.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ReceiveBenchmark {
+    private static final MethodHandle RECEIVE_AND_SAVE = App.method("RequestProcessor", "receiveAndSaveFileData",
+            InputStream.class, File.class, long.class);
+
+    @Param({ "4096", "16384", "65536", "262144" })
+    public int chunkSize;
+
+    @Param({ "16777216" })
+    public int length;
+
+    private byte data[];
+    private File directory;
+    private File file;
+    private Object processor;
+
+    @Setup
+    public void setup() throws Throwable {
+        App.configure("receiveChunkSize", chunkSize);
+        data = new byte[length];
+        new Random(42).nextBytes(data);
+        directory = Files.createTempDirectory("ft-receive").toFile();
+        file = new File(directory, "received.bin");
+        processor = App.constructor("RequestProcessor", Socket.class, String.class, App.type("ServerLogListener"))
+                .invoke(new Socket(), "benchmark", App.silentListener());
+    }
+
+    @Benchmark
+    public long receive() throws Throwable {
+        RECEIVE_AND_SAVE.invoke(processor, new ByteArrayInputStream(data), file, (long) length);
+        return file.length();
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+        directory.delete();
+    }
+}